@@ -0,0 +1,134 @@
+package com.isv.spi.controllers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntPredicate;
+
+/**
+ * 批量检查的专用计算线程池，不占用公共 ForkJoinPool。
+ * 每块按线程数切成若干段，一段由调用线程自己计算，其余提交到线程池；队列有界，满时由调用线程执行。
+ * 单项计算抛出异常时记录日志并按 false 处理，不影响同批其他条目，也不会中断已开始写出的响应。
+ */
+final class BatchCheckExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(BatchCheckExecutor.class);
+
+    private final int parallelism;
+    private final ThreadPoolExecutor pool;
+
+    // 统计
+    private final AtomicLong items = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong callerRuns = new AtomicLong();
+
+    BatchCheckExecutor(int parallelism, int queueSize) {
+        this.parallelism = Math.max(1, parallelism);
+        AtomicInteger threadSeq = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(this.parallelism, this.parallelism, 60L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+            r -> {
+                Thread thread = new Thread(r, "check-batch-" + threadSeq.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            },
+            (r, executor) -> {
+                // 队列已满或已关闭：在调用线程执行
+                callerRuns.incrementAndGet();
+                r.run();
+            });
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 计算 [from, to) 各项，results[i - from] 为第 i 项结果；返回时所有项都已计算完成
+     */
+    void evaluate(int from, int to, IntPredicate check, boolean[] results) {
+        int count = to - from;
+        int segments = Math.min(parallelism, count);
+        if (segments <= 1) {
+            evaluateRange(from, to, from, check, results);
+            return;
+        }
+        int size = (count + segments - 1) / segments;
+        List<Future<?>> futures = new ArrayList<>(segments - 1);
+        for (int start = from + size; start < to; start += size) {
+            int segmentFrom = start;
+            int segmentTo = Math.min(start + size, to);
+            futures.add(pool.submit(() -> evaluateRange(segmentFrom, segmentTo, from, check, results)));
+        }
+        evaluateRange(from, Math.min(from + size, to), from, check, results);
+        awaitAll(futures);
+    }
+
+    private void evaluateRange(int from, int to, int base, IntPredicate check, boolean[] results) {
+        for (int i = from; i < to; i++) {
+            boolean valid;
+            try {
+                valid = check.test(i);
+            } catch (RuntimeException e) {
+                failures.incrementAndGet();
+                logger.error("批量检查第 {} 项计算失败，按 false 返回", i, e);
+                valid = false;
+            }
+            results[i - base] = valid;
+        }
+        items.addAndGet(to - from);
+    }
+
+    /**
+     * 等待所有段完成；段内已逐项捕获异常，这里的中断只推迟到返回后恢复，避免结果数组仍被写入时就被复用
+     */
+    private static void awaitAll(List<Future<?>> futures) {
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    logger.error("批量检查分段执行失败", e.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void shutdown() {
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(5, TimeUnit.SECONDS)) {
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("parallelism", parallelism);
+        metrics.put("activeThreads", pool.getActiveCount());
+        metrics.put("queued", pool.getQueue().size());
+        metrics.put("items", items.get());
+        metrics.put("failures", failures.get());
+        metrics.put("callerRuns", callerRuns.get());
+        return metrics;
+    }
+}
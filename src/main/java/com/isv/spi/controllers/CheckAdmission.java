@@ -0,0 +1,189 @@
+package com.isv.spi.controllers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * /isv/check 准入控制：全局令牌桶、按 aliUid 的令牌桶和并发上限，超限立即拒绝（429），
+ * 在 Tomcat 工作线程耗尽前丢弃多余请求。速率为 0 表示不限制。
+ * 并发名额和一个全局令牌在读取请求体之前扣除；批量检查解析后再按条数补扣（单批最多扣到突发容量），
+ * 并对批内每个 aliUid 按条数扣除其令牌。未带 aliuid 的请求共用一个匿名令牌桶。
+ */
+final class CheckAdmission {
+
+    // 全局速率（每秒请求数）与突发容量
+    private static final double GLOBAL_RATE = Double.parseDouble(System.getProperty("isv.check.globalRatePerSecond", "0"));
+    private static final double GLOBAL_BURST = Double.parseDouble(System.getProperty("isv.check.globalBurst",
+            String.valueOf(Math.max(1, GLOBAL_RATE * 2))));
+    // 单个 aliUid 的速率与突发容量
+    private static final double TENANT_RATE = Double.parseDouble(System.getProperty("isv.check.perAliUidRatePerSecond", "0"));
+    private static final double TENANT_BURST = Double.parseDouble(System.getProperty("isv.check.perAliUidBurst",
+            String.valueOf(Math.max(1, TENANT_RATE * 2))));
+    // 同时处理的检查请求上限（应小于 Tomcat maxThreads）
+    private static final int MAX_CONCURRENT = Integer.getInteger("isv.check.maxConcurrent", 150);
+    // 跟踪的 aliUid 令牌桶上限，按分段 LRU 淘汰最久未使用的桶
+    private static final int MAX_TENANTS = 100000;
+    private static final int SEGMENTS = 16;
+    // 未带 aliuid 的请求使用的令牌桶 key
+    private static final String ANONYMOUS_TENANT = "";
+
+    /**
+     * 令牌桶：按流逝时间补充令牌
+     */
+    private static final class TokenBucket {
+        private final double ratePerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(double ratePerSecond, double capacity) {
+            this.ratePerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefill = System.nanoTime();
+        }
+
+        synchronized boolean tryAcquire(int permits, long now) {
+            refill(now);
+            if (tokens < permits) {
+                return false;
+            }
+            tokens -= permits;
+            return true;
+        }
+
+        private void refill(long now) {
+            long elapsed = now - lastRefill;
+            if (elapsed > 0) {
+                tokens = Math.min(capacity, tokens + elapsed * ratePerNano);
+                lastRefill = now;
+            }
+        }
+    }
+
+    /**
+     * 拒绝原因
+     */
+    enum Rejection {
+        CONCURRENCY, GLOBAL_RATE, TENANT_RATE
+    }
+
+    private final TokenBucket globalBucket = GLOBAL_RATE > 0 ? new TokenBucket(GLOBAL_RATE, GLOBAL_BURST) : null;
+    // aliUid -> 令牌桶，分段按访问顺序排列，段满时淘汰最久未使用的桶；由段自身的监视器保护
+    @SuppressWarnings("unchecked")
+    private final LinkedHashMap<String, TokenBucket>[] tenantSegments = new LinkedHashMap[SEGMENTS];
+    private final Semaphore concurrency = MAX_CONCURRENT > 0 ? new Semaphore(MAX_CONCURRENT) : null;
+
+    // 统计
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong shedConcurrency = new AtomicLong();
+    private final AtomicLong shedGlobalRate = new AtomicLong();
+    private final AtomicLong shedTenantRate = new AtomicLong();
+    private final AtomicLong evictedTenants = new AtomicLong();
+
+    CheckAdmission() {
+        int perSegment = Math.max(1, (MAX_TENANTS + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            tenantSegments[i] = new LinkedHashMap<String, TokenBucket>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+                    if (size() > perSegment) {
+                        evictedTenants.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+
+    /**
+     * 读取请求体之前调用：占用一个并发名额并扣除一个全局令牌，成功返回 null，调用方必须在结束时调用 release
+     */
+    Rejection enter() {
+        if (concurrency != null && !concurrency.tryAcquire()) {
+            shedConcurrency.incrementAndGet();
+            return Rejection.CONCURRENCY;
+        }
+        if (globalBucket != null && !globalBucket.tryAcquire(1, System.nanoTime())) {
+            release();
+            shedGlobalRate.incrementAndGet();
+            return Rejection.GLOBAL_RATE;
+        }
+        return null;
+    }
+
+    /**
+     * 批量检查解析后按条数补扣全局令牌（enter 已扣一个）；单批最多扣到突发容量，超大批次不会永远被拒绝。
+     * 失败时调用方仍需 release
+     */
+    Rejection admitBatch(int items) {
+        int extra = Math.min(items, (int) Math.max(1, GLOBAL_BURST)) - 1;
+        if (globalBucket != null && extra > 0 && !globalBucket.tryAcquire(extra, System.nanoTime())) {
+            shedGlobalRate.incrementAndGet();
+            return Rejection.GLOBAL_RATE;
+        }
+        return null;
+    }
+
+    /**
+     * 按 aliUid 扣除 permits 个令牌（单次最多扣到突发容量），需在 enter 成功之后调用；
+     * aliUid 为空时使用匿名令牌桶。放行计数按条累加。失败时调用方仍需 release
+     */
+    Rejection admitTenant(String aliUid, int permits) {
+        if (TENANT_RATE > 0) {
+            String key = aliUid != null ? aliUid : ANONYMOUS_TENANT;
+            TokenBucket bucket = tenantBucket(key);
+            if (!bucket.tryAcquire(Math.min(permits, (int) Math.max(1, TENANT_BURST)), System.nanoTime())) {
+                shedTenantRate.addAndGet(permits);
+                return Rejection.TENANT_RATE;
+            }
+        }
+        admitted.addAndGet(permits);
+        return null;
+    }
+
+    private TokenBucket tenantBucket(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        LinkedHashMap<String, TokenBucket> segment = tenantSegments[h & (SEGMENTS - 1)];
+        synchronized (segment) {
+            TokenBucket bucket = segment.get(key);
+            if (bucket == null) {
+                bucket = new TokenBucket(TENANT_RATE, TENANT_BURST);
+                segment.put(key, bucket);
+            }
+            return bucket;
+        }
+    }
+
+    void release() {
+        if (concurrency != null) {
+            concurrency.release();
+        }
+    }
+
+    Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("admitted", admitted.get());
+        metrics.put("shedConcurrency", shedConcurrency.get());
+        metrics.put("shedGlobalRate", shedGlobalRate.get());
+        metrics.put("shedTenantRate", shedTenantRate.get());
+        metrics.put("inFlight", concurrency != null ? MAX_CONCURRENT - concurrency.availablePermits() : null);
+        metrics.put("maxConcurrent", MAX_CONCURRENT);
+        metrics.put("globalRatePerSecond", GLOBAL_RATE);
+        metrics.put("perAliUidRatePerSecond", TENANT_RATE);
+        int tracked = 0;
+        for (LinkedHashMap<String, TokenBucket> segment : tenantSegments) {
+            synchronized (segment) {
+                tracked += segment.size();
+            }
+        }
+        metrics.put("trackedAliUids", tracked);
+        metrics.put("evictedAliUids", evictedTenants.get());
+        return metrics;
+    }
+}
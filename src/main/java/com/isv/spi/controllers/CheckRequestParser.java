@@ -0,0 +1,237 @@
+package com.isv.spi.controllers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * /isv/check 请求体解析：在复用的线程本地缓冲区上直接扫描 JSON 字节，只提取顶层的 aliuid 和 instanceid，
+ * 不逐行拼接字符串，也不构建 JSONObject。除两个结果字符串外不产生分配。
+ * 只在能严格确认格式合法时给出结果，其余输入（含格式错误）返回 false，由调用方回退到 fastjson 解析。
+ */
+final class CheckRequestParser {
+
+    private static final byte[] KEY_ALI_UID = "aliuid".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] KEY_INSTANCE_ID = "instanceid".getBytes(StandardCharsets.US_ASCII);
+    // 请求体上限，超过时不再读取（正常请求只有几十字节）
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+
+    private static final ThreadLocal<CheckRequestParser> LOCAL = ThreadLocal.withInitial(CheckRequestParser::new);
+
+    private byte[] buf = new byte[512];
+    private int len;
+    private int pos;
+
+    String aliUid;
+    String instanceId;
+
+    private CheckRequestParser() {
+    }
+
+    /**
+     * 当前线程复用的解析器
+     */
+    static CheckRequestParser get() {
+        return LOCAL.get();
+    }
+
+    /**
+     * 读取整个请求体到缓冲区
+     */
+    void read(InputStream in) throws IOException {
+        len = 0;
+        aliUid = null;
+        instanceId = null;
+        int n;
+        while ((n = in.read(buf, len, buf.length - len)) > 0) {
+            len += n;
+            if (len == buf.length) {
+                if (buf.length >= MAX_BODY_BYTES) {
+                    break;
+                }
+                byte[] grown = new byte[Math.min(buf.length * 2, MAX_BODY_BYTES)];
+                System.arraycopy(buf, 0, grown, 0, len);
+                buf = grown;
+            }
+        }
+    }
+
+    /**
+     * 请求体原文（仅回退解析时使用）
+     */
+    String bodyAsString() {
+        return new String(buf, 0, len, StandardCharsets.UTF_8);
+    }
+
+    boolean isEmpty() {
+        return len == 0;
+    }
+
+    /**
+     * 扫描顶层对象并提取 aliuid / instanceid。只接受严格 JSON 的一个子集：成员之间必须有逗号、不允许多余逗号、
+     * 对象之后只能是空白；值限于无转义字符串、整数和 true/false/null。
+     * 超出该子集（嵌套容器、小数、转义、格式错误等）一律返回 false，交给 fastjson 判定，两条路径对同一请求体结果一致。
+     */
+    boolean parse() {
+        pos = 0;
+        skipWhitespace();
+        if (pos >= len || buf[pos] != '{') {
+            return false;
+        }
+        pos++;
+        skipWhitespace();
+        if (pos < len && buf[pos] == '}') {
+            pos++;
+            return atEnd();
+        }
+        while (true) {
+            skipWhitespace();
+            // 键
+            int keyStart = pos + 1;
+            int keyEnd = scanString();
+            if (keyEnd < 0) {
+                return false;
+            }
+            skipWhitespace();
+            if (pos >= len || buf[pos] != ':') {
+                return false;
+            }
+            pos++;
+            skipWhitespace();
+            if (pos >= len) {
+                return false;
+            }
+            boolean isAliUid = equalsKey(keyStart, keyEnd, KEY_ALI_UID);
+            boolean isInstanceId = !isAliUid && equalsKey(keyStart, keyEnd, KEY_INSTANCE_ID);
+            // 值
+            String value;
+            if (buf[pos] == '"') {
+                int valueStart = pos + 1;
+                int valueEnd = scanString();
+                if (valueEnd < 0) {
+                    return false;
+                }
+                value = (isAliUid || isInstanceId)
+                        ? new String(buf, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8) : null;
+            } else {
+                // 整数或字面量，与 fastjson getString 一致取原文，null 视为未传
+                int valueStart = pos;
+                if (!scanLiteral()) {
+                    return false;
+                }
+                boolean isNull = buf[valueStart] == 'n';
+                value = (isAliUid || isInstanceId) && !isNull
+                        ? new String(buf, valueStart, pos - valueStart, StandardCharsets.US_ASCII) : null;
+            }
+            if (isAliUid) {
+                aliUid = value;
+            } else if (isInstanceId) {
+                instanceId = value;
+            }
+            // 成员之后必须是逗号（且后面还有成员）或对象结束
+            skipWhitespace();
+            if (pos >= len) {
+                return false;
+            }
+            if (buf[pos] == '}') {
+                pos++;
+                return atEnd();
+            }
+            if (buf[pos] != ',') {
+                return false;
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * 顶层对象之后只允许空白
+     */
+    private boolean atEnd() {
+        skipWhitespace();
+        return pos == len;
+    }
+
+    /**
+     * 从当前引号开始扫描字符串，返回结束引号位置并越过它；含转义字符或控制字符时返回 -1
+     */
+    private int scanString() {
+        if (pos >= len || buf[pos] != '"') {
+            return -1;
+        }
+        int i = pos + 1;
+        while (i < len) {
+            byte c = buf[i];
+            if (c == '"') {
+                pos = i + 1;
+                return i;
+            }
+            if (c == '\\' || (c >= 0 && c < 0x20)) {
+                return -1;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * 扫描 true / false / null 或整数（无前导零、非负零），成功时越过它；
+     * 小数和指数形式由 fastjson 规范化后取值，与原文不同，不在此处理
+     */
+    private boolean scanLiteral() {
+        if (matchLiteral("true") || matchLiteral("false") || matchLiteral("null")) {
+            return true;
+        }
+        int i = pos;
+        boolean negative = i < len && buf[i] == '-';
+        if (negative) {
+            i++;
+        }
+        int digitsStart = i;
+        while (i < len && buf[i] >= '0' && buf[i] <= '9') {
+            i++;
+        }
+        int digits = i - digitsStart;
+        if (digits == 0 || (digits > 1 && buf[digitsStart] == '0') || (negative && buf[digitsStart] == '0')) {
+            return false;
+        }
+        pos = i;
+        return true;
+    }
+
+    private boolean matchLiteral(String literal) {
+        int n = literal.length();
+        if (len - pos < n) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            if (buf[pos + i] != literal.charAt(i)) {
+                return false;
+            }
+        }
+        pos += n;
+        return true;
+    }
+
+    private boolean equalsKey(int start, int end, byte[] key) {
+        if (end - start != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buf[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipWhitespace() {
+        while (pos < len && isWhitespace(buf[pos])) {
+            pos++;
+        }
+    }
+
+    private static boolean isWhitespace(byte c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+}
@@ -3,44 +3,53 @@ package com.isv.spi.controllers;
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 import com.isv.spi.models.UserInfo;
+import com.isv.spi.services.CheckKey;
+import com.isv.spi.services.CheckResultCache;
+import com.isv.spi.services.CheckSideEffectQueue;
+import com.isv.spi.services.EffectiveAccess;
+import com.isv.spi.services.ExpiryScheduler;
+import com.isv.spi.services.InstanceStatusService;
+import com.isv.spi.services.MappedStatusExporter;
+import com.isv.spi.services.StatusDirectoryWatcher;
+import com.isv.spi.services.StatusReconciler;
 import com.isv.spi.services.StorageService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
-import jakarta.annotation.PreDestroy;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.attribute.PosixFilePermissions;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Set;
 
 @Controller
 @RequestMapping(value="/isv")
-public class IsvController {
+public class IsvController implements DisposableBean {
 
     private static final Logger logger = LoggerFactory.getLogger(IsvController.class);
 
@@ -50,6 +59,30 @@ public class IsvController {
     @Autowired
     private StorageService storageService;
 
+    @Autowired
+    private InstanceStatusService instanceStatusService;
+
+    @Autowired
+    private ExpiryScheduler expiryScheduler;
+
+    @Autowired
+    private CheckResultCache checkResultCache;
+
+    @Autowired
+    private CheckSideEffectQueue sideEffects;
+
+    @Autowired
+    private MappedStatusExporter mappedStatusExporter;
+
+    @Autowired
+    private StatusReconciler statusReconciler;
+
+    @Autowired
+    private StatusDirectoryWatcher statusDirectoryWatcher;
+
+    // 启动时早期用户导入未完成时，检查请求最多等待的毫秒数，超时返回 503
+    private static final long IMPORT_WAIT_MS = Long.getLong("isv.check.importWaitMs", 2000);
+
     // 云市场分配的秘钥
     private static final String SECRET_KEY = "**";
 
@@ -62,8 +95,32 @@ public class IsvController {
             "aliUid", "expiredOn", "skuId", "trial", "token"
     ));
 
-    // 缓存上次的状态，避免频繁重载
-    private final Map<String, Boolean> statusCache = new ConcurrentHashMap<>();
+    // 预编码的检查结果，直接写出字节，不经过字符串消息转换
+    private static final byte[] TRUE_BYTES = "true".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALSE_BYTES = "false".getBytes(StandardCharsets.US_ASCII);
+
+    // 批量检查单次最多条数
+    private static final int BATCH_MAX_ITEMS = Integer.getInteger("isv.check.batchMaxItems", 10000);
+    // 每块并行计算后写出一次
+    private static final int BATCH_CHUNK = 512;
+    // 批量检查专用计算线程数，默认为 CPU 核数
+    private static final int BATCH_PARALLELISM = Integer.getInteger("isv.check.batchParallelism",
+            Runtime.getRuntime().availableProcessors());
+    // 批量状态写入任务的序号，各批任务 key 不同，不会在后台队列中互相替换
+    private final AtomicLong batchSeq = new AtomicLong();
+    // 批量检查计算线程池，排队上限为线程数的 16 倍，满时由请求线程自己计算
+    private final BatchCheckExecutor batchExecutor = new BatchCheckExecutor(BATCH_PARALLELISM, BATCH_PARALLELISM * 16);
+
+    // 并发相同检查合并
+    private final SingleFlight<CheckKey, Boolean> checkFlights = new SingleFlight<>();
+
+    // 检查接口准入控制（并发上限、全局与按 aliUid 限速）
+    private final CheckAdmission admission = new CheckAdmission();
+    // 准入拒绝时的状态码（HttpServletResponse 没有对应常量）
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    // 结构化请求日志（检查接口采样，生命周期回调全量）
+    private final RequestEventLog eventLog = new RequestEventLog();
 
     /**
      * default action
@@ -76,250 +133,413 @@ public class IsvController {
         result.put("error", "wrong action");
         return result.toJSONString();
     }
-
-    private void logRequestDetails(String action) {
-        logger.info("=== Incoming Request ===");
-        logger.info("Action: {}", action);
-        logger.info("Timestamp: {}", new Date());
     
-        Map<String, String[]> params = request.getParameterMap();
-        for(Map.Entry<String, String[]> entry : params.entrySet()) {
-            logger.info("{}: {}", entry.getKey(), Arrays.toString(entry.getValue()));
+    /**
+     * 新增：检查实例是否过期的接口
+     * POST /isv/check
+     * Content-Type: application/x-www-form-urlencoded 或 application/json
+     * 参数: aliuid, instanceid, apikey
+     * 返回: true 或 false
+     */
+    @RequestMapping(value="/check", method = RequestMethod.POST)
+    public void checkInstanceExpiry(HttpServletResponse response) throws IOException {
+        long start = System.nanoTime();
+        // 准入控制：超过并发或全局速率时立即拒绝，不读取请求体
+        CheckAdmission.Rejection rejection = admission.enter();
+        if (rejection != null) {
+            writeCheckRejected(response, rejection);
+            if (eventLog.sampleCheck()) {
+                eventLog.check(null, null, "rejected:" + rejection, start);
+            }
+            return;
         }
-        logger.info("========================");
-    }
-    
-    private void triggerNginxReload() {
         try {
-            // 使用ProcessBuilder执行脚本
-            ProcessBuilder pb = new ProcessBuilder("/usr/local/bin/nginx-reload-signal");
-            pb.redirectErrorStream(true);
-            Process process = pb.start();
-            
-            // 异步读取输出
-            new Thread(() -> {
-                try (BufferedReader reader = new BufferedReader(
-                        new InputStreamReader(process.getInputStream()))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        logger.debug("[Nginx Reload Signal] {}", line);
-                    }
-                } catch (IOException e) {
-                    logger.warn("读取信号输出失败: {}", e.getMessage());
+            if (!awaitEarlyUsers(response)) {
+                if (eventLog.sampleCheck()) {
+                    eventLog.check(null, null, "unavailable:import", start);
                 }
-            }).start();
-            
-            int exitCode = process.waitFor();
-            if (exitCode == 0) {
-                logger.info("Nginx重载信号已发送。");
-            } else {
-                logger.warn("发送重载信号失败，退出码: {}", exitCode);
+                return;
             }
-        } catch (IOException | InterruptedException e) {
-            logger.error("发送Nginx重载信号失败: {}", e.getMessage(), e);
+            checkAdmitted(response, start);
+        } finally {
+            admission.release();
         }
     }
 
-    /**
-     * 生成实例状态标记文件
-     */
-    private void createInstanceStatusFile(String instanceId, boolean isValid) {
-        String statusDir = "/etc/nginx/conf.d/instance_status/";
-        String statusFile = statusDir + instanceId + ".conf";
-        String newContent = instanceId + " " + (isValid ? "true" : "false") + ";";
-        
-        // 检查状态是否变化
-        Boolean oldStatus = statusCache.get(instanceId);
-        boolean statusChanged = (oldStatus == null) || (oldStatus != isValid);
+    private void checkAdmitted(HttpServletResponse response, long start) throws IOException {
+        // 获取参数（支持表单和JSON格式）
+        String aliUid = request.getParameter("aliuid");
+        String computeNestInstanceId = request.getParameter("instanceid");
         
-        try {
-            File dir = new File(statusDir);
-            if (!dir.exists()) {
-                dir.mkdirs();
-            }
-            
-            // 如果状态变化，更新文件和缓存
-            if (statusChanged) {
-                try (FileWriter writer = new FileWriter(statusFile)) {
-                    writer.write(newContent);
+        // 如果没有表单参数，直接扫描请求体字节提取JSON字段
+        String contentType = request.getContentType();
+        if ((aliUid == null || computeNestInstanceId == null) && 
+            contentType != null && contentType.contains("application/json")) {
+            CheckRequestParser parser = CheckRequestParser.get();
+            try {
+                parser.read(request.getInputStream());
+                if (!parser.isEmpty()) {
+                    String bodyAliUid;
+                    String bodyInstanceId;
+                    if (parser.parse()) {
+                        bodyAliUid = parser.aliUid;
+                        bodyInstanceId = parser.instanceId;
+                    } else {
+                        // 超出严格子集或格式不合法，交给 fastjson 判定
+                        JSONObject json = JSONObject.parseObject(parser.bodyAsString());
+                        bodyAliUid = json.getString("aliuid");
+                        bodyInstanceId = json.getString("instanceid");
+                    }
+                    if (aliUid == null) aliUid = bodyAliUid;
+                    if (computeNestInstanceId == null) computeNestInstanceId = bodyInstanceId;
                 }
-                // 确保文件权限
-                Files.setPosixFilePermissions(Paths.get(statusFile), 
-                    java.nio.file.attribute.PosixFilePermissions.fromString("rw-r--r--"));
-                
-                // 更新缓存
-                statusCache.put(instanceId, isValid);
-                logger.info("状态变化，更新文件: {} = {}", instanceId, isValid);
-                
-                // 智能延迟：避免短时间内多次重载
-                scheduleDelayedReload(instanceId);
-            } else {
-                logger.debug("状态未变化，跳过更新: {}", instanceId);
+            } catch (Exception e) {
+                logger.error("解析JSON请求体失败: {}", e.getMessage());
             }
-            
-        } catch (Exception e) {
-            logger.error("处理状态文件失败: {}", e.getMessage(), e);
+        }
+        
+        CheckAdmission.Rejection rejection = admission.admitTenant(aliUid, 1);
+        if (rejection != null) {
+            writeCheckRejected(response, rejection);
+            if (eventLog.sampleCheck()) {
+                eventLog.check(aliUid, computeNestInstanceId, "rejected:" + rejection, start);
+            }
+            return;
+        }
+        boolean valid = evaluateCheck(aliUid, computeNestInstanceId, null, 0);
+        writeCheckResult(response, valid);
+        // 按采样率记录，未采样时不构建任何字符串
+        if (eventLog.sampleCheck()) {
+            eventLog.check(aliUid, computeNestInstanceId, valid ? "true" : "false", start);
         }
     }
 
-    // 延迟重载调度器
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-    private final Map<String, ScheduledFuture<?>> scheduledTasks = new ConcurrentHashMap<>();
-
-    private void scheduleDelayedReload(String instanceId) {
-        // 取消该实例的已有调度任务
-        ScheduledFuture<?> existingTask = scheduledTasks.get(instanceId);
-        if (existingTask != null) {
-            existingTask.cancel(false);
+    /**
+     * 批量检查接口
+     * POST /isv/check/batch
+     * Content-Type: application/json，请求体 [{"aliuid":"..","instanceid":".."}, ...]，返回 [true,false,...]
+     * Content-Type: application/x-ndjson，每行一个 {"aliuid":"..","instanceid":".."}，返回每行一个 true 或 false
+     * 结果与请求顺序一致，按块并行计算、逐块写出；整批的状态文件变化合并为一次写入任务和一次 nginx 重载
+     */
+    @RequestMapping(value="/check/batch", method = RequestMethod.POST)
+    public void checkInstanceExpiryBatch(HttpServletResponse response) throws IOException {
+        long start = System.nanoTime();
+        // 批量检查占用一个并发名额；超限时不读取请求体直接拒绝
+        CheckAdmission.Rejection rejection = admission.enter();
+        if (rejection != null) {
+            writeCheckRejected(response, rejection);
+            eventLog.checkBatch(0, 0, "rejected:" + rejection, start);
+            return;
+        }
+        try {
+            checkBatchAdmitted(response, start);
+        } finally {
+            admission.release();
         }
-        
-        // 延迟5秒执行重载（合并短时间内多次变化）
-        ScheduledFuture<?> newTask = scheduler.schedule(() -> {
-            try {
-                logger.info("执行延迟重载: {}", instanceId);
-                triggerNginxReload();
-            } finally {
-                scheduledTasks.remove(instanceId);
-            }
-        }, 5, TimeUnit.SECONDS);
-        
-        scheduledTasks.put(instanceId, newTask);
     }
 
-    // 应用关闭时清理资源
-    @PreDestroy
-    public void cleanup() {
-        scheduler.shutdown();
+    private void checkBatchAdmitted(HttpServletResponse response, long start) throws IOException {
+        if (!awaitEarlyUsers(response)) {
+            eventLog.checkBatch(0, 0, "unavailable:import", start);
+            return;
+        }
+        String contentType = request.getContentType();
+        boolean ndjson = contentType != null && contentType.contains("ndjson");
+
+        List<String[]> pairs;
+        try {
+            pairs = readCheckPairs(ndjson);
+        } catch (Exception e) {
+            logger.error("解析批量检查请求失败: {}", e.getMessage());
+            writeBatchError(response, HttpServletResponse.SC_BAD_REQUEST, "请求体格式错误: " + e.getMessage());
+            return;
+        }
+        if (pairs.size() > BATCH_MAX_ITEMS) {
+            writeBatchError(response, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                "单次最多检查 " + BATCH_MAX_ITEMS + " 项");
+            return;
+        }
+        // 按条数补扣全局令牌，再按 aliUid 扣除各自的令牌；被限速的 aliUid 对应的条目返回 false
+        CheckAdmission.Rejection rejection = admission.admitBatch(pairs.size());
+        if (rejection != null) {
+            writeCheckRejected(response, rejection);
+            eventLog.checkBatch(pairs.size(), 0, "rejected:" + rejection, start);
+            return;
+        }
+        writeBatchResults(response, pairs, admitBatchTenants(pairs), ndjson, start);
     }
 
     /**
-     * 删除实例状态标记文件
+     * 按 aliUid 统计条数并一次扣除各自的令牌，返回被限速的 aliUid（可含 null，即未带 aliuid 的条目）
      */
-    private void deleteInstanceStatusFile(String instanceId) {
-        try {
-            String statusDir = "/etc/nginx/conf.d/instance_status/";
-            String statusFile = statusDir + instanceId + ".conf";
-            File file = new File(statusFile);
-            if (file.exists()) {
-                file.delete();
-                logger.info("删除实例状态文件: {}", statusFile);
+    private Set<String> admitBatchTenants(List<String[]> pairs) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String[] pair : pairs) {
+            counts.merge(pair[0], 1, Integer::sum);
+        }
+        Set<String> rejected = new HashSet<>();
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            if (admission.admitTenant(entry.getKey(), entry.getValue()) != null) {
+                rejected.add(entry.getKey());
             }
+        }
+        return rejected;
+    }
 
-                // 修复：从缓存中移除对应记录
-            statusCache.remove(instanceId);
-            logger.info("从缓存中移除实例状态: {}", instanceId);
-            
-            // 如果存在定时任务，取消它
-            ScheduledFuture<?> scheduledTask = scheduledTasks.get(instanceId);
-            if (scheduledTask != null) {
-                scheduledTask.cancel(false);
-                scheduledTasks.remove(instanceId);
-                logger.info("取消实例的延迟重载任务: {}", instanceId);
+    private void writeBatchResults(HttpServletResponse response, List<String[]> pairs, Set<String> rejectedTenants,
+                                   boolean ndjson, long start) throws IOException {
+        // 同一实例ID在批内出现多次时按请求顺序取最后一项的状态，与逐条调用 /isv/check 的结果一致
+        Map<String, Boolean> statusBatch = new LinkedHashMap<>();
+        int chunk = Math.min(BATCH_CHUNK, pairs.size());
+        boolean[] results = new boolean[chunk];
+        Boolean[] statuses = new Boolean[chunk];
+        response.setContentType(ndjson ? "application/x-ndjson" : "application/json");
+        OutputStream out = response.getOutputStream();
+        if (!ndjson) {
+            out.write('[');
+        }
+        for (int from = 0; from < pairs.size(); from += BATCH_CHUNK) {
+            int to = Math.min(from + BATCH_CHUNK, pairs.size());
+            int base = from;
+            Arrays.fill(results, false);
+            Arrays.fill(statuses, null);
+            batchExecutor.evaluate(from, to, i -> {
+                String[] pair = pairs.get(i);
+                return !rejectedTenants.contains(pair[0]) && evaluateCheck(pair[0], pair[1], statuses, i - base);
+            }, results);
+            for (int i = from; i < to; i++) {
+                if (!ndjson && i > 0) {
+                    out.write(',');
+                }
+                out.write(results[i - base] ? TRUE_BYTES : FALSE_BYTES);
+                if (ndjson) {
+                    out.write('\n');
+                }
+                Boolean status = statuses[i - base];
+                if (status != null) {
+                    statusBatch.remove(pairs.get(i)[1]);
+                    statusBatch.put(pairs.get(i)[1], status);
+                }
             }
-        } catch (Exception e) {
-            logger.error("删除实例状态文件失败: {}", e.getMessage(), e);
+            out.flush();
+        }
+        if (!ndjson) {
+            out.write(']');
         }
+
+        // 整批状态文件一次写入、一次重载
+        if (!statusBatch.isEmpty()) {
+            sideEffects.submit("statusBatch:" + batchSeq.incrementAndGet(),
+                () -> instanceStatusService.applyStatusBatch(statusBatch));
+        }
+        eventLog.checkBatch(pairs.size(), statusBatch.size(), "ok", start);
     }
+
     /**
-     * 新增：检查实例是否过期的接口
-     * POST /isv/check
-     * Content-Type: application/x-www-form-urlencoded 或 application/json
-     * 参数: aliuid, instanceid, apikey
-     * 返回: true 或 false
+     * 读取批量检查的 (aliuid, instanceid) 列表
      */
-    @RequestMapping(value="/check", method = RequestMethod.POST)
-    @ResponseBody
-    public String checkInstanceExpiry() {
-        // 记录请求
-        logRequestDetails("checkInstance");
-        
-        // 获取参数（支持表单和JSON格式）
-        String aliUid = request.getParameter("aliuid");
-        String computeNestInstanceId = request.getParameter("instanceid");
-        
-        // 如果没有表单参数，尝试从请求体读取JSON
-        if ((aliUid == null || computeNestInstanceId == null) && 
-            request.getContentType() != null && 
-            request.getContentType().contains("application/json")) {
-            try {
-                StringBuilder requestBody = new StringBuilder();
-                String line;
-                while ((line = request.getReader().readLine()) != null) {
-                    requestBody.append(line);
-                }
-                
-                if (requestBody.length() > 0) {
-                    JSONObject json = JSONObject.parseObject(requestBody.toString());
-                    if (aliUid == null) aliUid = json.getString("aliuid");
-                    if (computeNestInstanceId == null) computeNestInstanceId = json.getString("instanceid");
+    private List<String[]> readCheckPairs(boolean ndjson) throws IOException {
+        List<String[]> pairs = new ArrayList<>();
+        if (ndjson) {
+            BufferedReader reader = request.getReader();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
                 }
-            } catch (Exception e) {
-                logger.error("解析JSON请求体失败: {}", e.getMessage());
+                JSONObject json = JSONObject.parseObject(line);
+                pairs.add(new String[] {json.getString("aliuid"), json.getString("instanceid")});
             }
+            return pairs;
         }
-        
+        JSONArray array = JSONArray.parseArray(new String(readBody(), StandardCharsets.UTF_8));
+        if (array == null) {
+            return pairs;
+        }
+        for (int i = 0; i < array.size(); i++) {
+            JSONObject json = array.getJSONObject(i);
+            pairs.add(new String[] {json.getString("aliuid"), json.getString("instanceid")});
+        }
+        return pairs;
+    }
+
+    private byte[] readBody() throws IOException {
+        InputStream in = request.getInputStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            body.write(buffer, 0, n);
+        }
+        return body.toByteArray();
+    }
+
+    private static void writeBatchError(HttpServletResponse response, int status, String message) throws IOException {
+        JSONObject result = new JSONObject();
+        result.put("error", message);
+        byte[] body = result.toJSONString().getBytes(StandardCharsets.UTF_8);
+        response.setStatus(status);
+        response.setContentType("application/json;charset=UTF-8");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    /**
+     * 准入拒绝：返回 429，响应体为 false，只读取响应体的网关按无效处理
+     */
+    private static void writeCheckRejected(HttpServletResponse response, CheckAdmission.Rejection rejection) throws IOException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("检查请求被拒绝: {}", rejection);
+        }
+        response.setStatus(SC_TOO_MANY_REQUESTS);
+        response.setHeader("Retry-After", "1");
+        response.setContentType("text/plain;charset=ISO-8859-1");
+        response.setContentLength(FALSE_BYTES.length);
+        response.getOutputStream().write(FALSE_BYTES);
+    }
+
+    /**
+     * 早期用户导入完成前不判定、不写状态文件：否则导入前的检查会把已有的 true 文件改写为 false，
+     * 导入再据此创建已过期的用户。超时返回 503，响应体为 false
+     */
+    private boolean awaitEarlyUsers(HttpServletResponse response) throws IOException {
+        if (storageService.awaitEarlyUsers(IMPORT_WAIT_MS)) {
+            return true;
+        }
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", "1");
+        response.setContentType("text/plain;charset=ISO-8859-1");
+        response.setContentLength(FALSE_BYTES.length);
+        response.getOutputStream().write(FALSE_BYTES);
+        return false;
+    }
+
+    private static void writeCheckResult(HttpServletResponse response, boolean valid) throws IOException {
+        byte[] body = valid ? TRUE_BYTES : FALSE_BYTES;
+        response.setContentType("text/plain;charset=ISO-8859-1");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    /**
+     * 判定 (aliuid, instanceid) 是否有有效实例，只读内存即可得出结果；
+     * 关联更新和状态文件写入提交到后台队列，不在请求线程上落盘。
+     * batchStatus 不为 null 时（批量检查）每一项（含缓存命中和合并到其他请求的计算）的状态都记录到 batchStatus[slot]，
+     * 由调用方按请求顺序合并后整批提交，同一实例ID的最终状态只取决于请求顺序，与各项的完成先后无关。
+     */
+    private boolean evaluateCheck(String aliUid, String computeNestInstanceId, Boolean[] batchStatus, int slot) {
         // 参数校验
         if (aliUid == null || aliUid.trim().isEmpty()) {
+            // 不写状态文件：否则任意请求都能为任意实例ID生成文件
             logger.error("缺少参数: aliuid");
-            createInstanceStatusFile(computeNestInstanceId, false);
-            return "false";
+            return false;
         }
 
         if (computeNestInstanceId == null || computeNestInstanceId.trim().isEmpty()) {
             logger.error("缺少参数: instanceid");
-            return "false";
+            return false;
+        }
+
+        // 实例ID会作为状态文件名并写入 nginx 配置
+        if (!InstanceStatusService.isValidInstanceId(computeNestInstanceId)) {
+            logger.warn("实例ID格式不正确: {}", computeNestInstanceId);
+            return false;
+        }
+
+        // 命中缓存时不再计算（关联更新和状态文件已在首次计算时完成，变更事件会使缓存失效）
+        Boolean cached = checkResultCache.get(aliUid, computeNestInstanceId);
+        boolean valid;
+        if (cached != null) {
+            logger.debug("检查结果命中缓存: aliUid={}, 计算巢实例ID={}, 结果={}", aliUid, computeNestInstanceId, cached);
+            valid = cached;
+        } else {
+            // 同一 (aliuid, instanceid) 的并发未命中只计算一次，其余请求共享结果，关联更新和状态文件也只提交一次；
+            // 每次未命中只创建一个键，并发合并与写入缓存共用
+            CheckKey key = new CheckKey(aliUid, computeNestInstanceId);
+            valid = checkFlights.execute(key, () -> computeCheck(key, batchStatus == null));
         }
+        if (batchStatus != null && wantsStatusFile(computeNestInstanceId, valid)) {
+            batchStatus[slot] = valid;
+        }
+        return valid;
+    }
+
+    /**
+     * 缓存未命中时的计算
+     */
+    private boolean computeCheck(CheckKey key, boolean submitStatus) {
+        String aliUid = key.getAliUid();
+        String computeNestInstanceId = key.getInstanceId();
+        long loadToken = checkResultCache.beginLoad();
         
+        // 有效访问视图：每个键一次哈希查找 + 一次时间比较
+        long now = System.currentTimeMillis();
         boolean hasValidInstance = false;
-        UserInfo activeUser = null;
         
-        // 方案1: 首先尝试通过aliUid查找用户
-        List<UserInfo> userInfoList = storageService.getUsersByAliUid(aliUid);
-        if (userInfoList != null && !userInfoList.isEmpty()) {
-            // 找到第一个有效的用户实例
-            for (UserInfo user : userInfoList) {
-                if (user.isValid()) {
-                    activeUser = user;
-                    hasValidInstance = true;
-                    break;
-                }
-            }
-            
-            if (activeUser != null) {
-                // 更新computeNestInstanceId关联（如果不同）
-                if (!computeNestInstanceId.equals(activeUser.getComputeNestInstanceId())) {
-                    storageService.updateComputeNestInstanceId(activeUser.getOrderBizId(), computeNestInstanceId);
+        // 方案1: 首先尝试通过aliUid查找有效订单
+        EffectiveAccess access = storageService.getAccessByAliUid(aliUid);
+        if (access != null && access.isValidAt(now)) {
+            hasValidInstance = true;
+            // 更新computeNestInstanceId关联（如果不同）
+            if (!computeNestInstanceId.equals(access.getComputeNestInstanceId())) {
+                String orderBizId = access.getOrderBizId();
+                sideEffects.submit("assoc:" + orderBizId, () -> {
+                    storageService.updateComputeNestInstanceId(orderBizId, computeNestInstanceId);
                     logger.info("通过aliUid找到有效用户，关联计算巢实例ID: {} -> {}", 
-                        computeNestInstanceId, activeUser.getOrderBizId());
-                }
+                        computeNestInstanceId, orderBizId);
+                });
             }
         }
         
         // 方案2: 如果通过aliUid没找到，尝试通过computeNestInstanceId查找
         if (!hasValidInstance) {
-            activeUser = storageService.getUserByComputeNestInstanceId(computeNestInstanceId);
-            if (activeUser != null && activeUser.isValid()) {
+            access = storageService.getAccessByComputeNestInstanceId(computeNestInstanceId);
+            if (access != null && access.isValidAt(now)) {
                 hasValidInstance = true;
                 
                 // 如果是虚拟用户，更新aliUid为传入的真实aliUid
-                if (storageService.isVirtualUser(activeUser)) {
-                    storageService.updateUserAliUid(activeUser.getOrderBizId(), aliUid);
-                    logger.info("虚拟用户更新aliUid: {} -> {} (实例ID: {})", 
-                        activeUser.getAliUid(), aliUid, computeNestInstanceId);
+                if (access.isVirtualUser()) {
+                    String orderBizId = access.getOrderBizId();
+                    String virtualAliUid = access.getAliUid();
+                    sideEffects.submit("aliUid:" + orderBizId, () -> {
+                        storageService.updateUserAliUid(orderBizId, aliUid);
+                        logger.info("虚拟用户更新aliUid: {} -> {} (实例ID: {})", 
+                            virtualAliUid, aliUid, computeNestInstanceId);
+                    });
                 }
                 
-                logger.info("通过computeNestInstanceId找到有效用户: {}", computeNestInstanceId);
+                logger.debug("通过computeNestInstanceId找到有效用户: {}", computeNestInstanceId);
             }
         }
         
-        logger.info("检查用户实例状态: aliUid={}, 计算巢实例ID={}, 是否有有效实例={}", 
-            aliUid, computeNestInstanceId, hasValidInstance);
+        if (logger.isDebugEnabled()) {
+            logger.debug("检查用户实例状态: aliUid={}, 计算巢实例ID={}, 是否有有效实例={}", 
+                aliUid, computeNestInstanceId, hasValidInstance);
+        }
         
-        // 生成状态标记文件
-        createInstanceStatusFile(computeNestInstanceId, hasValidInstance);
+        // 生成状态标记文件（批量检查由调用方记录并整批提交）
+        if (submitStatus && wantsStatusFile(computeNestInstanceId, hasValidInstance)) {
+            submitStatusFile(computeNestInstanceId, hasValidInstance);
+        }
+        checkResultCache.put(loadToken, key, hasValidInstance ? access : null);
+
+        return hasValidInstance;
+    }
 
-        // 返回true或false
-        return hasValidInstance ? "true" : "false";
+    /**
+     * 存储中没有记录、也没有已有状态的实例ID不生成文件
+     */
+    private boolean wantsStatusFile(String computeNestInstanceId, boolean isValid) {
+        return isValid || storageService.getUserByComputeNestInstanceId(computeNestInstanceId) != null
+            || instanceStatusService.hasStatus(computeNestInstanceId);
+    }
+
+    /**
+     * 状态文件写入交给后台队列；同一实例排队中的旧状态被最新结果替换，写入时与状态缓存比较，未变化不落盘
+     */
+    private void submitStatusFile(String computeNestInstanceId, boolean isValid) {
+        sideEffects.submit("status:" + computeNestInstanceId,
+            () -> instanceStatusService.createInstanceStatusFile(computeNestInstanceId, isValid));
     }
 
 
@@ -330,8 +550,13 @@ public class IsvController {
     @RequestMapping(value="", params="action=createInstance")
     @ResponseBody
     public String createInstance() {
-        // 记录传入请求
-        logRequestDetails("createInstance");
+        long start = System.nanoTime();
+        String result = handleCreateInstance();
+        eventLog.lifecycle("createInstance", request, result, start);
+        return result;
+    }
+
+    private String handleCreateInstance() {
     
         // 校验token
         if(!validateToken()) {
@@ -362,18 +587,17 @@ public class IsvController {
 
             // 修复：检查并清理可能存在的旧缓存
         String instanceId = orderBizId.trim();
-        statusCache.remove(instanceId);
+        instanceStatusService.evictCachedStatus(instanceId);
         logger.info("创建实例前清理缓存: {}", instanceId);
 
         // 检查是否已存在相同订单
         UserInfo existingUser = storageService.getUserByOrderBizId(orderBizId);
         if (existingUser != null) {
-            logger.info("订单已存在，返回现有信息: " + orderBizId);
+            logger.info("订单已存在，返回现有信息: {}", orderBizId);
             JSONObject result = new JSONObject();
             result.put("instanceId", existingUser.getInstanceId());
             result.put("aliUid", existingUser.getAliUid());
             result.put("password", FIXED_PASSWORD);
-            logger.info("Returning existing instance: " + result.toJSONString());
             return result.toJSONString();
         }
 
@@ -395,7 +619,7 @@ public class IsvController {
                 // 尝试解析为时间戳（长整型）
                 long timestamp = Long.parseLong(expiredOnStr);
                 userInfo.setExpiredOn(new Date(timestamp));
-                logger.info("解析为时间戳: " + timestamp);
+                logger.info("解析为时间戳: {}", timestamp);
             } catch (NumberFormatException e1) {
                 // 如果不是时间戳，尝试解析为日期时间字符串
                 try {
@@ -405,7 +629,7 @@ public class IsvController {
                     Date expiredDate = sdf.parse(expiredOnStr);
                     userInfo.setExpiredOn(expiredDate);
                 } catch (Exception e2) {
-                    logger.error("过期时间格式错误，无法解析: " + expiredOnStr);
+                    logger.error("过期时间格式错误，无法解析: {}", expiredOnStr);
                 }
             }
         }
@@ -426,15 +650,11 @@ public class IsvController {
             return result.toJSONString();
         }
 
-        // 记录验证成功的请求
-        logger.info("Valid createInstance request received at: {}", new Date());
         // 返回结果 - 只返回instanceId、aliUid和固定密码
         JSONObject result = new JSONObject();
         result.put("instanceId", orderBizId.trim());
         result.put("aliUid", aliUid.trim());
         result.put("password", FIXED_PASSWORD);
-        
-        logger.info("Returning: {}", result.toJSONString());
         return result.toJSONString();
     }
 
@@ -445,8 +665,13 @@ public class IsvController {
     @RequestMapping(value="", params="action=renewInstance")
     @ResponseBody
     public String renewInstance() {
-        // 记录传入请求
-        logRequestDetails("renewInstance");
+        long start = System.nanoTime();
+        String result = handleRenewInstance();
+        eventLog.lifecycle("renewInstance", request, result, start);
+        return result;
+    }
+
+    private String handleRenewInstance() {
 
         // 校验token
         if(!validateToken()) {
@@ -479,12 +704,19 @@ public class IsvController {
             return result.toJSONString();
         }
 
-        UserInfo userInfo = storageService.getUserByInstanceId(instanceId);
-        if (userInfo == null) {
+        String ecsInstanceIdError = checkEcsInstanceIdParam();
+        if (ecsInstanceIdError != null) {
+            return ecsInstanceIdError;
+        }
+
+        UserInfo existing = storageService.getUserByInstanceId(instanceId);
+        if (existing == null) {
             JSONObject result = new JSONObject();
             result.put("error", "实例不存在: " + instanceId);
             return result.toJSONString();
         }
+        // 存储中的记录被无锁读者共享，在副本上修改后整体保存
+        UserInfo userInfo = new UserInfo(existing);
 
         // 更新过期时间
         try {
@@ -507,11 +739,11 @@ public class IsvController {
             // 创建有效状态标记文件
             String computeNestInstanceId = userInfo.getComputeNestInstanceId();
             if (computeNestInstanceId != null && !computeNestInstanceId.trim().isEmpty()) {
-                createInstanceStatusFile(computeNestInstanceId, true);
+                instanceStatusService.createInstanceStatusFile(computeNestInstanceId, true);
             } else {
                 // 如果用户信息中没有计算巢实例ID，尝试使用传入的ecsInstanceId
                 if (ecsInstanceId != null && !ecsInstanceId.trim().isEmpty()) {
-                    createInstanceStatusFile(ecsInstanceId.trim(), true);
+                    instanceStatusService.createInstanceStatusFile(ecsInstanceId.trim(), true);
                 } else {
                     logger.warn("实例 {} 没有关联的计算巢实例ID，无法创建状态文件", instanceId);
                 }
@@ -528,9 +760,6 @@ public class IsvController {
             return result.toJSONString();
         }
 
-        // 记录验证成功的请求
-        logger.info("Valid renewInstance request received at: {}", new Date());
-
         // 返回结果
         JSONObject result = new JSONObject();
         result.put("success", true);
@@ -544,8 +773,13 @@ public class IsvController {
     @RequestMapping(value="", params="action=expiredInstance")
     @ResponseBody
     public String expiredInstance() {
-        // 记录传入请求
-        logRequestDetails("expiredInstance");
+        long start = System.nanoTime();
+        String result = handleExpiredInstance();
+        eventLog.lifecycle("expiredInstance", request, result, start);
+        return result;
+    }
+
+    private String handleExpiredInstance() {
 
         // 校验token
         if(!validateToken()) {
@@ -562,10 +796,20 @@ public class IsvController {
             return result.toJSONString();
         }
 
-        UserInfo userInfo = storageService.getUserByInstanceId(instanceId);
-        if (userInfo != null) {
+        UserInfo existing = storageService.getUserByInstanceId(instanceId);
+        if (existing != null) {
+            // 存储中的记录被无锁读者共享，在副本上修改后整体保存
+            UserInfo userInfo = new UserInfo(existing);
             userInfo.setStatus("EXPIRED");
-            storageService.saveUser(userInfo);
+            try {
+                storageService.saveUser(userInfo);
+            } catch (Exception e) {
+                // 未落盘的变更不能确认为成功，回调方会重试
+                logger.error("实例过期保存失败: {}", e.getMessage(), e);
+                JSONObject result = new JSONObject();
+                result.put("error", "实例过期失败: " + e.getMessage());
+                return result.toJSONString();
+            }
             logger.info("实例标记为过期: {}", instanceId);
 
             // 获取该用户关联的计算巢实例ID
@@ -573,7 +817,7 @@ public class IsvController {
             
             if (computeNestInstanceId != null && !computeNestInstanceId.trim().isEmpty()) {
                 // 使用计算巢实例ID创建无效状态标记文件
-                createInstanceStatusFile(computeNestInstanceId, false);
+                instanceStatusService.createInstanceStatusFile(computeNestInstanceId, false);
                 logger.info("为计算巢实例创建无效状态文件: {}", computeNestInstanceId);
             } else {
                 // 如果还没有关联的计算巢实例ID，记录警告
@@ -583,8 +827,6 @@ public class IsvController {
             logger.warn("实例不存在: {}", instanceId);
         }
 
-        // 记录验证成功的请求
-        logger.info("Valid expiredInstance request received at: {}", new Date());
         // 返回结果
         JSONObject result = new JSONObject();
         result.put("success", true);
@@ -596,8 +838,13 @@ public class IsvController {
     @RequestMapping(value="", params="action=releaseInstance")
     @ResponseBody
     public String releaseInstance() {
-        // 记录传入请求
-        logRequestDetails("releaseInstance");
+        long start = System.nanoTime();
+        String result = handleReleaseInstance();
+        eventLog.lifecycle("releaseInstance", request, result, start);
+        return result;
+    }
+
+    private String handleReleaseInstance() {
 
         // 校验token
         if(!validateToken()) {
@@ -634,6 +881,11 @@ public class IsvController {
             return result.toJSONString();
         }
 
+        String ecsInstanceIdError = checkEcsInstanceIdParam();
+        if (ecsInstanceIdError != null) {
+            return ecsInstanceIdError;
+        }
+
         UserInfo userInfo = storageService.getUserByInstanceId(instanceId);
         if (userInfo != null) {
             // 记录是否退款的信息
@@ -650,15 +902,23 @@ public class IsvController {
             }
             
             // 删除用户信息
-            storageService.deleteUser(userInfo.getOrderBizId());
+            try {
+                storageService.deleteUser(userInfo.getOrderBizId());
+            } catch (Exception e) {
+                // 未落盘的删除不能确认为成功，回调方会重试
+                logger.error("实例释放失败: {}", e.getMessage(), e);
+                JSONObject result = new JSONObject();
+                result.put("error", "实例释放失败: " + e.getMessage());
+                return result.toJSONString();
+            }
             logger.info("实例释放成功: {}", instanceId);
 
             // 如果有关联的计算巢实例ID，删除对应的状态标记文件
             if (computeNestInstanceId != null && !computeNestInstanceId.trim().isEmpty()) {
-                deleteInstanceStatusFile(computeNestInstanceId);
+                instanceStatusService.deleteInstanceStatusFile(computeNestInstanceId);
                 logger.info("删除计算巢实例状态文件: {}", computeNestInstanceId);
                         // 修复：触发一次nginx重载，确保移除配置
-                scheduleDelayedReload(computeNestInstanceId);
+                instanceStatusService.scheduleDelayedReload(computeNestInstanceId);
             
             } else {
                 // 如果还没有关联的计算巢实例ID，记录警告
@@ -668,14 +928,26 @@ public class IsvController {
             logger.info("实例不存在，无需释放: {}", instanceId);
         }
 
-        // 记录验证成功的请求
-        logger.info("Valid releaseInstance request received at: {}", new Date());
         // 返回结果
         JSONObject result = new JSONObject();
         result.put("success", true);
         return result.toJSONString();
     }
 
+    /**
+     * 校验 ecsInstanceId（计算巢实例ID）参数：会作为状态文件名并写入 nginx 配置，格式不正确时返回错误响应，否则返回 null
+     */
+    private String checkEcsInstanceIdParam() {
+        String ecsInstanceId = request.getParameter("ecsInstanceId");
+        if (ecsInstanceId == null || ecsInstanceId.trim().isEmpty()
+                || InstanceStatusService.isValidInstanceId(ecsInstanceId.trim())) {
+            return null;
+        }
+        JSONObject result = new JSONObject();
+        result.put("error", "ecsInstanceId 只能包含字母、数字、下划线和连字符");
+        return result.toJSONString();
+    }
+
     /**
      * 校验token
      * @return
@@ -791,10 +1063,23 @@ public class IsvController {
         JSONObject result = new JSONObject();
         
         try {
-            // 1. 统计状态文件
-            File statusDir = new File("/etc/nginx/conf.d/instance_status/");
+            // 1. 统计状态文件（map 模式直接读内存汇总表，不列目录）
+            File statusDir = new File(instanceStatusService.getStatusDir());
             JSONObject statusStats = new JSONObject();
-            if (statusDir.exists() && statusDir.isDirectory()) {
+            if (instanceStatusService.isMapMode()) {
+                Map<String, Boolean> statuses = instanceStatusService.getMapStatuses();
+                statusStats.put("mode", "map");
+                statusStats.put("mapFile", instanceStatusService.getMapFile());
+                statusStats.put("total", statuses.size());
+                JSONArray examples = new JSONArray();
+                for (String instanceId : statuses.keySet()) {
+                    if (examples.size() >= 3) {
+                        break;
+                    }
+                    examples.add(instanceId);
+                }
+                statusStats.put("examples", examples);
+            } else if (statusDir.exists() && statusDir.isDirectory()) {
                 File[] statusFiles = statusDir.listFiles((d, name) -> name.endsWith(".conf"));
                 int total = statusFiles != null ? statusFiles.length : 0;
                 statusStats.put("total", total);
@@ -844,6 +1129,30 @@ public class IsvController {
         return result.toJSONString();
     }
 
+    /**
+     * 管理接口 - 查看运行指标
+     */
+    @RequestMapping(value="/admin/metrics", method = RequestMethod.GET)
+    @ResponseBody
+    public String getMetrics() {
+        JSONObject result = new JSONObject();
+        result.put("success", true);
+        result.put("persistence", storageService.getPersistenceMetrics());
+        result.put("expiry", expiryScheduler.getMetrics());
+        result.put("statusWriter", instanceStatusService.getWriterMetrics());
+        result.put("reload", instanceStatusService.getReloadMetrics());
+        result.put("reconciler", statusReconciler.getMetrics());
+        result.put("statusWatcher", statusDirectoryWatcher.getMetrics());
+        result.put("mappedTable", mappedStatusExporter.getMetrics());
+        result.put("checkCache", checkResultCache.getMetrics());
+        result.put("sideEffects", sideEffects.getMetrics());
+        result.put("singleFlight", checkFlights.getMetrics());
+        result.put("checkBatch", batchExecutor.getMetrics());
+        result.put("admission", admission.getMetrics());
+        result.put("requestLog", eventLog.getMetrics());
+        return result.toJSONString();
+    }
+
         /**
      * 管理接口 - 查看状态文件详情
      */
@@ -853,10 +1162,25 @@ public class IsvController {
         JSONObject result = new JSONObject();
         
         try {
-            File statusDir = new File("/etc/nginx/conf.d/instance_status/");
+            File statusDir = new File(instanceStatusService.getStatusDir());
             JSONArray filesArray = new JSONArray();
             
-            if (statusDir.exists() && statusDir.isDirectory()) {
+            if (instanceStatusService.isMapMode()) {
+                // map 模式：全部状态在一个汇总文件中，按实例ID排序列出
+                File mapFile = new File(instanceStatusService.getMapFile());
+                for (Map.Entry<String, Boolean> entry : instanceStatusService.getMapStatuses().entrySet()) {
+                    JSONObject fileObj = new JSONObject();
+                    fileObj.put("name", entry.getKey());
+                    fileObj.put("status", entry.getValue().toString());
+                    filesArray.add(fileObj);
+                }
+                result.put("success", true);
+                result.put("count", filesArray.size());
+                result.put("files", filesArray);
+                result.put("mapFile", mapFile.getAbsolutePath());
+                result.put("size", mapFile.length());
+                result.put("lastModified", new Date(mapFile.lastModified()).toString());
+            } else if (statusDir.exists() && statusDir.isDirectory()) {
                 File[] statusFiles = statusDir.listFiles((d, name) -> name.endsWith(".conf"));
                 
                 if (statusFiles != null) {
@@ -907,4 +1231,12 @@ public class IsvController {
         
         return result.toJSONString();
     }
-}
\ No newline at end of file
+
+    /**
+     * 关闭批量检查线程池
+     */
+    @Override
+    public void destroy() {
+        batchExecutor.shutdown();
+    }
+}
@@ -0,0 +1,124 @@
+package com.isv.spi.controllers;
+
+import com.alibaba.fastjson.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 结构化请求日志：每个请求一行 JSON，写入独立的 isv.request 日志器（由 logback.xml 配置为异步输出）。
+ * 生命周期回调全部记录；/isv/check 按 isv.log.checkSampleRate 采样（默认 0.01，1 为全部，0 为关闭）。
+ * 日志级别未开启或未被采样时不构建任何参数字符串。
+ */
+final class RequestEventLog {
+
+    private static final Logger events = LoggerFactory.getLogger("isv.request");
+
+    private static final double CHECK_SAMPLE_RATE = Double.parseDouble(System.getProperty("isv.log.checkSampleRate", "0.01"));
+
+    // 敏感字段的替换值
+    private static final String MASKED = "***";
+
+    private final AtomicLong checkEvents = new AtomicLong();
+    private final AtomicLong checkSampled = new AtomicLong();
+
+    /**
+     * 本次检查是否需要记录
+     */
+    boolean sampleCheck() {
+        checkEvents.incrementAndGet();
+        if (CHECK_SAMPLE_RATE <= 0 || !events.isInfoEnabled()) {
+            return false;
+        }
+        if (CHECK_SAMPLE_RATE < 1 && ThreadLocalRandom.current().nextDouble() >= CHECK_SAMPLE_RATE) {
+            return false;
+        }
+        checkSampled.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 单条检查事件，调用方需先通过 sampleCheck
+     */
+    void check(String aliUid, String instanceId, String outcome, long startNanos) {
+        JSONObject event = new JSONObject(true);
+        event.put("event", "check");
+        event.put("aliuid", aliUid);
+        event.put("instanceid", instanceId);
+        event.put("outcome", outcome);
+        event.put("micros", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        events.info(event.toJSONString());
+    }
+
+    /**
+     * 批量检查事件，每批一行，不采样
+     */
+    void checkBatch(int items, int statusFiles, String outcome, long startNanos) {
+        if (!events.isInfoEnabled()) {
+            return;
+        }
+        JSONObject event = new JSONObject(true);
+        event.put("event", "checkBatch");
+        event.put("items", items);
+        event.put("statusFiles", statusFiles);
+        event.put("outcome", outcome);
+        event.put("micros", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        events.info(event.toJSONString());
+    }
+
+    /**
+     * 生命周期回调事件：全部请求参数（token 脱敏）与响应内容（密码脱敏）
+     */
+    void lifecycle(String action, HttpServletRequest request, String response, long startNanos) {
+        if (!events.isInfoEnabled()) {
+            return;
+        }
+        JSONObject params = new JSONObject(true);
+        for (Map.Entry<String, String[]> entry : request.getParameterMap().entrySet()) {
+            String[] values = entry.getValue();
+            Object value = "token".equals(entry.getKey()) ? MASKED
+                    : values.length == 1 ? values[0] : values;
+            params.put(entry.getKey(), value);
+        }
+        JSONObject event = new JSONObject(true);
+        event.put("event", "lifecycle");
+        event.put("action", action);
+        event.put("remote", request.getRemoteAddr());
+        event.put("params", params);
+        event.put("response", maskResponse(response));
+        event.put("micros", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        events.info(event.toJSONString());
+    }
+
+    /**
+     * JSON 响应按对象嵌入，password 字段脱敏
+     */
+    private static Object maskResponse(String response) {
+        if (response == null || !response.startsWith("{")) {
+            return response;
+        }
+        try {
+            JSONObject json = JSONObject.parseObject(response);
+            if (json.containsKey("password")) {
+                json.put("password", MASKED);
+            }
+            return json;
+        } catch (RuntimeException e) {
+            return response;
+        }
+    }
+
+    Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("checkSampleRate", CHECK_SAMPLE_RATE);
+        metrics.put("checkEvents", checkEvents.get());
+        metrics.put("checkSampled", checkSampled.get());
+        return metrics;
+    }
+}
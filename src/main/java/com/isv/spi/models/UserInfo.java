@@ -25,6 +25,22 @@ public class UserInfo implements Serializable {
         this.createTime = new Date();
         this.status = "ACTIVE";
     }
+
+    // 复制构造：条件更新在副本上修改，读者持有的记录不会被原地改动
+    public UserInfo(UserInfo other) {
+        this.orderBizId = other.orderBizId;
+        this.aliUid = other.aliUid;
+        this.productCode = other.productCode;
+        this.packageVersion = other.packageVersion;
+        this.orderId = other.orderId;
+        this.instanceId = other.instanceId;
+        this.createTime = other.createTime;
+        this.expiredOn = other.expiredOn;
+        this.trial = other.trial;
+        this.status = other.status;
+        this.virtualUser = other.virtualUser;
+        this.computeNestInstanceId = other.computeNestInstanceId;
+    }
     
     // Getters and Setters
     public String getOrderBizId() { return orderBizId; }
@@ -62,12 +78,17 @@ public class UserInfo implements Serializable {
         return FIXED_PASSWORD;
     }
     
-    // 检查是否过期
+    // 检查是否过期（直接比较毫秒数，不创建 Date 对象）
     public boolean isExpired() {
+        return isExpiredAt(System.currentTimeMillis());
+    }
+
+    // 检查在指定时刻是否已过期
+    public boolean isExpiredAt(long nowMillis) {
         if (expiredOn == null) {
             return false;
         }
-        return new Date().after(expiredOn);
+        return nowMillis > expiredOn.getTime();
     }
     
     // 检查是否有效
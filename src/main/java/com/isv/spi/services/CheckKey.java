@@ -0,0 +1,65 @@
+package com.isv.spi.services;
+
+/**
+ * /isv/check 结果缓存与并发合并使用的 (aliuid, instanceid) 键，不拼接字符串。
+ * 缓存查询用线程本地的探测键（probe），命中路径不分配对象；写入缓存和并发合并使用新建的键，之后不再修改。
+ */
+public final class CheckKey {
+
+    private static final ThreadLocal<CheckKey> PROBE = ThreadLocal.withInitial(CheckKey::new);
+
+    private String aliUid;
+    private String instanceId;
+    private int hash;
+
+    private CheckKey() {
+    }
+
+    public CheckKey(String aliUid, String instanceId) {
+        set(aliUid, instanceId);
+    }
+
+    /**
+     * 当前线程复用的探测键，只用于查询，不能作为 key 写入任何集合
+     */
+    static CheckKey probe(String aliUid, String instanceId) {
+        return PROBE.get().set(aliUid, instanceId);
+    }
+
+    private CheckKey set(String aliUid, String instanceId) {
+        this.aliUid = aliUid;
+        this.instanceId = instanceId;
+        this.hash = 31 * aliUid.hashCode() + instanceId.hashCode();
+        return this;
+    }
+
+    public String getAliUid() {
+        return aliUid;
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CheckKey)) {
+            return false;
+        }
+        CheckKey other = (CheckKey) o;
+        return hash == other.hash && aliUid.equals(other.aliUid) && instanceId.equals(other.instanceId);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return aliUid + "/" + instanceId;
+    }
+}
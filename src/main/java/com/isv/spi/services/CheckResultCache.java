@@ -0,0 +1,303 @@
+package com.isv.spi.services;
+
+import com.isv.spi.models.UserInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * /isv/check 结果缓存，按 (aliuid, instanceid) 缓存有效/无效结果
+ * 有效结果的过期时间不超过订单的 expiredOn；记录的新增、续费、过期、释放等变更事件
+ * 按 aliUid、computeNestInstanceId、orderBizId 精确失效相关条目，不清空整个缓存；
+ * 加载期间的失效也按标签判断，只丢弃与变更记录相关的加载结果，只锁定持有相关条目的分段。
+ * 容量按分段 LRU 淘汰。键为 CheckKey，命中路径使用线程本地探测键，不分配对象。
+ */
+@Service
+public class CheckResultCache implements UserChangeListener {
+    private static final Logger logger = LoggerFactory.getLogger(CheckResultCache.class);
+
+    // 最大条目数，0 表示关闭缓存
+    private static final int MAX_ENTRIES = Integer.getInteger("isv.checkCache.maxEntries", 100000);
+    // 有效结果 TTL
+    private static final long POSITIVE_TTL_MS = TimeUnit.SECONDS.toMillis(
+            Long.getLong("isv.checkCache.positiveTtlSeconds", 60));
+    // 无效结果 TTL（无效结果可能因新订单变为有效，TTL 较短）
+    private static final long NEGATIVE_TTL_MS = TimeUnit.SECONDS.toMillis(
+            Long.getLong("isv.checkCache.negativeTtlSeconds", 5));
+    private static final int SEGMENTS = 16;
+    // 失效时间戳按标签哈希分槽，槽冲突只会多丢弃个别加载结果
+    private static final int TAG_STRIPES = 4096;
+
+    private static final String TAG_ALI_UID = "a:";
+    private static final String TAG_INSTANCE = "i:";
+    private static final String TAG_ORDER = "o:";
+
+    private static final class Entry {
+        final boolean valid;
+        final long expiresAt;
+        final String[] tags;
+
+        Entry(boolean valid, long expiresAt, String[] tags) {
+            this.valid = valid;
+            this.expiresAt = expiresAt;
+            this.tags = tags;
+        }
+    }
+
+    /**
+     * 分段：按访问顺序排列的条目 + 失效标签到条目键的反向索引，由段自身的监视器保护。
+     * 反向索引可在不加锁时查询某标签是否存在，失效时据此跳过无关分段
+     */
+    private static final class Segment {
+        final int capacity;
+        final LinkedHashMap<CheckKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        final Map<String, Set<CheckKey>> keysByTag = new ConcurrentHashMap<>();
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void link(CheckKey key, Entry entry) {
+            for (String tag : entry.tags) {
+                keysByTag.computeIfAbsent(tag, t -> new HashSet<>()).add(key);
+            }
+        }
+
+        void unlink(CheckKey key, Entry entry) {
+            for (String tag : entry.tags) {
+                Set<CheckKey> keys = keysByTag.get(tag);
+                if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                    keysByTag.remove(tag);
+                }
+            }
+        }
+
+        Entry remove(CheckKey key) {
+            Entry entry = entries.remove(key);
+            if (entry != null) {
+                unlink(key, entry);
+            }
+            return entry;
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    // 每次失效递增的时钟，beginLoad 返回当前值作为加载令牌
+    private final AtomicLong invalidationClock = new AtomicLong();
+    // 各标签槽最近一次失效的时钟值；条目任一标签的值大于加载令牌，说明加载期间相关记录发生过变更
+    private final AtomicLongArray tagInvalidatedAt = new AtomicLongArray(TAG_STRIPES);
+
+    // 统计
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong expiredMisses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong staleLoadsDropped = new AtomicLong();
+
+    @Autowired
+    public CheckResultCache(StorageService storageService) {
+        int perSegment = Math.max(1, (MAX_ENTRIES + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+        storageService.addUserChangeListener(this);
+        logger.info("检查结果缓存: 最大 {} 条, 有效结果 TTL {} ms, 无效结果 TTL {} ms",
+                MAX_ENTRIES, POSITIVE_TTL_MS, NEGATIVE_TTL_MS);
+    }
+
+    public boolean isEnabled() {
+        return MAX_ENTRIES > 0;
+    }
+
+    private Segment segmentFor(CheckKey key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    /**
+     * 查询缓存，未命中或已过期返回 null；使用线程本地探测键，不分配对象
+     */
+    public Boolean get(String aliUid, String instanceId) {
+        if (!isEnabled()) {
+            return null;
+        }
+        CheckKey key = CheckKey.probe(aliUid, instanceId);
+        Segment segment = segmentFor(key);
+        long now = System.currentTimeMillis();
+        synchronized (segment) {
+            Entry entry = segment.entries.get(key);
+            if (entry != null) {
+                if (now < entry.expiresAt) {
+                    hits.incrementAndGet();
+                    return entry.valid;
+                }
+                segment.remove(key);
+                expiredMisses.incrementAndGet();
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    private static int tagStripe(String tag) {
+        int h = tag.hashCode();
+        h ^= (h >>> 16);
+        return h & (TAG_STRIPES - 1);
+    }
+
+    /**
+     * 开始加载前调用，返回的令牌交给 put，用于丢弃加载期间相关记录已被失效的结果
+     */
+    public long beginLoad() {
+        return invalidationClock.get();
+    }
+
+    /**
+     * 写入检查结果；key 写入后不能再修改（不能传探测键），access 为判定有效所依据的订单，无效结果传 null
+     */
+    public void put(long loadToken, CheckKey key, EffectiveAccess access) {
+        if (!isEnabled()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        boolean valid = access != null;
+        long expiresAt;
+        String[] tags;
+        if (valid) {
+            // 有效期截止时间（含）之后不再命中
+            expiresAt = Math.min(now + POSITIVE_TTL_MS, access.getValidUntil());
+            tags = new String[] {TAG_ALI_UID + key.getAliUid(), TAG_INSTANCE + key.getInstanceId(),
+                    TAG_ORDER + access.getOrderBizId()};
+        } else {
+            expiresAt = now + NEGATIVE_TTL_MS;
+            tags = new String[] {TAG_ALI_UID + key.getAliUid(), TAG_INSTANCE + key.getInstanceId()};
+        }
+        if (expiresAt <= now) {
+            return;
+        }
+
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.remove(key);
+            Entry entry = new Entry(valid, expiresAt, tags);
+            segment.entries.put(key, entry);
+            // 先登记标签再检查失效时间戳（失效的顺序相反）：失效要么在这里被看到，要么能在索引中找到本条目并删除
+            segment.link(key, entry);
+            for (String tag : tags) {
+                if (tagInvalidatedAt.get(tagStripe(tag)) > loadToken) {
+                    segment.remove(key);
+                    staleLoadsDropped.incrementAndGet();
+                    return;
+                }
+            }
+            if (segment.entries.size() > segment.capacity) {
+                Iterator<Map.Entry<CheckKey, Entry>> eldest = segment.entries.entrySet().iterator();
+                Map.Entry<CheckKey, Entry> victim = eldest.next();
+                eldest.remove();
+                segment.unlink(victim.getKey(), victim.getValue());
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public void onUserSaved(UserInfo userInfo) {
+        invalidate(userInfo);
+    }
+
+    @Override
+    public void onUserDeleted(UserInfo userInfo) {
+        invalidate(userInfo);
+    }
+
+    /**
+     * 失效与该记录相关的条目：同 aliUid 或同计算巢实例 ID 的结果，以及依据该订单得出的有效结果。
+     * 先推进相关标签的失效时间戳，再只锁定索引中持有这些标签的分段删除条目
+     */
+    private void invalidate(UserInfo userInfo) {
+        if (!isEnabled()) {
+            return;
+        }
+        String[] tags = {
+                userInfo.getAliUid() != null ? TAG_ALI_UID + userInfo.getAliUid() : null,
+                userInfo.getComputeNestInstanceId() != null
+                        ? TAG_INSTANCE + userInfo.getComputeNestInstanceId() : null,
+                TAG_ORDER + userInfo.getOrderBizId()
+        };
+        long stamp = invalidationClock.incrementAndGet();
+        for (String tag : tags) {
+            if (tag != null) {
+                tagInvalidatedAt.accumulateAndGet(tagStripe(tag), stamp, Math::max);
+            }
+        }
+        for (Segment segment : segments) {
+            if (!holdsAny(segment, tags)) {
+                continue;
+            }
+            synchronized (segment) {
+                for (String tag : tags) {
+                    if (tag == null) {
+                        continue;
+                    }
+                    Set<CheckKey> keys = segment.keysByTag.get(tag);
+                    if (keys == null) {
+                        continue;
+                    }
+                    for (CheckKey key : keys.toArray(new CheckKey[0])) {
+                        if (segment.remove(key) != null) {
+                            invalidations.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean holdsAny(Segment segment, String[] tags) {
+        for (String tag : tags) {
+            if (tag != null && segment.keysByTag.containsKey(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 缓存统计
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        metrics.put("enabled", isEnabled());
+        metrics.put("size", size);
+        metrics.put("maxEntries", MAX_ENTRIES);
+        metrics.put("hits", hitCount);
+        metrics.put("misses", misses.get());
+        metrics.put("hitRate", lookups == 0 ? 0.0 : (double) hitCount / lookups);
+        metrics.put("expiredMisses", expiredMisses.get());
+        metrics.put("evictions", evictions.get());
+        metrics.put("invalidations", invalidations.get());
+        metrics.put("staleLoadsDropped", staleLoadsDropped.get());
+        return metrics;
+    }
+}
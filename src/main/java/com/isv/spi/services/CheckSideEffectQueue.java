@@ -0,0 +1,164 @@
+package com.isv.spi.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Service;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * /isv/check 副作用后台队列：计算巢实例关联更新、虚拟用户 aliUid 更新、状态文件写入都不在请求线程上执行
+ * 按 key 合并：同一 key 尚未执行的任务被新任务替换（保留原排队位置），只执行最新的一次。
+ * 队列满时由调用线程直接执行，不丢弃任务。
+ * 任务会调用存储与状态服务，关闭时需先于它们排空，因此显式声明依赖。
+ */
+@Service
+@DependsOn({"storageService", "instanceStatusService"})
+public class CheckSideEffectQueue implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(CheckSideEffectQueue.class);
+
+    // 排队任务上限
+    private static final int MAX_PENDING = Integer.getInteger("isv.check.sideEffectQueueSize", 10000);
+
+    private final LinkedHashMap<String, Runnable> pending = new LinkedHashMap<>();
+    private volatile boolean running = true;
+    private final Thread worker;
+
+    // 统计
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong merged = new AtomicLong();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong callerRuns = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile int maxDepth;
+
+    public CheckSideEffectQueue() {
+        worker = new Thread(this::runLoop, "check-side-effects");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * 提交任务；同 key 的排队任务被替换
+     */
+    public void submit(String key, Runnable task) {
+        submitted.incrementAndGet();
+        synchronized (pending) {
+            if (running && (pending.size() < MAX_PENDING || pending.containsKey(key))) {
+                if (pending.put(key, task) != null) {
+                    merged.incrementAndGet();
+                } else {
+                    pending.notify();
+                }
+                if (pending.size() > maxDepth) {
+                    maxDepth = pending.size();
+                }
+                return;
+            }
+        }
+        // 队列已满或已关闭：在调用线程执行
+        callerRuns.incrementAndGet();
+        execute(key, task);
+    }
+
+    private void runLoop() {
+        while (running) {
+            List<Map.Entry<String, Runnable>> batch;
+            try {
+                batch = take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            for (Map.Entry<String, Runnable> entry : batch) {
+                execute(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * 取出当前排队的全部任务
+     */
+    private List<Map.Entry<String, Runnable>> take() throws InterruptedException {
+        synchronized (pending) {
+            while (pending.isEmpty() && running) {
+                pending.wait();
+            }
+            return drain();
+        }
+    }
+
+    /**
+     * 复制并清空排队任务（需持有 pending 的监视器）
+     */
+    private List<Map.Entry<String, Runnable>> drain() {
+        List<Map.Entry<String, Runnable>> batch = new ArrayList<>(pending.size());
+        for (Map.Entry<String, Runnable> entry : pending.entrySet()) {
+            batch.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+        }
+        pending.clear();
+        return batch;
+    }
+
+    private void execute(String key, Runnable task) {
+        try {
+            task.run();
+            executed.incrementAndGet();
+        } catch (RuntimeException e) {
+            failures.incrementAndGet();
+            logger.error("检查副作用执行失败: {} - {}", key, e.getMessage(), e);
+        }
+    }
+
+    public int getDepth() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * 队列统计
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("depth", getDepth());
+        metrics.put("maxDepth", maxDepth);
+        metrics.put("submitted", submitted.get());
+        metrics.put("merged", merged.get());
+        metrics.put("executed", executed.get());
+        metrics.put("callerRuns", callerRuns.get());
+        metrics.put("failures", failures.get());
+        return metrics;
+    }
+
+    /**
+     * 关闭时执行完剩余任务
+     */
+    @Override
+    public void destroy() {
+        List<Map.Entry<String, Runnable>> remaining;
+        synchronized (pending) {
+            running = false;
+            pending.notifyAll();
+        }
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (pending) {
+            remaining = drain();
+        }
+        for (Map.Entry<String, Runnable> entry : remaining) {
+            execute(entry.getKey(), entry.getValue());
+        }
+    }
+}
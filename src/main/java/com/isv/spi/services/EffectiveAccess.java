@@ -0,0 +1,40 @@
+package com.isv.spi.services;
+
+/**
+ * 有效访问判定：某个 aliUid 或计算巢实例当前生效（有效期最晚）的 ACTIVE 订单及其有效截止时间。
+ * 不可变，由 EffectiveAccessView 在记录变更时整体替换。
+ */
+public final class EffectiveAccess {
+    private final String orderBizId;
+    private final String aliUid;
+    private final String computeNestInstanceId;
+    private final boolean virtualUser;
+    // 有效截止时间（含），未设置过期时间为 Long.MAX_VALUE
+    private final long validUntil;
+
+    EffectiveAccess(String orderBizId, String aliUid, String computeNestInstanceId,
+                    boolean virtualUser, long validUntil) {
+        this.orderBizId = orderBizId;
+        this.aliUid = aliUid;
+        this.computeNestInstanceId = computeNestInstanceId;
+        this.virtualUser = virtualUser;
+        this.validUntil = validUntil;
+    }
+
+    public String getOrderBizId() { return orderBizId; }
+
+    public String getAliUid() { return aliUid; }
+
+    public String getComputeNestInstanceId() { return computeNestInstanceId; }
+
+    public boolean isVirtualUser() { return virtualUser; }
+
+    public long getValidUntil() { return validUntil; }
+
+    /**
+     * 与 UserInfo.isValid 一致：当前时间不晚于 expiredOn 即有效
+     */
+    public boolean isValidAt(long nowMillis) {
+        return nowMillis <= validUntil;
+    }
+}
@@ -0,0 +1,158 @@
+package com.isv.spi.services;
+
+import com.isv.spi.models.UserInfo;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * 有效访问物化视图：aliUid -> 有效访问、computeNestInstanceId -> 有效访问
+ * 每个键下保存所有 ACTIVE 订单的贡献，并预先算出有效期最晚的一项，检查时只需一次哈希查找和一次时间比较。
+ * 记录变更后按 orderBizId 刷新：在条带锁内从存储重新读取最新记录，事件乱序时也会收敛到最新状态。
+ * 键下的成员数组不可变，通过 compute 整体替换，读取无需加锁。
+ */
+final class EffectiveAccessView {
+
+    private static final int STRIPES = 64;
+
+    /**
+     * 某个键下的全部贡献及其中有效期最晚的一项
+     */
+    private static final class Group {
+        final EffectiveAccess[] members;
+        final EffectiveAccess best;
+
+        Group(EffectiveAccess[] members) {
+            this.members = members;
+            EffectiveAccess latest = members[0];
+            for (int i = 1; i < members.length; i++) {
+                if (members[i].getValidUntil() > latest.getValidUntil()) {
+                    latest = members[i];
+                }
+            }
+            this.best = latest;
+        }
+    }
+
+    private final Function<String, UserInfo> loader;
+    private final Object[] stripes = new Object[STRIPES];
+    private final Map<String, EffectiveAccess> byOrderBizId = new ConcurrentHashMap<>();
+    private final Map<String, Group> byAliUid = new ConcurrentHashMap<>();
+    private final Map<String, Group> byComputeNestInstanceId = new ConcurrentHashMap<>();
+    private volatile boolean ready;
+
+    EffectiveAccessView(Function<String, UserInfo> loader) {
+        this.loader = loader;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    boolean isReady() {
+        return ready;
+    }
+
+    void markReady() {
+        ready = true;
+    }
+
+    int size() {
+        return byOrderBizId.size();
+    }
+
+    EffectiveAccess getByAliUid(String aliUid) {
+        Group group = aliUid != null ? byAliUid.get(aliUid) : null;
+        return group != null ? group.best : null;
+    }
+
+    EffectiveAccess getByComputeNestInstanceId(String computeNestInstanceId) {
+        Group group = computeNestInstanceId != null ? byComputeNestInstanceId.get(computeNestInstanceId) : null;
+        return group != null ? group.best : null;
+    }
+
+    /**
+     * 记录写入或删除后调用，按存储中的最新记录更新视图
+     */
+    void refresh(String orderBizId) {
+        synchronized (stripes[(orderBizId.hashCode() & 0x7fffffff) % STRIPES]) {
+            EffectiveAccess next = toAccess(loader.apply(orderBizId));
+            EffectiveAccess previous = next != null
+                    ? byOrderBizId.put(orderBizId, next)
+                    : byOrderBizId.remove(orderBizId);
+            if (previous == null && next == null) {
+                return;
+            }
+            // 先加入新键再移除旧键：切换瞬间宁可短暂多放行，也不出现误判为无效
+            replace(byAliUid, previous != null ? previous.getAliUid() : null,
+                    next != null ? next.getAliUid() : null, orderBizId, next);
+            replace(byComputeNestInstanceId, previous != null ? previous.getComputeNestInstanceId() : null,
+                    next != null ? next.getComputeNestInstanceId() : null, orderBizId, next);
+        }
+    }
+
+    private static void replace(Map<String, Group> groups, String oldKey, String newKey,
+                                String orderBizId, EffectiveAccess next) {
+        if (newKey != null) {
+            groups.compute(newKey, (k, group) -> with(group, orderBizId, next));
+        }
+        if (oldKey != null && !Objects.equals(oldKey, newKey)) {
+            groups.computeIfPresent(oldKey, (k, group) -> with(group, orderBizId, null));
+        }
+    }
+
+    /**
+     * 返回替换（access 为 null 时移除）orderBizId 的贡献后的新分组，分组为空时返回 null 以删除键
+     */
+    private static Group with(Group group, String orderBizId, EffectiveAccess access) {
+        EffectiveAccess[] members = group != null ? group.members : new EffectiveAccess[0];
+        int index = -1;
+        for (int i = 0; i < members.length; i++) {
+            if (members[i].getOrderBizId().equals(orderBizId)) {
+                index = i;
+                break;
+            }
+        }
+        EffectiveAccess[] updated;
+        if (access != null) {
+            if (index >= 0) {
+                updated = members.clone();
+                updated[index] = access;
+            } else {
+                updated = new EffectiveAccess[members.length + 1];
+                System.arraycopy(members, 0, updated, 0, members.length);
+                updated[members.length] = access;
+            }
+        } else {
+            if (index < 0) {
+                return group;
+            }
+            if (members.length == 1) {
+                return null;
+            }
+            updated = new EffectiveAccess[members.length - 1];
+            System.arraycopy(members, 0, updated, 0, index);
+            System.arraycopy(members, index + 1, updated, index, members.length - index - 1);
+        }
+        return new Group(updated);
+    }
+
+    /**
+     * 只有 ACTIVE 订单贡献有效访问
+     */
+    static EffectiveAccess toAccess(UserInfo userInfo) {
+        if (userInfo == null || !"ACTIVE".equals(userInfo.getStatus())) {
+            return null;
+        }
+        long validUntil = userInfo.getExpiredOn() != null ? userInfo.getExpiredOn().getTime() : Long.MAX_VALUE;
+        return new EffectiveAccess(userInfo.getOrderBizId(), normalize(userInfo.getAliUid()),
+                normalize(userInfo.getComputeNestInstanceId()),
+                userInfo.getAliUid() != null && userInfo.getAliUid().startsWith(StorageService.VIRTUAL_ALIUID_PREFIX),
+                validUntil);
+    }
+
+    private static String normalize(String key) {
+        return key == null || key.trim().isEmpty() ? null : key;
+    }
+}
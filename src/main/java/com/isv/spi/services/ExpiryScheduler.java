@@ -0,0 +1,361 @@
+package com.isv.spi.services;
+
+import com.isv.spi.models.UserInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 到期调度：按 expiredOn 建立优先队列，到期时主动把 ACTIVE 实例标记为 EXPIRED、
+ * 更新计算巢实例状态文件，并把同一批到期的状态变化合并为一次 nginx 重载，
+ * 不再依赖 /isv/check 或 expiredInstance 回调被动发现过期。
+ */
+@Service
+public class ExpiryScheduler implements UserChangeListener, DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(ExpiryScheduler.class);
+
+    // 单批最多处理的到期记录数
+    private static final int MAX_BATCH = 1000;
+    // 最长等待间隔，防止系统时钟调整后错过到期时间
+    private static final long MAX_WAIT_MS = TimeUnit.MINUTES.toMillis(1);
+    // 合并重载使用的 key
+    private static final String RELOAD_KEY = "expiry";
+
+    private final StorageService storageService;
+    private final InstanceStatusService instanceStatusService;
+
+    /**
+     * 队列中的到期项；记录续费或删除后旧项不从堆中移除，出队时与 deadlines 比对后丢弃
+     */
+    private static final class Deadline implements Comparable<Deadline> {
+        final long at;
+        final String orderBizId;
+
+        Deadline(long at, String orderBizId) {
+            this.at = at;
+            this.orderBizId = orderBizId;
+        }
+
+        @Override
+        public int compareTo(Deadline other) {
+            return Long.compare(at, other.at);
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // 以下两个字段由 lock 保护
+    private final PriorityQueue<Deadline> queue = new PriorityQueue<>();
+    private final Map<String, Long> deadlines = new HashMap<>();
+
+    private volatile boolean running = true;
+    private final Thread worker;
+
+    // 统计
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong statusFilesFlipped = new AtomicLong();
+    private final AtomicLong reloadsRequested = new AtomicLong();
+    private final AtomicLong staleSkipped = new AtomicLong();
+    // 锁内重新校验时发现已续费、未标记过期的记录数
+    private final AtomicLong renewedSkipped = new AtomicLong();
+    private volatile long lastLagMillis;
+    private volatile long maxLagMillis;
+    private volatile long lastRunAt;
+
+    @Autowired
+    public ExpiryScheduler(StorageService storageService, InstanceStatusService instanceStatusService) {
+        this.storageService = storageService;
+        this.instanceStatusService = instanceStatusService;
+        storageService.addUserChangeListener(this);
+
+        worker = new Thread(this::runLoop, "expiry-scheduler");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    public void onUserSaved(UserInfo userInfo) {
+        long at = deadlineOf(userInfo);
+        if (at < 0) {
+            cancel(userInfo.getOrderBizId());
+        } else {
+            schedule(userInfo.getOrderBizId(), at, true);
+        }
+    }
+
+    @Override
+    public void onUserDeleted(UserInfo userInfo) {
+        cancel(userInfo.getOrderBizId());
+    }
+
+    /**
+     * 只有 ACTIVE 且设置了过期时间的记录需要调度，否则返回 -1
+     */
+    private static long deadlineOf(UserInfo userInfo) {
+        Date expiredOn = userInfo.getExpiredOn();
+        if (expiredOn == null || !"ACTIVE".equals(userInfo.getStatus())) {
+            return -1;
+        }
+        return expiredOn.getTime();
+    }
+
+    /**
+     * 登记到期时间；replace 为 false 时不覆盖已有登记（启动扫描不覆盖变更事件）
+     */
+    private void schedule(String orderBizId, long at, boolean replace) {
+        lock.lock();
+        try {
+            Long previous = deadlines.get(orderBizId);
+            if (previous != null && (!replace || previous == at)) {
+                return;
+            }
+            deadlines.put(orderBizId, at);
+            Deadline deadline = new Deadline(at, orderBizId);
+            queue.add(deadline);
+            purgeIfBloated();
+            if (queue.peek() == deadline) {
+                changed.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void cancel(String orderBizId) {
+        lock.lock();
+        try {
+            if (deadlines.remove(orderBizId) != null) {
+                purgeIfBloated();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 失效项超过有效项时重建堆，避免频繁续费导致队列无限增长（需持有 lock）
+     */
+    private void purgeIfBloated() {
+        if (queue.size() <= 1024 || queue.size() <= deadlines.size() * 2) {
+            return;
+        }
+        queue.clear();
+        for (Map.Entry<String, Long> entry : deadlines.entrySet()) {
+            queue.add(new Deadline(entry.getValue(), entry.getKey()));
+        }
+    }
+
+    private void runLoop() {
+        // 先登记已有记录，之后只靠变更事件维护
+        seed();
+        while (running) {
+            try {
+                List<Deadline> due = takeDue();
+                if (!due.isEmpty()) {
+                    expire(due);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException e) {
+                logger.error("到期调度线程异常: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    private void seed() {
+        long start = System.currentTimeMillis();
+        int[] count = new int[1];
+        try {
+            storageService.forEachUser(userInfo -> {
+                long at = deadlineOf(userInfo);
+                if (at >= 0) {
+                    schedule(userInfo.getOrderBizId(), at, false);
+                    count[0]++;
+                }
+            });
+        } catch (RuntimeException e) {
+            logger.error("加载到期时间失败: {}", e.getMessage(), e);
+        }
+        logger.info("到期调度已启动，登记 {} 个实例，耗时 {} ms", count[0], System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 等待最早的到期时间，取出所有已到期的有效项
+     */
+    private List<Deadline> takeDue() throws InterruptedException {
+        List<Deadline> due = new ArrayList<>();
+        lock.lock();
+        try {
+            while (running) {
+                Deadline head = queue.peek();
+                if (head == null) {
+                    changed.await(MAX_WAIT_MS, TimeUnit.MILLISECONDS);
+                    continue;
+                }
+                long now = System.currentTimeMillis();
+                // 与 UserInfo.isExpired 一致：当前时间大于 expiredOn 才算过期
+                if (head.at >= now) {
+                    changed.await(Math.min(head.at - now + 1, MAX_WAIT_MS), TimeUnit.MILLISECONDS);
+                    continue;
+                }
+                while (head != null && head.at < now && due.size() < MAX_BATCH) {
+                    queue.poll();
+                    Long current = deadlines.get(head.orderBizId);
+                    if (current != null && current == head.at) {
+                        deadlines.remove(head.orderBizId);
+                        due.add(head);
+                    } else {
+                        staleSkipped.incrementAndGet();
+                    }
+                    head = queue.peek();
+                }
+                if (!due.isEmpty()) {
+                    break;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return due;
+    }
+
+    /**
+     * 以存储中的最新记录为准标记过期：在记录锁内重新校验并在副本上修改，整批一次写入、一次合并重载。
+     * 校验与写入之间不会插入续费等对同一记录的写入，已续费的记录不会被覆盖为 EXPIRED
+     */
+    private void expire(List<Deadline> due) {
+        long now = System.currentTimeMillis();
+        List<String> candidates = new ArrayList<>(due.size());
+        for (Deadline deadline : due) {
+            UserInfo userInfo = storageService.getUserByOrderBizId(deadline.orderBizId);
+            if (userInfo == null) {
+                continue;
+            }
+            long at = deadlineOf(userInfo);
+            if (at < 0) {
+                continue;
+            }
+            if (!userInfo.isExpiredAt(now)) {
+                // 已续费但变更事件尚未登记，按最新到期时间重新调度
+                schedule(deadline.orderBizId, at, true);
+                continue;
+            }
+            candidates.add(deadline.orderBizId);
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+        // 锁内再次校验：期间续费的记录不满足条件，由续费的变更事件重新调度
+        List<UserInfo> batch = storageService.updateUsersIf(candidates,
+                userInfo -> deadlineOf(userInfo) >= 0 && userInfo.isExpiredAt(now),
+                userInfo -> userInfo.setStatus("EXPIRED"));
+        if (batch.size() < candidates.size()) {
+            renewedSkipped.addAndGet(candidates.size() - batch.size());
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        for (UserInfo userInfo : batch) {
+            long lag = now - userInfo.getExpiredOn().getTime();
+            lastLagMillis = lag;
+            if (lag > maxLagMillis) {
+                maxLagMillis = lag;
+            }
+        }
+        expired.addAndGet(batch.size());
+
+        // 过期订单自身的实例以及同一 aliUid 下的其他实例都可能因此失效，按与对账相同的规则判定
+        Set<String> affected = new LinkedHashSet<>();
+        for (UserInfo userInfo : batch) {
+            String computeNestInstanceId = userInfo.getComputeNestInstanceId();
+            if (computeNestInstanceId != null && !computeNestInstanceId.trim().isEmpty()) {
+                affected.add(computeNestInstanceId);
+            }
+            String aliUid = userInfo.getAliUid();
+            if (aliUid != null && !aliUid.trim().isEmpty()) {
+                affected.addAll(storageService.getComputeNestInstanceIdsByAliUid(aliUid));
+            }
+        }
+        int flipped = 0;
+        int restored = 0;
+        for (String computeNestInstanceId : affected) {
+            // 仍然有效（实例已改关联到其他有效订单、或 aliUid 下还有有效订单）或无法判定时保持原状态
+            if (!Boolean.FALSE.equals(storageService.desiredInstanceStatus(computeNestInstanceId, now))) {
+                continue;
+            }
+            if (instanceStatusService.writeInstanceStatusFile(computeNestInstanceId, false)) {
+                flipped++;
+            }
+            // 续费在上面的检查之后写入了 true 时，上一行可能覆盖了它；续费先保存记录再写文件，重新检查即可恢复
+            if (Boolean.TRUE.equals(storageService.desiredInstanceStatus(computeNestInstanceId, System.currentTimeMillis()))
+                    && instanceStatusService.writeInstanceStatusFile(computeNestInstanceId, true)) {
+                restored++;
+            }
+        }
+        if (flipped + restored > 0) {
+            statusFilesFlipped.addAndGet(flipped);
+            reloadsRequested.incrementAndGet();
+            instanceStatusService.scheduleDelayedReload(RELOAD_KEY, flipped + restored);
+        }
+        lastRunAt = System.currentTimeMillis();
+        logger.info("到期处理完成: {} 个实例标记为过期，{} 个状态文件变为 false", batch.size(), flipped);
+    }
+
+    /**
+     * 到期调度统计
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            metrics.put("scheduled", deadlines.size());
+            metrics.put("queueSize", queue.size());
+            Deadline head = queue.peek();
+            metrics.put("nextDeadline", head != null ? head.at : null);
+        } finally {
+            lock.unlock();
+        }
+        metrics.put("expired", expired.get());
+        metrics.put("statusFilesFlipped", statusFilesFlipped.get());
+        metrics.put("reloadsRequested", reloadsRequested.get());
+        metrics.put("staleSkipped", staleSkipped.get());
+        metrics.put("renewedSkipped", renewedSkipped.get());
+        metrics.put("lastLagMillis", lastLagMillis);
+        metrics.put("maxLagMillis", maxLagMillis);
+        metrics.put("lastRunAt", lastRunAt);
+        return metrics;
+    }
+
+    @Override
+    public void destroy() {
+        running = false;
+        lock.lock();
+        try {
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.isv.spi.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 变更日志的组提交写入器
+ * SYNC:  每条记录单独写入并 fsync，写入完成后返回
+ * GROUP: 并发提交的记录由后台线程合并为一次写入 + 一次 fsync，完成后统一确认
+ * ASYNC: 记录进入队列后立即返回，由后台线程批量写入并 fsync
+ */
+class GroupCommitWriter implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(GroupCommitWriter.class);
+
+    enum Durability { SYNC, GROUP, ASYNC }
+
+    private static final class Pending {
+        final ByteBuffer frame;
+        final CompletableFuture<Void> ack = new CompletableFuture<>();
+
+        Pending(ByteBuffer frame) {
+            this.frame = frame;
+        }
+    }
+
+    private final Path file;
+    private final Durability durability;
+    // 组提交时等待更多记录加入同一批的最长时间
+    private final long maxDelayNanos;
+    private final int maxBatch;
+
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    // 保护 channel 的写入与截断
+    private final Object ioLock = new Object();
+    private FileChannel channel;
+    // 截断失败、文件末尾残留半帧：之后的写入会在重放时被丢弃，轮转到新文件之前拒绝写入
+    private boolean torn;
+    private Thread flusher;
+    private volatile boolean running;
+
+    // 统计
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong fsyncNanos = new AtomicLong();
+    private final AtomicLong maxBatchSeen = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    // 当前日志文件已写入的字节数（轮转后清零）
+    private final AtomicLong currentFileBytes = new AtomicLong();
+
+    GroupCommitWriter(Path file, Durability durability, long maxDelayMillis, int maxBatch) {
+        this.file = file;
+        this.durability = durability;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.maxBatch = Math.max(1, maxBatch);
+    }
+
+    Durability getDurability() {
+        return durability;
+    }
+
+    void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        currentFileBytes.set(channel.size());
+        if (durability != Durability.SYNC) {
+            running = true;
+            flusher = new Thread(this::flushLoop, "user-log-group-commit");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    /**
+     * 提交一条已编码的记录，返回的 future 在记录落盘后完成
+     */
+    CompletableFuture<Void> submit(ByteBuffer frame) {
+        Pending pending = new Pending(frame);
+        if (durability == Durability.SYNC || !running) {
+            List<Pending> batch = new ArrayList<>(1);
+            batch.add(pending);
+            writeBatch(batch);
+        } else {
+            queue.add(pending);
+        }
+        return pending.ack;
+    }
+
+    private void flushLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - batch.size());
+                if (durability == Durability.GROUP && maxDelayNanos > 0) {
+                    long deadline = System.nanoTime() + maxDelayNanos;
+                    while (batch.size() < maxBatch) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                        queue.drainTo(batch, maxBatch - batch.size());
+                    }
+                }
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 一次聚合写入 + 一次 fsync，然后确认整批记录。
+     * 写入或 fsync 失败时把文件截断回本批之前的长度：否则残留的半帧会让重放在此处停止，丢掉之后已确认的记录
+     */
+    private void writeBatch(List<Pending> batch) {
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        long size = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = batch.get(i).frame;
+            size += buffers[i].remaining();
+        }
+        try {
+            synchronized (ioLock) {
+                if (torn) {
+                    throw new IOException("变更日志末尾残留不完整的记录，等待压缩轮转后恢复写入");
+                }
+                long goodSize = channel.size();
+                try {
+                    long written = 0;
+                    while (written < size) {
+                        written += channel.write(buffers);
+                    }
+                    long start = System.nanoTime();
+                    channel.force(false);
+                    fsyncNanos.addAndGet(System.nanoTime() - start);
+                } catch (IOException e) {
+                    truncateTo(goodSize);
+                    throw e;
+                }
+            }
+            records.addAndGet(buffers.length);
+            batches.incrementAndGet();
+            bytesWritten.addAndGet(size);
+            currentFileBytes.addAndGet(size);
+            maxBatchSeen.accumulateAndGet(buffers.length, Math::max);
+            for (Pending pending : batch) {
+                pending.ack.complete(null);
+            }
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            logger.error("写入变更日志失败: {}", e.getMessage(), e);
+            for (Pending pending : batch) {
+                pending.ack.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * 截断到最后一次成功写入的位置（调用方持有 ioLock）
+     */
+    private void truncateTo(long goodSize) {
+        try {
+            channel.truncate(goodSize);
+            channel.force(false);
+        } catch (IOException e) {
+            torn = true;
+            logger.error("截断变更日志失败，文件末尾可能残留不完整的记录: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 轮转日志：当前文件落盘后改名为 target，之后的记录（包括仍在队列中的）写入新文件
+     */
+    void rotate(Path target) throws IOException {
+        synchronized (ioLock) {
+            channel.force(false);
+            channel.close();
+            Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            currentFileBytes.set(0);
+            torn = false;
+        }
+    }
+
+    long getCurrentFileBytes() {
+        return currentFileBytes.get();
+    }
+
+    Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long batchCount = batches.get();
+        metrics.put("durability", durability.name());
+        metrics.put("records", records.get());
+        metrics.put("batches", batchCount);
+        metrics.put("avgBatchSize", batchCount == 0 ? 0 : (double) records.get() / batchCount);
+        metrics.put("maxBatchSize", maxBatchSeen.get());
+        metrics.put("avgFsyncMicros", batchCount == 0 ? 0 : fsyncNanos.get() / batchCount / 1000);
+        metrics.put("bytesWritten", bytesWritten.get());
+        metrics.put("pending", queue.size());
+        metrics.put("failures", failures.get());
+        return metrics;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (flusher != null) {
+            try {
+                flusher.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
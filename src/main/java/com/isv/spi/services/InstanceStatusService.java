@@ -0,0 +1,400 @@
+package com.isv.spi.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * 计算巢实例状态文件与 nginx 重载
+ * files 模式（默认）：状态文件 /etc/nginx/conf.d/instance_status/<实例ID>.conf 内容为 "<实例ID> true|false;"，由 StatusFileWriter 在后台写出；
+ * map 模式（isv.status.outputMode=map）：全部状态保存在内存有序表中，重载前渲染为一个排序的汇总文件并原子替换。
+ * 状态变化后由全局的 ReloadCoalescer 合并所有实例的变化，同一时刻最多一次 nginx 重载。
+ */
+@Service
+public class InstanceStatusService implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(InstanceStatusService.class);
+
+    static final String STATUS_DIR = StorageService.withTrailingSlash(
+            System.getProperty("isv.status.dir", "/etc/nginx/conf.d/instance_status/"));
+    private static final String RELOAD_SCRIPT = System.getProperty("isv.reload.script", "/usr/local/bin/nginx-reload-signal");
+    // 实例ID最大长度
+    private static final int MAX_INSTANCE_ID_LENGTH = 128;
+
+    // 缓存上次的状态，避免频繁重载
+    private final Map<String, Boolean> statusCache = new ConcurrentHashMap<>();
+
+    // 每实例状态文件后台写入
+    private final StatusFileWriter fileWriter = new StatusFileWriter(STATUS_DIR, this::onFileApplied);
+
+    // 状态落盘后的回调（对账使用）：实例ID -> 已写出的状态，null 表示已删除
+    private volatile BiConsumer<String, Boolean> statusListener;
+
+    // 全局重载合并
+    private final ReloadCoalescer reloads = new ReloadCoalescer(this::triggerNginxReload);
+
+    // map 模式：实例ID -> 状态与已渲染的状态行（按实例ID排序），有变化时标记为待写出
+    private final ConcurrentSkipListMap<String, MapLine> mapTable = new ConcurrentSkipListMap<>();
+    private final AtomicBoolean mapDirty = new AtomicBoolean();
+    private final Object mapWriteLock = new Object();
+
+    private static final class MapLine {
+        final boolean valid;
+        final byte[] bytes;
+
+        MapLine(String instanceId, boolean valid) {
+            this.valid = valid;
+            this.bytes = StatusFiles.renderLine(instanceId, valid);
+        }
+    }
+
+    // 启动预热统计
+    private volatile int warmedEntries;
+    private volatile long warmupMillis;
+
+    public InstanceStatusService() {
+        if (StatusFiles.MAP_MODE) {
+            loadMapTable();
+        } else {
+            warmStatusCache();
+        }
+    }
+
+    /**
+     * files 模式启动：并行读取已有状态文件预热状态缓存，重启后首次检查状态未变化时不再重写文件、触发重载
+     */
+    private void warmStatusCache() {
+        long start = System.currentTimeMillis();
+        Map<String, Boolean> statuses = StatusFiles.readDirectory(new File(STATUS_DIR));
+        statusCache.putAll(statuses);
+        warmedEntries = statuses.size();
+        warmupMillis = System.currentTimeMillis() - start;
+        logger.info("状态缓存预热完成: {} 个实例，耗时 {} ms", warmedEntries, warmupMillis);
+    }
+
+    /**
+     * map 模式启动：读取已有汇总文件；不存在时从每实例文件目录迁移并立即写出汇总文件
+     */
+    private void loadMapTable() {
+        long start = System.currentTimeMillis();
+        try {
+            boolean migrate = !Files.exists(StatusFiles.MAP_FILE);
+            Map<String, Boolean> statuses = StatusFiles.readCurrent();
+            for (Map.Entry<String, Boolean> entry : statuses.entrySet()) {
+                mapTable.put(entry.getKey(), new MapLine(entry.getKey(), entry.getValue()));
+                statusCache.put(entry.getKey(), entry.getValue());
+            }
+            warmedEntries = statuses.size();
+            warmupMillis = System.currentTimeMillis() - start;
+            if (migrate) {
+                mapDirty.set(true);
+                flushMapFile();
+                logger.info("已将 {} 个每实例状态文件迁移到汇总文件 {}，nginx 配置需改为 include 该文件",
+                        statuses.size(), StatusFiles.MAP_FILE);
+            }
+            logger.info("状态汇总表加载完成: {} 个实例，耗时 {} ms", mapTable.size(), System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            logger.error("加载状态汇总文件失败: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * map 模式：把内存表写出为汇总文件（无变化时跳过）
+     */
+    public void flushMapFile() {
+        if (!StatusFiles.MAP_MODE) {
+            return;
+        }
+        synchronized (mapWriteLock) {
+            // 先清除标记再遍历，遍历期间的新变化会重新标记，由下一次写出处理
+            if (!mapDirty.getAndSet(false)) {
+                return;
+            }
+            long start = System.currentTimeMillis();
+            try {
+                StatusFiles.writeMapFile(StatusFiles.MAP_FILE, () -> mapTable.values().stream().map(line -> line.bytes).iterator());
+                logger.info("写出状态汇总文件: {} 个实例，耗时 {} ms", mapTable.size(), System.currentTimeMillis() - start);
+            } catch (IOException e) {
+                mapDirty.set(true);
+                logger.error("写出状态汇总文件失败: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * 实例ID是否只含 [A-Za-z0-9_-]：实例ID会作为文件名并写入 nginx 配置，含 ;、换行、../ 等字符的一律拒绝
+     */
+    public static boolean isValidInstanceId(String instanceId) {
+        if (instanceId == null || instanceId.isEmpty() || instanceId.length() > MAX_INSTANCE_ID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < instanceId.length(); i++) {
+            char c = instanceId.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '-')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 生成实例状态标记文件，状态变化时延迟触发重载
+     */
+    public void createInstanceStatusFile(String instanceId, boolean isValid) {
+        if (writeInstanceStatusFile(instanceId, isValid)) {
+            // 合并重载：避免短时间内多次重载
+            scheduleDelayedReload(instanceId);
+        }
+    }
+
+    /**
+     * 写入实例状态标记文件但不触发重载，返回状态是否发生变化（由调用方合并重载）；
+     * 文件由后台写线程写出，重载前保证已写出
+     */
+    public boolean writeInstanceStatusFile(String instanceId, boolean isValid) {
+        if (!isValidInstanceId(instanceId)) {
+            logger.warn("实例ID格式不正确，不写入状态文件: {}", instanceId);
+            return false;
+        }
+        // 检查状态是否变化；缓存更新与写入入队在同一实例的 compute 内完成，并发写入同一实例时文件与缓存一致。
+        // compute 内只更新内存与入队，文件 I/O 和回调在 compute 之外执行，不持有 ConcurrentHashMap 的桶锁
+        boolean[] changed = new boolean[1];
+        statusCache.compute(instanceId, (id, oldStatus) -> {
+            if (oldStatus != null && oldStatus == isValid) {
+                return oldStatus;
+            }
+            changed[0] = true;
+            if (StatusFiles.MAP_MODE) {
+                // 只更新内存表，重载前统一写出汇总文件
+                mapTable.put(id, new MapLine(id, isValid));
+                mapDirty.set(true);
+            } else {
+                // 写文件入队，同一实例排队中的写入只保留最新一次
+                fileWriter.write(id, isValid);
+            }
+            return isValid;
+        });
+        if (!changed[0]) {
+            logger.debug("状态未变化，跳过更新: {}", instanceId);
+            return false;
+        }
+        if (StatusFiles.MAP_MODE) {
+            notifyApplied(instanceId, isValid);
+        } else {
+            fileWriter.drainIfBacklogged();
+        }
+        logger.info("状态变化，更新{}: {} = {}", StatusFiles.MAP_MODE ? "汇总表" : "文件", instanceId, isValid);
+        return true;
+    }
+
+    /**
+     * 批量写入状态文件，整批的变化只触发一次重载，返回发生变化的文件数
+     */
+    public int applyStatusBatch(Map<String, Boolean> statuses) {
+        int changed = 0;
+        for (Map.Entry<String, Boolean> entry : statuses.entrySet()) {
+            if (writeInstanceStatusFile(entry.getKey(), entry.getValue())) {
+                changed++;
+            }
+        }
+        if (changed > 0) {
+            logger.info("批量更新状态文件: {} 个变化，合并为一次重载", changed);
+            scheduleDelayedReload("batch", changed);
+        }
+        return changed;
+    }
+
+    /**
+     * 删除实例状态标记文件
+     */
+    public void deleteInstanceStatusFile(String instanceId) {
+        if (!isValidInstanceId(instanceId)) {
+            logger.warn("实例ID格式不正确，不删除状态文件: {}", instanceId);
+            return;
+        }
+        try {
+            boolean[] removedFromMap = new boolean[1];
+            statusCache.compute(instanceId, (id, oldStatus) -> {
+                // map 模式下同样删除迁移前遗留的每实例文件
+                fileWriter.delete(id);
+                if (StatusFiles.MAP_MODE && mapTable.remove(id) != null) {
+                    mapDirty.set(true);
+                    removedFromMap[0] = true;
+                }
+                // 从缓存中移除对应记录
+                return null;
+            });
+            if (removedFromMap[0]) {
+                notifyApplied(instanceId, null);
+            }
+            fileWriter.drainIfBacklogged();
+            logger.info("删除实例状态文件并移除缓存: {}", instanceId);
+        } catch (Exception e) {
+            logger.error("删除实例状态文件失败: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 注册状态落盘回调：files 模式在文件写出/删除成功后调用，map 模式在内存表更新后调用（汇总文件写出失败会重试）
+     */
+    public void setStatusListener(BiConsumer<String, Boolean> listener) {
+        this.statusListener = listener;
+    }
+
+    private void onFileApplied(String instanceId, Boolean isValid) {
+        // map 模式下每实例文件只是迁移前的遗留，不代表当前状态
+        if (!StatusFiles.MAP_MODE) {
+            notifyApplied(instanceId, isValid);
+        }
+    }
+
+    private void notifyApplied(String instanceId, Boolean isValid) {
+        BiConsumer<String, Boolean> listener = statusListener;
+        if (listener != null) {
+            listener.accept(instanceId, isValid);
+        }
+    }
+
+    /**
+     * 文件中的状态（null 表示文件不存在）是否来自本进程的写入：该实例仍有排队中或正在写出的事件，或文件与状态缓存一致；
+     * 文件不存在时状态缓存无法区分（外部放入的文件从未进入缓存），只按排队中的写入判断
+     */
+    public boolean isOwnStatus(String instanceId, Boolean onDisk) {
+        if (fileWriter.isPending(instanceId)) {
+            return true;
+        }
+        return onDisk != null && onDisk.equals(statusCache.get(instanceId));
+    }
+
+    /**
+     * 实例是否已有状态（本进程写出过，或启动时已有状态文件）
+     */
+    public boolean hasStatus(String instanceId) {
+        return statusCache.containsKey(instanceId);
+    }
+
+    /**
+     * 清除缓存的实例状态，下次写入时一定会更新文件
+     */
+    public void evictCachedStatus(String instanceId) {
+        statusCache.remove(instanceId);
+    }
+
+    /**
+     * 登记一次需要重载的状态变化，由全局合并器统一重载（key 仅用于日志）
+     */
+    public void scheduleDelayedReload(String key) {
+        scheduleDelayedReload(key, 1);
+    }
+
+    /**
+     * 登记 changes 个需要重载的状态变化（批量写入后调用）
+     */
+    public void scheduleDelayedReload(String key, int changes) {
+        logger.debug("登记重载: {} ({} 个变化)", key, changes);
+        reloads.requestReload(changes);
+    }
+
+    /**
+     * 状态文件写入队列统计
+     */
+    public Map<String, Object> getWriterMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>(fileWriter.getMetrics());
+        metrics.put("cachedStatuses", statusCache.size());
+        metrics.put("warmedEntries", warmedEntries);
+        metrics.put("warmupMillis", warmupMillis);
+        return metrics;
+    }
+
+    /**
+     * 重载合并统计
+     */
+    public Map<String, Object> getReloadMetrics() {
+        return reloads.getMetrics();
+    }
+
+    /**
+     * 执行一次重载，返回是否成功（只在重载线程上调用）
+     */
+    private boolean triggerNginxReload() {
+        // 重载前写出排队中的状态文件；map 模式下写出最新的汇总文件
+        fileWriter.flush();
+        flushMapFile();
+        try {
+            // 使用ProcessBuilder执行脚本
+            ProcessBuilder pb = new ProcessBuilder(RELOAD_SCRIPT);
+            pb.redirectErrorStream(true);
+            Process process = pb.start();
+
+            // 异步读取输出
+            new Thread(() -> {
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(process.getInputStream()))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        logger.debug("[Nginx Reload Signal] {}", line);
+                    }
+                } catch (IOException e) {
+                    logger.warn("读取信号输出失败: {}", e.getMessage());
+                }
+            }).start();
+
+            int exitCode = process.waitFor();
+            if (exitCode == 0) {
+                logger.info("Nginx重载信号已发送。");
+                return true;
+            }
+            logger.warn("发送重载信号失败，退出码: {}", exitCode);
+            return false;
+        } catch (IOException | InterruptedException e) {
+            logger.error("发送Nginx重载信号失败: {}", e.getMessage(), e);
+            return false;
+        }
+    }
+
+    public boolean isMapMode() {
+        return StatusFiles.MAP_MODE;
+    }
+
+    public String getMapFile() {
+        return StatusFiles.MAP_FILE.toString();
+    }
+
+    /**
+     * files 模式的状态文件目录（isv.status.dir）
+     */
+    public String getStatusDir() {
+        return STATUS_DIR;
+    }
+
+    /**
+     * map 模式下按实例ID排序的全部状态
+     */
+    public Map<String, Boolean> getMapStatuses() {
+        Map<String, Boolean> statuses = new LinkedHashMap<>();
+        for (Map.Entry<String, MapLine> entry : mapTable.entrySet()) {
+            statuses.put(entry.getKey(), entry.getValue().valid);
+        }
+        return statuses;
+    }
+
+    // 应用关闭时清理资源
+    @Override
+    public void destroy() {
+        reloads.shutdown();
+        fileWriter.shutdown();
+        flushMapFile();
+    }
+}
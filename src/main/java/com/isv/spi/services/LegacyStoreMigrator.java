@@ -0,0 +1,37 @@
+package com.isv.spi.services;
+
+import com.isv.spi.models.UserInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * 一次性迁移：读取旧版 Java 序列化的 users.dat，由 StorageService 写出为二进制快照
+ * 迁移成功后旧文件重命名为 users.dat.migrated 保留备查。
+ */
+final class LegacyStoreMigrator {
+    private static final Logger logger = LoggerFactory.getLogger(LegacyStoreMigrator.class);
+
+    private LegacyStoreMigrator() {
+    }
+
+    /**
+     * 读取旧文件中的全部记录
+     */
+    @SuppressWarnings("unchecked")
+    static Collection<UserInfo> readLegacy(File legacyFile) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new BufferedInputStream(new FileInputStream(legacyFile)))) {
+            Map<String, Object> storageData = (Map<String, Object>) ois.readObject();
+            Map<String, UserInfo> legacyStore = (Map<String, UserInfo>) storageData.get("userStore");
+            logger.info("读取旧版用户数据: {} 条记录", legacyStore != null ? legacyStore.size() : 0);
+            return legacyStore != null ? legacyStore.values() : Collections.<UserInfo>emptyList();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("无法解析旧版用户数据文件: " + e.getMessage(), e);
+        }
+    }
+}
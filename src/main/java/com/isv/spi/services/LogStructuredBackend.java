@@ -0,0 +1,784 @@
+package com.isv.spi.services;
+
+import com.isv.spi.models.UserInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * 默认存储后端：内存增量 + 追加写日志 + 内存映射快照（isv.storage.backend=log）
+ * 快照中的记录首次访问时才解码，启动只需映射快照并重放日志。
+ */
+class LogStructuredBackend implements UserStoreBackend {
+    private static final Logger logger = LoggerFactory.getLogger(LogStructuredBackend.class);
+    // 使用orderBizId作为主键存储：上次快照之后写入过的记录
+    private final Map<String, UserInfo> userStore = new ConcurrentHashMap<>();
+
+    // 内存映射的快照，记录首次访问时才解码
+    private volatile MappedSnapshot snapshot;
+    // 已从快照解码的记录
+    private final Map<String, UserInfo> snapshotCache = new ConcurrentHashMap<>();
+    // 上次快照之后删除的记录（屏蔽快照中的旧记录）-> 删除时的变更序号
+    private final Map<String, Long> deleted = new ConcurrentHashMap<>();
+    // userStore 中每条记录最后一次写入的变更序号，压缩切换快照时据此判断记录是否在捕获之后又被修改
+    private final Map<String, Long> dirtySeq = new ConcurrentHashMap<>();
+    // 变更序号
+    private final AtomicLong mutationSeq = new AtomicLong();
+
+    // 并发模型：读操作不加锁（ConcurrentHashMap + 不可变索引列表）；
+    // 变更持有 storeLock 读锁 + orderBizId 所在条带的锁，不同记录的变更可以并行；
+    // 压缩捕获/切换快照时持有 storeLock 写锁，短暂阻止所有变更
+    private static final int LOCK_STRIPES = 64;
+    private final Object[] stripes = new Object[LOCK_STRIPES];
+    private final ReentrantReadWriteLock storeLock = new ReentrantReadWriteLock();
+    // 已把快照中全部记录加载进索引的aliUid
+    private final Set<String> loadedAliUids = ConcurrentHashMap.newKeySet();
+    
+    // 按aliUid索引，一个aliUid可能有多个实例
+    private final SecondaryIndex aliUidIndex = new SecondaryIndex("aliUidIndex", UserInfo::getAliUid, false);
+    
+    // 新增：按computeNestInstanceId索引（早期用户使用）
+    private final SecondaryIndex computeNestIndex =
+            new SecondaryIndex("computeNestIndex", UserInfo::getComputeNestInstanceId, true);
+
+    // 按云市场instanceId索引（续费/过期/释放回调使用）
+    private final SecondaryIndex instanceIdIndex =
+            new SecondaryIndex("instanceIdIndex", UserInfo::getInstanceId, true);
+
+    // 所有二级索引（覆盖内存中的记录，快照中未解码的记录通过快照查找表定位），写入/删除时统一维护
+    private final List<SecondaryIndex> indexes = Arrays.asList(aliUidIndex, computeNestIndex, instanceIdIndex);
+
+    // 存储文件路径
+    private static final String STORAGE_DIR = StorageService.STORAGE_DIR;
+    // 旧版 Java 序列化文件，仅用于一次性迁移
+    private static final String STORAGE_FILE = STORAGE_DIR + "users.dat";
+    // 二进制快照
+    private static final String SNAPSHOT_FILE = STORAGE_DIR + "users.snap";
+    // 追加写日志：记录上次快照之后的增量变更
+    private static final String LOG_FILE = STORAGE_DIR + "users.log";
+    // 日志累积到多少条后生成新快照并截断日志
+    private static final int SNAPSHOT_EVERY = Integer.getInteger("isv.storage.snapshotEvery", 1000);
+    // 日志达到多少字节后生成新快照（0 表示不按大小触发）
+    private static final long COMPACT_LOG_BYTES = Long.getLong("isv.storage.compactLogBytes", 64L * 1024 * 1024);
+    // 距上次快照超过多少秒且有新变更时生成新快照（0 表示不按时间触发）
+    private static final long COMPACT_MAX_AGE_SECONDS = Long.getLong("isv.storage.compactMaxAgeSeconds", 3600L);
+
+    // 持久化级别：SYNC（每条fsync）、GROUP（组提交，默认）、ASYNC（异步刷盘）
+    private static final GroupCommitWriter.Durability DURABILITY = GroupCommitWriter.Durability.valueOf(
+            System.getProperty("isv.storage.durability", "GROUP").toUpperCase());
+    // 组提交最长等待时间（毫秒）与单批最大记录数
+    private static final long GROUP_COMMIT_MAX_DELAY_MS = Long.getLong("isv.storage.groupCommitMaxDelayMs", 2L);
+    private static final int GROUP_COMMIT_MAX_BATCH = Integer.getInteger("isv.storage.groupCommitMaxBatch", 512);
+
+    private final UserStoreLog mutationLog = new UserStoreLog(Paths.get(LOG_FILE),
+            DURABILITY, GROUP_COMMIT_MAX_DELAY_MS, GROUP_COMMIT_MAX_BATCH);
+
+    // 后台快照压缩
+    private final SnapshotCompactor compactor = new SnapshotCompactor(new SnapshotCompactor.Target() {
+        @Override
+        public long compact() throws IOException {
+            return LogStructuredBackend.this.compact();
+        }
+
+        @Override
+        public int pendingEntries() {
+            return mutationLog.getEntryCount();
+        }
+
+        @Override
+        public long pendingLogBytes() {
+            return mutationLog.getSizeBytes();
+        }
+    }, SNAPSHOT_EVERY, COMPACT_LOG_BYTES, COMPACT_MAX_AGE_SECONDS * 1000);
+
+    LogStructuredBackend() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        // 映射快照（不解码记录），再重放快照之后的变更日志
+        boolean needSnapshot = loadFromFile();
+        replayLog();
+        openLog();
+        if (needSnapshot) {
+            // 旧格式数据已读入内存，立即写出新格式快照
+            compactor.runOnce("migration");
+            migrateLegacyFileDone();
+        }
+        compactor.start();
+        MappedSnapshot current = snapshot;
+        logger.info("日志存储后端已打开，快照 {} 条记录，日志变更 {} 条",
+                current != null ? current.getRecordCount() : 0, userStore.size());
+    }
+    
+    @Override
+    public void put(UserInfo userInfo) {
+        CompletableFuture<Void> ack = withRecordLock(userInfo.getOrderBizId(), () -> {
+            // 保存到主存储并更新二级索引，再追加到日志
+            applyPut(userInfo);
+            return appendToLog(() -> mutationLog.appendPut(userInfo));
+        });
+        // 在锁外等待落盘，使并发写入可以合并为一次组提交
+        awaitDurable(ack);
+    }
+
+    /**
+     * 整批在存储写锁内写入内存并作为一次日志提交，只等待一次落盘
+     */
+    @Override
+    public void putAll(Collection<UserInfo> users) {
+        if (users.isEmpty()) {
+            return;
+        }
+        CompletableFuture<Void> ack;
+        // 写锁保证整批日志与内存的相对顺序和单条变更一致
+        storeLock.writeLock().lock();
+        try {
+            for (UserInfo userInfo : users) {
+                applyPut(userInfo);
+            }
+            ack = appendToLog(() -> mutationLog.appendPuts(users));
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+        awaitDurable(ack);
+    }
+
+    @Override
+    public List<UserInfo> updateIf(Collection<String> orderBizIds, Predicate<UserInfo> condition,
+                                   Consumer<UserInfo> mutation) {
+        List<UserInfo> updated = new ArrayList<>();
+        List<CompletableFuture<Void>> acks = new ArrayList<>();
+        for (String orderBizId : orderBizIds) {
+            CompletableFuture<Void> ack = withRecordLock(orderBizId, () -> {
+                UserInfo current = get(orderBizId);
+                if (current == null || !condition.test(current)) {
+                    return null;
+                }
+                // 在副本上修改后替换，持有旧记录的读者看不到中间状态
+                UserInfo copy = new UserInfo(current);
+                mutation.accept(copy);
+                applyPut(copy);
+                updated.add(copy);
+                return appendToLog(() -> mutationLog.appendPut(copy));
+            });
+            if (ack != null) {
+                acks.add(ack);
+            }
+        }
+        // 在锁外等待落盘，整批合并为一次组提交；全部等待完后再抛出第一个失败
+        UncheckedIOException failure = null;
+        for (CompletableFuture<Void> ack : acks) {
+            try {
+                awaitDurable(ack);
+            } catch (UncheckedIOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return updated;
+    }
+
+    /**
+     * 写入内存：主存储 + 二级索引（旧键由索引自身记录，原地修改的记录也能正确移除旧键）
+     */
+    private void applyPut(UserInfo userInfo) {
+        String orderBizId = userInfo.getOrderBizId();
+        userStore.put(orderBizId, userInfo);
+        dirtySeq.put(orderBizId, mutationSeq.incrementAndGet());
+        deleted.remove(orderBizId);
+        for (SecondaryIndex index : indexes) {
+            index.update(orderBizId, userInfo);
+        }
+    }
+
+    /**
+     * 从内存删除，返回被删除的记录
+     */
+    private UserInfo applyDelete(String orderBizId) {
+        UserInfo userInfo = get(orderBizId);
+        if (userInfo == null) {
+            return null;
+        }
+        deleted.put(orderBizId, mutationSeq.incrementAndGet());
+        userStore.remove(orderBizId);
+        dirtySeq.remove(orderBizId);
+        snapshotCache.remove(orderBizId);
+        for (SecondaryIndex index : indexes) {
+            index.remove(orderBizId);
+        }
+        return userInfo;
+    }
+    
+    @Override
+    public UserInfo findByComputeNestInstanceId(String computeNestInstanceId) {
+        return lookupUnique(computeNestIndex, MappedSnapshot.TABLE_COMPUTE_NEST, computeNestInstanceId);
+    }
+    
+    @Override
+    public UserInfo updateAliUid(String orderBizId, String newAliUid) {
+        UserInfo[] updated = new UserInfo[1];
+        CompletableFuture<Void> ack = withRecordLock(orderBizId, () -> {
+            UserInfo userInfo = get(orderBizId);
+            if (userInfo == null || newAliUid.equals(userInfo.getAliUid())) {
+                updated[0] = userInfo;
+                return null;
+            }
+            
+            // 在副本上设置新的aliUid后替换并更新索引，已返回给读者的记录不会被原地修改
+            UserInfo copy = new UserInfo(userInfo);
+            copy.setAliUid(newAliUid);
+            applyPut(copy);
+            updated[0] = copy;
+            
+            return appendToLog(() -> mutationLog.appendSetAliUid(orderBizId, newAliUid));
+        });
+        if (ack != null) {
+            awaitDurable(ack);
+        }
+        return updated[0];
+    }
+
+    @Override
+    public UserInfo get(String orderBizId) {
+        if (orderBizId == null) {
+            return null;
+        }
+        UserInfo userInfo = userStore.get(orderBizId);
+        if (userInfo != null) {
+            return userInfo;
+        }
+        if (deleted.containsKey(orderBizId)) {
+            return null;
+        }
+        userInfo = snapshotCache.get(orderBizId);
+        if (userInfo != null) {
+            return userInfo;
+        }
+        return lookupSnapshot(MappedSnapshot.TABLE_ORDER_BIZ_ID, UserInfo::getOrderBizId, orderBizId);
+    }
+    
+    @Override
+    public List<UserInfo> findByAliUid(String aliUid) {
+        if (aliUid == null) {
+            return new ArrayList<>();
+        }
+        // 首次查询某个aliUid时，把快照中属于它的记录全部解码进索引
+        if (!loadedAliUids.contains(aliUid) && loadAllFromSnapshot(MappedSnapshot.TABLE_ALIUID, aliUid)) {
+            loadedAliUids.add(aliUid);
+        }
+
+        List<String> orderIds = aliUidIndex.get(aliUid);
+        if (orderIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+        
+        List<UserInfo> users = new ArrayList<>();
+        for (String orderId : orderIds) {
+            UserInfo user = get(orderId);
+            if (user != null && aliUid.equals(user.getAliUid())) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
+    
+    @Override
+    public UserInfo findByInstanceId(String instanceId) {
+        return lookupUnique(instanceIdIndex, MappedSnapshot.TABLE_INSTANCE_ID, instanceId);
+    }
+
+    /**
+     * 唯一键查询：先查内存索引，未命中再查快照查找表
+     */
+    private UserInfo lookupUnique(SecondaryIndex index, int table, String key) {
+        if (key == null) {
+            return null;
+        }
+        String orderBizId = index.getFirst(key);
+        if (orderBizId != null) {
+            UserInfo userInfo = get(orderBizId);
+            if (userInfo != null && key.equals(index.keyOf(userInfo))) {
+                return userInfo;
+            }
+        }
+        return lookupSnapshot(table, index::keyOf, key);
+    }
+
+    /**
+     * 在快照查找表中定位记录并物化，键不匹配（哈希冲突或记录已在内存中修改）的候选被忽略
+     */
+    private UserInfo lookupSnapshot(int table, Function<UserInfo, String> keyOf, String key) {
+        while (true) {
+            MappedSnapshot current = snapshot;
+            if (current == null) {
+                return null;
+            }
+            UserInfo[] found = new UserInfo[1];
+            current.lookup(table, key, offset -> {
+                if (found[0] == null) {
+                    // 先校验键再物化，只锁定命中记录所在的条带
+                    UserInfo decoded = current.decodeAt(offset);
+                    if (decoded != null && key.equals(keyOf.apply(decoded))) {
+                        UserInfo candidate = materialize(current, decoded);
+                        if (candidate != null && key.equals(keyOf.apply(candidate))) {
+                            found[0] = candidate;
+                        }
+                    }
+                }
+            });
+            // 查找期间快照被替换时重试，避免读到旧快照中已删除的记录
+            if (found[0] != null || current == snapshot) {
+                return found[0];
+            }
+        }
+    }
+
+    /**
+     * 把快照中某个键的全部记录物化进内存索引，快照在此期间被替换时返回 false
+     */
+    private boolean loadAllFromSnapshot(int table, String key) {
+        MappedSnapshot current = snapshot;
+        if (current == null) {
+            return true;
+        }
+        current.lookup(table, key, offset -> {
+            UserInfo decoded = current.decodeAt(offset);
+            if (decoded != null) {
+                materialize(current, decoded);
+            }
+        });
+        return current == snapshot;
+    }
+
+    /**
+     * 解码快照记录并放入缓存和索引；记录已在内存中（修改过或已解码）时返回内存中的版本
+     */
+    private UserInfo materialize(MappedSnapshot source, UserInfo decoded) {
+        String orderBizId = decoded.getOrderBizId();
+        UserInfo existing = userStore.get(orderBizId);
+        if (existing == null) {
+            existing = snapshotCache.get(orderBizId);
+        }
+        if (existing != null) {
+            return existing;
+        }
+        return withRecordLock(orderBizId, () -> {
+            if (source != snapshot || deleted.containsKey(orderBizId)) {
+                return null;
+            }
+            UserInfo current = userStore.get(orderBizId);
+            if (current == null) {
+                current = snapshotCache.get(orderBizId);
+            }
+            if (current != null) {
+                return current;
+            }
+            snapshotCache.put(orderBizId, decoded);
+            for (SecondaryIndex index : indexes) {
+                index.update(orderBizId, decoded);
+            }
+            return decoded;
+        });
+    }
+
+    /**
+     * 持有 storeLock 读锁和记录所在条带的锁执行操作
+     */
+    private <T> T withRecordLock(String orderBizId, Supplier<T> action) {
+        int h = orderBizId.hashCode();
+        Object stripe = stripes[(h ^ (h >>> 16)) & (LOCK_STRIPES - 1)];
+        storeLock.readLock().lock();
+        try {
+            synchronized (stripe) {
+                return action.get();
+            }
+        } finally {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public UserInfo updateComputeNestInstanceId(String orderBizId, String computeNestInstanceId) {
+        UserInfo[] updated = new UserInfo[1];
+        CompletableFuture<Void> ack = withRecordLock(orderBizId, () -> {
+            UserInfo userInfo = get(orderBizId);
+            if (userInfo == null) {
+                return null;
+            }
+            // 在副本上设置新的计算巢实例ID后替换并更新索引
+            UserInfo copy = new UserInfo(userInfo);
+            copy.setComputeNestInstanceId(computeNestInstanceId);
+            applyPut(copy);
+            updated[0] = copy;
+            
+            return appendToLog(() -> mutationLog.appendSetComputeNestInstanceId(orderBizId, computeNestInstanceId));
+        });
+        if (ack != null) {
+            awaitDurable(ack);
+        }
+        return updated[0];
+    }
+    
+    @Override
+    public UserInfo delete(String orderBizId) {
+        UserInfo[] removed = new UserInfo[1];
+        CompletableFuture<Void> ack = withRecordLock(orderBizId, () -> {
+            removed[0] = applyDelete(orderBizId);
+            if (removed[0] == null) {
+                return null;
+            }
+            return appendToLog(() -> mutationLog.appendDelete(orderBizId));
+        });
+        if (ack != null) {
+            awaitDurable(ack);
+        }
+        return removed[0];
+    }
+
+    /**
+     * 日志存储没有有序结构，范围扫描先过滤再排序
+     */
+    @Override
+    public void scan(String fromOrderBizId, String toOrderBizId, Consumer<UserInfo> consumer) {
+        List<UserInfo> users = new ArrayList<>();
+        forEach(user -> {
+            String orderBizId = user.getOrderBizId();
+            if ((fromOrderBizId == null || orderBizId.compareTo(fromOrderBizId) >= 0)
+                    && (toOrderBizId == null || orderBizId.compareTo(toOrderBizId) < 0)) {
+                users.add(user);
+            }
+        });
+        users.sort(Comparator.comparing(UserInfo::getOrderBizId));
+        users.forEach(consumer);
+    }
+
+    /**
+     * 遍历当前全部记录：快照中未被修改/删除的记录 + 快照之后写入的记录，逐条解码后交给 consumer，不构建列表。
+     * 开始时在读锁内（与快照切换互斥）取得当前快照和增量的副本，之后在锁外遍历；
+     * 只复制增量（受压缩阈值限制），快照中的记录边遍历边跳过被增量覆盖或删除的键
+     */
+    @Override
+    public void forEach(Consumer<UserInfo> consumer) {
+        MappedSnapshot current;
+        List<UserInfo> overlay;
+        Set<String> shadowed;
+        storeLock.readLock().lock();
+        try {
+            current = snapshot;
+            overlay = new ArrayList<>(userStore.values());
+            shadowed = new HashSet<>(userStore.keySet());
+            shadowed.addAll(deleted.keySet());
+        } finally {
+            storeLock.readLock().unlock();
+        }
+        if (current != null) {
+            current.forEachRecord(offset -> {
+                UserInfo decoded = current.decodeAt(offset);
+                if (decoded == null || shadowed.contains(decoded.getOrderBizId())) {
+                    return;
+                }
+                UserInfo cached = snapshotCache.get(decoded.getOrderBizId());
+                consumer.accept(cached != null ? cached : decoded);
+            });
+        }
+        overlay.forEach(consumer);
+    }
+
+    /**
+     * 日志写入操作
+     */
+    private interface LogWrite {
+        CompletableFuture<Void> write() throws IOException;
+    }
+
+    /**
+     * 追加一条变更日志（需持有记录锁以保证同一记录的日志顺序与内存一致），累积到阈值后通知后台压缩。
+     * 返回的 future 在该记录落盘后完成，写入失败时以异常完成。
+     */
+    private CompletableFuture<Void> appendToLog(LogWrite write) {
+        CompletableFuture<Void> ack;
+        try {
+            ack = write.write();
+        } catch (IOException e) {
+            logger.error("写入变更日志失败: {}", e.getMessage(), e);
+            ack = CompletableFuture.failedFuture(e);
+        }
+        // 落盘失败（含 ASYNC 模式下无人等待的写入）时变更仍在内存中，由后台尽快写出全量快照
+        ack.whenComplete((ignored, failure) -> {
+            if (failure != null) {
+                compactor.requestCompaction();
+            }
+        });
+        if (compactor.isLogFull()) {
+            compactor.requestCompaction();
+        }
+        return ack;
+    }
+
+    /**
+     * 按持久化级别等待日志落盘（ASYNC 模式只检查已经失败的写入，不等待）。
+     * 落盘失败时调用方收到 UncheckedIOException，不能把未落盘的变更当作成功确认给回调方
+     */
+    private void awaitDurable(CompletableFuture<Void> ack) {
+        if (mutationLog.getDurability() == GroupCommitWriter.Durability.ASYNC && !ack.isCompletedExceptionally()) {
+            return;
+        }
+        try {
+            ack.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("等待变更日志落盘时被中断"));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw new UncheckedIOException("变更日志落盘失败: " + cause.getMessage(),
+                    cause instanceof IOException ? (IOException) cause : new IOException(cause));
+        }
+    }
+
+    /**
+     * 持久化统计（组提交批次、fsync耗时、压缩等）
+     */
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("backend", "log");
+        metrics.putAll(mutationLog.getMetrics());
+        metrics.put("compaction", compactor.getMetrics());
+        return metrics;
+    }
+
+    /**
+     * 关闭时刷出尚未落盘的日志
+     */
+    @Override
+    public void close() throws IOException {
+        compactor.stop();
+        mutationLog.close();
+    }
+
+    /**
+     * 打开变更日志用于追加
+     */
+    private void openLog() {
+        try {
+            mutationLog.open();
+        } catch (IOException e) {
+            logger.error("打开变更日志失败: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 重放快照之后的变更日志
+     */
+    private void replayLog() {
+        try {
+            int replayed = mutationLog.replay(new UserStoreLog.Replayer() {
+                @Override
+                public void put(UserInfo userInfo) {
+                    applyPut(userInfo);
+                }
+
+                @Override
+                public void delete(String orderBizId) {
+                    applyDelete(orderBizId);
+                }
+
+                @Override
+                public void setAliUid(String orderBizId, String aliUid) {
+                    UserInfo userInfo = get(orderBizId);
+                    if (userInfo != null) {
+                        userInfo.setAliUid(aliUid);
+                        applyPut(userInfo);
+                    }
+                }
+
+                @Override
+                public void setComputeNestInstanceId(String orderBizId, String computeNestInstanceId) {
+                    UserInfo userInfo = get(orderBizId);
+                    if (userInfo != null) {
+                        userInfo.setComputeNestInstanceId(computeNestInstanceId);
+                        applyPut(userInfo);
+                    }
+                }
+            });
+            if (replayed > 0) {
+                logger.info("从变更日志重放了 {} 条记录", replayed);
+            }
+        } catch (IOException e) {
+            logger.error("重放变更日志失败: {}", e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * 生成新快照并替换旧快照，返回回收的字节数，没有新变更时返回 -1。
+     * 只在存储写锁内轮转日志、复制增量记录；新快照在锁外由旧快照 + 增量写出，读写不受阻塞。
+     * 轮转之后的变更写在新日志中，重放时覆盖在新快照之上（日志操作可重复执行），
+     * 因此写出期间记录被并发修改也不影响恢复结果。
+     */
+    private long compact() throws IOException {
+        MappedSnapshot base;
+        Map<String, UserInfo> dirty;
+        Set<String> removed;
+        long capturedSeq;
+        long segment;
+        storeLock.writeLock().lock();
+        try {
+            if (userStore.isEmpty() && deleted.isEmpty()) {
+                return -1;
+            }
+            base = snapshot;
+            dirty = new HashMap<>(userStore);
+            removed = new HashSet<>(deleted.keySet());
+            capturedSeq = mutationSeq.get();
+            segment = mutationLog.rotate();
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+
+        File tmpFile = new File(SNAPSHOT_FILE + ".tmp");
+        try (MappedSnapshot.Writer writer = new MappedSnapshot.Writer(tmpFile)) {
+            if (base != null) {
+                IOException[] failure = new IOException[1];
+                base.forEachRecord(offset -> {
+                    if (failure[0] != null) {
+                        return;
+                    }
+                    UserInfo decoded = base.decodeAt(offset);
+                    if (decoded == null || dirty.containsKey(decoded.getOrderBizId())
+                            || removed.contains(decoded.getOrderBizId())) {
+                        return;
+                    }
+                    try {
+                        writer.write(decoded);
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                });
+                if (failure[0] != null) {
+                    throw failure[0];
+                }
+            }
+            for (UserInfo userInfo : dirty.values()) {
+                writer.write(userInfo);
+            }
+            writer.finish();
+        }
+
+        Files.move(tmpFile.toPath(), Paths.get(SNAPSHOT_FILE),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        MappedSnapshot newSnapshot = MappedSnapshot.open(Paths.get(SNAPSHOT_FILE));
+        storeLock.writeLock().lock();
+        try {
+            // 切换顺序保证并发读者始终看到完整视图：已写入新快照的增量先转入缓存，再发布新快照，最后清理增量；
+            // 捕获之后又修改或删除过的记录保留在增量中
+            for (Map.Entry<String, UserInfo> entry : dirty.entrySet()) {
+                Long seq = dirtySeq.get(entry.getKey());
+                if (seq != null && seq <= capturedSeq) {
+                    snapshotCache.put(entry.getKey(), entry.getValue());
+                }
+            }
+            snapshot = newSnapshot;
+            dirtySeq.entrySet().removeIf(entry -> {
+                if (entry.getValue() <= capturedSeq) {
+                    userStore.remove(entry.getKey());
+                    return true;
+                }
+                return false;
+            });
+            deleted.values().removeIf(seq -> seq <= capturedSeq);
+        } finally {
+            storeLock.writeLock().unlock();
+        }
+        long reclaimed = mutationLog.deleteSegmentsThrough(segment)
+                + (base != null ? base.getSize() : 0) - newSnapshot.getSize();
+        logger.debug("用户数据快照已持久化到文件: {}，{} 条记录", SNAPSHOT_FILE, newSnapshot.getRecordCount());
+        return reclaimed;
+    }
+    
+    /**
+     * 从文件加载快照。版本2快照直接映射；旧格式（版本1或 Java 序列化的 users.dat）读入内存，
+     * 返回 true 表示需要立即写出新格式快照。
+     */
+    private synchronized boolean loadFromFile() {
+        File file = new File(SNAPSHOT_FILE);
+        File legacyFile = new File(STORAGE_FILE);
+        if (!file.exists() && legacyFile.exists()) {
+            try {
+                for (UserInfo userInfo : LegacyStoreMigrator.readLegacy(legacyFile)) {
+                    applyPut(userInfo);
+                }
+                logger.info("从旧版文件读取了 {} 条用户记录，将迁移为新格式", userStore.size());
+                return true;
+            } catch (IOException e) {
+                // 旧文件保持原样，不做清空，避免后续快照覆盖掉仍可人工恢复的数据
+                logger.error("迁移旧版用户数据失败，原文件保留在 {}: {}", legacyFile, e.getMessage(), e);
+                return false;
+            }
+        }
+        if (!file.exists()) {
+            logger.info("用户数据文件不存在，将创建新文件");
+            return false;
+        }
+        
+        try {
+            short version = MappedSnapshot.readVersion(file);
+            if (version == MappedSnapshot.VERSION) {
+                snapshot = MappedSnapshot.open(file.toPath());
+                logger.info("已映射用户快照: {} 条记录，{} 字节", snapshot.getRecordCount(), snapshot.getSize());
+                return false;
+            }
+            // 版本1：顺序读入内存
+            try (UserInfoCodec.Reader reader = new UserInfoCodec.Reader(new FileInputStream(file))) {
+                UserInfo userInfo;
+                while ((userInfo = reader.next()) != null) {
+                    applyPut(userInfo);
+                }
+                if (reader.getCorrupt() > 0) {
+                    logger.warn("快照中有 {} 条记录校验失败已跳过", reader.getCorrupt());
+                }
+            }
+            logger.info("从版本 {} 快照读取了 {} 条用户记录，将转换为新格式", version, userStore.size());
+            return true;
+        } catch (IOException e) {
+            // 不清空已读取的记录；无法读取的快照改名保留，避免被下一次快照覆盖
+            File corruptFile = new File(SNAPSHOT_FILE + ".corrupt." + System.currentTimeMillis());
+            logger.error("加载用户数据失败，已读取 {} 条，原文件另存为 {}: {}",
+                    userStore.size(), corruptFile, e.getMessage(), e);
+            if (!file.renameTo(corruptFile)) {
+                logger.error("保留损坏的快照文件失败: {}", file);
+            }
+            return userStore.size() > 0;
+        }
+    }
+
+    /**
+     * 新格式快照写出后，把旧版 users.dat 重命名保留
+     */
+    private void migrateLegacyFileDone() {
+        File legacyFile = new File(STORAGE_FILE);
+        if (legacyFile.exists() && new File(SNAPSHOT_FILE).exists()) {
+            File migrated = new File(STORAGE_FILE + ".migrated");
+            if (legacyFile.renameTo(migrated)) {
+                logger.info("旧版用户数据已迁移，原文件重命名为 {}", migrated);
+            }
+        }
+    }
+}
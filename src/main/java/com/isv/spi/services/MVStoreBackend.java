@@ -0,0 +1,427 @@
+package com.isv.spi.services;
+
+import com.isv.spi.models.UserInfo;
+import org.h2.mvstore.Cursor;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * 嵌入式磁盘存储后端（isv.storage.backend=mvstore），基于 H2 MVStore，进程内运行，无外部服务。
+ * 记录以 UserInfoCodec 编码存放在磁盘 B 树中，只有 MVStore 页缓存常驻内存，
+ * 数据量不受堆大小限制，重启时不需要加载全部记录。
+ * 二级索引为独立的有序 map，键为 "索引键\0orderBizId"，值为写入序号（唯一索引按序号取最后写入者）。
+ */
+final class MVStoreBackend implements UserStoreBackend {
+    private static final Logger logger = LoggerFactory.getLogger(MVStoreBackend.class);
+
+    private static final String STORE_FILE = StorageService.STORAGE_DIR + "users.mv.db";
+    // MVStore 页缓存大小（MB）
+    private static final int CACHE_SIZE_MB = Integer.getInteger("isv.storage.mvstore.cacheSizeMb", 16);
+    // 持久化级别：SYNC/GROUP 写入后提交并 fsync（并发写入合并到同一次提交），ASYNC 由 MVStore 后台每秒提交
+    private static final GroupCommitWriter.Durability DURABILITY = GroupCommitWriter.Durability.valueOf(
+            System.getProperty("isv.storage.durability", "GROUP").toUpperCase());
+
+    private static final char KEY_SEPARATOR = '\0';
+    private static final String SEQ_KEY = "seq";
+    // 导入进行中标记：新建存储文件时先提交该标记，导入完成并提交后删除；启动时仍存在说明上次导入中断，需要重新导入
+    private static final String IMPORT_PENDING_KEY = "importPending";
+    // 导入时每批提交的记录数
+    private static final int IMPORT_BATCH = 1000;
+
+    private static final int LOCK_STRIPES = 64;
+    // 同一个 orderBizId 的读改写（记录 + 索引）串行，不同记录并行
+    private final Object[] stripes = new Object[LOCK_STRIPES];
+
+    private final MVStore store;
+    private final MVMap<String, byte[]> users;
+    private final MVMap<String, Long> meta;
+    // 索引名 -> (键\0orderBizId -> 写入序号)
+    private final Map<String, MVMap<String, Long>> indexMaps = new LinkedHashMap<>();
+    private final Map<String, Function<UserInfo, String>> indexKeys = new LinkedHashMap<>();
+    private final AtomicLong writeSeq;
+
+    // 已提交并 fsync 的版本：写入发生在此版本之前的调用方无需再次提交
+    private final Object commitLock = new Object();
+    private long durableVersion;
+
+    // 统计
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong commitNanos = new AtomicLong();
+
+    MVStoreBackend() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        boolean created = !new File(STORE_FILE).exists();
+        store = new MVStore.Builder()
+                .fileName(STORE_FILE)
+                .cacheSize(CACHE_SIZE_MB)
+                .open();
+        if (DURABILITY != GroupCommitWriter.Durability.ASYNC) {
+            // 每次提交都已 fsync，旧 chunk 不需要保留即可复用，避免文件随提交次数膨胀
+            store.setRetentionTime(0);
+        }
+        users = store.openMap("users");
+        meta = store.openMap("meta");
+        indexKeys.put("aliUid", UserInfo::getAliUid);
+        indexKeys.put("instanceId", UserInfo::getInstanceId);
+        indexKeys.put("computeNestInstanceId", UserInfo::getComputeNestInstanceId);
+        for (String name : indexKeys.keySet()) {
+            indexMaps.put(name, store.<String, Long>openMap("index." + name));
+        }
+        Long seq = meta.get(SEQ_KEY);
+        writeSeq = new AtomicLong(seq != null ? seq : 0);
+        if (created) {
+            meta.put(IMPORT_PENDING_KEY, 1L);
+            commitNow();
+        }
+        if (meta.containsKey(IMPORT_PENDING_KEY)) {
+            if (!created) {
+                logger.warn("上次从日志存储后端导入未完成，重新导入");
+            }
+            importFromLogBackend();
+            meta.remove(IMPORT_PENDING_KEY);
+            commitNow();
+        }
+        logger.info("MVStore 存储后端已打开: {}，{} 条记录", STORE_FILE, users.size());
+    }
+
+    /**
+     * 首次启用时，把日志存储后端（users.snap / users.log / 旧版 users.dat）中的数据导入。
+     * 逐条读取、按批写入并提交，不在内存中构建完整列表；重复导入按 orderBizId 覆盖，结果相同
+     */
+    private void importFromLogBackend() {
+        String dir = StorageService.STORAGE_DIR;
+        if (!new File(dir + "users.snap").exists() && !new File(dir + "users.log").exists()
+                && !new File(dir + "users.dat").exists()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        int[] imported = new int[1];
+        try (LogStructuredBackend source = new LogStructuredBackend()) {
+            source.forEach(userInfo -> {
+                withRecordLock(userInfo.getOrderBizId(), () -> {
+                    write(userInfo);
+                    return null;
+                });
+                if (++imported[0] % IMPORT_BATCH == 0) {
+                    commitNow();
+                }
+            });
+        } catch (IOException e) {
+            logger.error("关闭日志存储后端失败: {}", e.getMessage(), e);
+        }
+        commitNow();
+        logger.info("已从日志存储后端导入 {} 条记录，耗时 {} ms", imported[0], System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public UserInfo get(String orderBizId) {
+        if (orderBizId == null) {
+            return null;
+        }
+        return pinned(() -> decode(users.get(orderBizId)));
+    }
+
+    @Override
+    public void put(UserInfo userInfo) {
+        withRecordLock(userInfo.getOrderBizId(), () -> {
+            write(userInfo);
+            return null;
+        });
+        commit();
+    }
+
+    @Override
+    public void putAll(Collection<UserInfo> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        for (UserInfo userInfo : batch) {
+            withRecordLock(userInfo.getOrderBizId(), () -> {
+                write(userInfo);
+                return null;
+            });
+        }
+        commit();
+    }
+
+    @Override
+    public UserInfo updateAliUid(String orderBizId, String aliUid) {
+        UserInfo updated = withRecordLock(orderBizId, () -> {
+            UserInfo userInfo = get(orderBizId);
+            if (userInfo == null || aliUid.equals(userInfo.getAliUid())) {
+                return userInfo;
+            }
+            userInfo.setAliUid(aliUid);
+            write(userInfo);
+            return userInfo;
+        });
+        commit();
+        return updated;
+    }
+
+    @Override
+    public UserInfo updateComputeNestInstanceId(String orderBizId, String computeNestInstanceId) {
+        UserInfo updated = withRecordLock(orderBizId, () -> {
+            UserInfo userInfo = get(orderBizId);
+            if (userInfo == null) {
+                return null;
+            }
+            userInfo.setComputeNestInstanceId(computeNestInstanceId);
+            write(userInfo);
+            return userInfo;
+        });
+        commit();
+        return updated;
+    }
+
+    @Override
+    public List<UserInfo> updateIf(Collection<String> orderBizIds, Predicate<UserInfo> condition,
+                                   Consumer<UserInfo> mutation) {
+        List<UserInfo> updated = new ArrayList<>();
+        for (String orderBizId : orderBizIds) {
+            withRecordLock(orderBizId, () -> {
+                UserInfo current = get(orderBizId);
+                // get 每次解码出新对象，本身就是副本
+                if (current != null && condition.test(current)) {
+                    mutation.accept(current);
+                    write(current);
+                    updated.add(current);
+                }
+                return null;
+            });
+        }
+        if (!updated.isEmpty()) {
+            commit();
+        }
+        return updated;
+    }
+
+    @Override
+    public UserInfo delete(String orderBizId) {
+        UserInfo removed = withRecordLock(orderBizId, () -> {
+            UserInfo previous = decode(users.remove(orderBizId));
+            if (previous != null) {
+                for (Map.Entry<String, MVMap<String, Long>> index : indexMaps.entrySet()) {
+                    String key = keyOf(index.getKey(), previous);
+                    if (key != null) {
+                        index.getValue().remove(indexEntry(key, orderBizId));
+                    }
+                }
+            }
+            return previous;
+        });
+        if (removed != null) {
+            commit();
+        }
+        return removed;
+    }
+
+    /**
+     * 写入记录并维护索引（调用方持有记录锁）；索引键未变化时不改动索引
+     */
+    private void write(UserInfo userInfo) {
+        String orderBizId = userInfo.getOrderBizId();
+        UserInfo previous = decode(users.put(orderBizId, UserInfoCodec.encode(userInfo)));
+        long seq = writeSeq.incrementAndGet();
+        for (Map.Entry<String, MVMap<String, Long>> index : indexMaps.entrySet()) {
+            String oldKey = previous != null ? keyOf(index.getKey(), previous) : null;
+            String newKey = keyOf(index.getKey(), userInfo);
+            if (Objects.equals(oldKey, newKey)) {
+                continue;
+            }
+            if (oldKey != null) {
+                index.getValue().remove(indexEntry(oldKey, orderBizId));
+            }
+            if (newKey != null) {
+                index.getValue().put(indexEntry(newKey, orderBizId), seq);
+            }
+        }
+        meta.put(SEQ_KEY, seq);
+    }
+
+    @Override
+    public List<UserInfo> findByAliUid(String aliUid) {
+        List<UserInfo> result = new ArrayList<>();
+        if (aliUid == null) {
+            return result;
+        }
+        forEachIndexed("aliUid", aliUid, (orderBizId, seq) -> {
+            UserInfo userInfo = get(orderBizId);
+            if (userInfo != null && aliUid.equals(userInfo.getAliUid())) {
+                result.add(userInfo);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public UserInfo findByInstanceId(String instanceId) {
+        return findUnique("instanceId", instanceId);
+    }
+
+    @Override
+    public UserInfo findByComputeNestInstanceId(String computeNestInstanceId) {
+        return findUnique("computeNestInstanceId", computeNestInstanceId);
+    }
+
+    /**
+     * 唯一键查询：同一个键有多条记录时返回最后写入该键的记录
+     */
+    private UserInfo findUnique(String index, String key) {
+        if (key == null || key.trim().isEmpty()) {
+            return null;
+        }
+        long[] bestSeq = {Long.MIN_VALUE};
+        UserInfo[] best = new UserInfo[1];
+        forEachIndexed(index, key, (orderBizId, seq) -> {
+            if (seq > bestSeq[0]) {
+                UserInfo userInfo = get(orderBizId);
+                if (userInfo != null && key.equals(keyOf(index, userInfo))) {
+                    bestSeq[0] = seq;
+                    best[0] = userInfo;
+                }
+            }
+        });
+        return best[0];
+    }
+
+    private interface IndexVisitor {
+        void visit(String orderBizId, long seq);
+    }
+
+    private void forEachIndexed(String index, String key, IndexVisitor visitor) {
+        String prefix = key + KEY_SEPARATOR;
+        pinned(() -> {
+            Cursor<String, Long> cursor = indexMaps.get(index).cursor(prefix);
+            while (cursor.hasNext()) {
+                String entry = cursor.next();
+                if (!entry.startsWith(prefix)) {
+                    break;
+                }
+                visitor.visit(entry.substring(prefix.length()), cursor.getValue());
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void scan(String fromOrderBizId, String toOrderBizId, Consumer<UserInfo> consumer) {
+        pinned(() -> {
+            Cursor<String, byte[]> cursor = users.cursor(fromOrderBizId);
+            while (cursor.hasNext()) {
+                String orderBizId = cursor.next();
+                if (toOrderBizId != null && orderBizId.compareTo(toOrderBizId) >= 0) {
+                    break;
+                }
+                UserInfo userInfo = decode(cursor.getValue());
+                if (userInfo != null) {
+                    consumer.accept(userInfo);
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void forEach(Consumer<UserInfo> consumer) {
+        scan(null, null, consumer);
+    }
+
+    /**
+     * 按持久化级别提交。写入已包含在其他线程刚完成的提交中时直接返回，
+     * 并发写入因此合并为一次提交 + 一次 fsync。
+     */
+    private void commit() {
+        if (DURABILITY == GroupCommitWriter.Durability.ASYNC) {
+            return;
+        }
+        long writtenVersion = store.getCurrentVersion();
+        synchronized (commitLock) {
+            if (durableVersion > writtenVersion) {
+                return;
+            }
+            long start = System.nanoTime();
+            store.commit();
+            store.sync();
+            durableVersion = store.getCurrentVersion();
+            commits.incrementAndGet();
+            commitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 不论持久化级别立即提交并 fsync（导入与导入标记使用）
+     */
+    private void commitNow() {
+        synchronized (commitLock) {
+            store.commit();
+            store.sync();
+            durableVersion = store.getCurrentVersion();
+        }
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long commitCount = commits.get();
+        metrics.put("backend", "mvstore");
+        metrics.put("durability", DURABILITY.name());
+        metrics.put("records", users.size());
+        metrics.put("commits", commitCount);
+        metrics.put("avgCommitMicros", commitCount == 0 ? 0 : commitNanos.get() / commitCount / 1000);
+        metrics.put("fileBytes", store.getFileStore().size());
+        metrics.put("cacheSizeUsedMb", store.getCacheSizeUsed());
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+
+    private String keyOf(String index, UserInfo userInfo) {
+        String key = indexKeys.get(index).apply(userInfo);
+        return key == null || key.trim().isEmpty() ? null : key;
+    }
+
+    private static String indexEntry(String key, String orderBizId) {
+        return key + KEY_SEPARATOR + orderBizId;
+    }
+
+    private static UserInfo decode(byte[] data) {
+        return data == null ? null : UserInfoCodec.decode(ByteBuffer.wrap(data));
+    }
+
+    private <T> T withRecordLock(String orderBizId, Supplier<T> action) {
+        int h = orderBizId.hashCode();
+        synchronized (stripes[(h ^ (h >>> 16)) & (LOCK_STRIPES - 1)]) {
+            return pinned(action);
+        }
+    }
+
+    /**
+     * 登记当前版本的使用，期间该版本引用的 chunk 不会被复用（保留时间为 0 时无锁读取依赖此保护）
+     */
+    private <T> T pinned(Supplier<T> action) {
+        MVStore.TxCounter counter = store.registerVersionUsage();
+        try {
+            return action.get();
+        } finally {
+            store.deregisterVersionUsage(counter);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.isv.spi.services;
+
+import com.isv.spi.models.UserInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * 可内存映射的用户快照（版本2）
+ * 打开时只映射文件并校验头部，记录在首次访问时才解码。
+ * 布局:
+ *   头部(64字节): [int 魔数][short 版本][short 保留][int 记录数][int 表数量][long 表区偏移]
+ *   记录区: [int 长度][int CRC32][UserInfoCodec 字段]...
+ *   表区: 每张表 [int 槽数(2的幂)][槽: int 键哈希, int 记录偏移]...，偏移为0表示空槽
+ * 查找表按 orderBizId、instanceId、computeNestInstanceId、aliUid 建立，开放寻址线性探测，
+ * aliUid 表允许重复键（一个 aliUid 对应多条记录）。
+ */
+final class MappedSnapshot {
+    private static final Logger logger = LoggerFactory.getLogger(MappedSnapshot.class);
+
+    static final short VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+
+    static final int TABLE_ORDER_BIZ_ID = 0;
+    static final int TABLE_INSTANCE_ID = 1;
+    static final int TABLE_COMPUTE_NEST = 2;
+    static final int TABLE_ALIUID = 3;
+
+    // 各查找表的键，与 TABLE_* 顺序一致
+    static final List<Function<UserInfo, String>> TABLE_KEYS = Arrays.asList(
+            UserInfo::getOrderBizId,
+            UserInfo::getInstanceId,
+            UserInfo::getComputeNestInstanceId,
+            UserInfo::getAliUid);
+
+    private final Path file;
+    private final MappedByteBuffer buffer;
+    private final int recordCount;
+    private final long tablesOffset;
+    private final int[] tableOffsets;
+    private final int[] tableMasks;
+
+    private MappedSnapshot(Path file, MappedByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != UserInfoCodec.MAGIC) {
+            throw new IOException("不是有效的用户快照文件: " + file);
+        }
+        short version = buffer.getShort(4);
+        if (version != VERSION) {
+            throw new IOException("快照版本不匹配: " + version);
+        }
+        this.recordCount = buffer.getInt(8);
+        int tableCount = buffer.getInt(12);
+        this.tablesOffset = buffer.getLong(16);
+        if (tableCount != TABLE_KEYS.size() || tablesOffset < HEADER_SIZE || tablesOffset > buffer.capacity()) {
+            throw new IOException("快照头部损坏: " + file);
+        }
+        this.tableOffsets = new int[tableCount];
+        this.tableMasks = new int[tableCount];
+        int position = (int) tablesOffset;
+        for (int i = 0; i < tableCount; i++) {
+            int slots = buffer.getInt(position);
+            if (slots <= 0 || Integer.bitCount(slots) != 1 || position + 4 + (long) slots * 8 > buffer.capacity()) {
+                throw new IOException("快照查找表损坏: " + file);
+            }
+            tableOffsets[i] = position + 4;
+            tableMasks[i] = slots - 1;
+            position += 4 + slots * 8;
+        }
+    }
+
+    /**
+     * 以只读方式映射快照文件
+     */
+    static MappedSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("快照文件过大: " + channel.size());
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedSnapshot(file, buffer);
+        }
+    }
+
+    /**
+     * 读取文件头中的版本号（不映射文件）
+     */
+    static short readVersion(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != UserInfoCodec.MAGIC) {
+                throw new IOException("不是有效的用户数据文件（魔数不匹配）");
+            }
+            return in.readShort();
+        }
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    int getRecordCount() {
+        return recordCount;
+    }
+
+    long getSize() {
+        return buffer.capacity();
+    }
+
+    /**
+     * 查找键对应的所有候选记录偏移（哈希相同的记录都会返回，调用方需校验键）
+     */
+    void lookup(int table, String key, IntConsumer consumer) {
+        int hash = hash(key);
+        int base = tableOffsets[table];
+        int mask = tableMasks[table];
+        for (int i = hash & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+            int slot = base + i * 8;
+            int offset = buffer.getInt(slot + 4);
+            if (offset == 0) {
+                return;
+            }
+            if (buffer.getInt(slot) == hash) {
+                consumer.accept(offset);
+            }
+        }
+    }
+
+    /**
+     * 解码指定偏移的记录，CRC 校验失败时返回 null
+     */
+    UserInfo decodeAt(int offset) {
+        ByteBuffer record = recordAt(offset);
+        if (record == null) {
+            return null;
+        }
+        return UserInfoCodec.decode(record);
+    }
+
+    private ByteBuffer recordAt(int offset) {
+        int length = buffer.getInt(offset);
+        if (length <= 0 || offset + 8L + length > tablesOffset) {
+            logger.warn("快照记录长度非法: offset={}", offset);
+            return null;
+        }
+        ByteBuffer record = buffer.duplicate();
+        record.limit(offset + 8 + length);
+        record.position(offset + 8);
+        CRC32 crc = new CRC32();
+        crc.update(record.duplicate());
+        if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+            logger.warn("快照记录校验失败: offset={}", offset);
+            return null;
+        }
+        return record;
+    }
+
+    /**
+     * 顺序遍历全部记录的偏移
+     */
+    void forEachRecord(IntConsumer consumer) {
+        int offset = HEADER_SIZE;
+        while (offset < tablesOffset) {
+            int length = buffer.getInt(offset);
+            if (length <= 0) {
+                return;
+            }
+            consumer.accept(offset);
+            offset += 8 + length;
+        }
+    }
+
+    static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * 快照写入器：顺序写记录，结束时生成查找表并回填头部
+     */
+    static final class Writer implements Closeable {
+        private final RandomAccessFile file;
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(256);
+        private final int[][] tableHashes = new int[TABLE_KEYS.size()][];
+        private final int[][] tableRecords = new int[TABLE_KEYS.size()][];
+        private final int[] tableSizes = new int[TABLE_KEYS.size()];
+        private long position = HEADER_SIZE;
+        private int count;
+        private boolean finished;
+
+        Writer(File target) throws IOException {
+            this.file = new RandomAccessFile(target, "rw");
+            this.file.setLength(0);
+            this.file.seek(HEADER_SIZE);
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(this.file.getFD()), 64 * 1024));
+            for (int i = 0; i < tableHashes.length; i++) {
+                tableHashes[i] = new int[1024];
+                tableRecords[i] = new int[1024];
+            }
+        }
+
+        void write(UserInfo userInfo) throws IOException {
+            recordBuffer.reset();
+            UserInfoCodec.encodeTo(userInfo, recordBuffer);
+            byte[] data = recordBuffer.toByteArray();
+            if (position + 8 + data.length > Integer.MAX_VALUE) {
+                throw new IOException("快照超过 2GB，无法映射");
+            }
+            int offset = (int) position;
+            out.writeInt(data.length);
+            out.writeInt(UserInfoCodec.crc(data, 0, data.length));
+            out.write(data);
+            position += 8 + data.length;
+            count++;
+
+            for (int table = 0; table < TABLE_KEYS.size(); table++) {
+                String key = TABLE_KEYS.get(table).apply(userInfo);
+                if (key == null || key.trim().isEmpty()) {
+                    continue;
+                }
+                int size = tableSizes[table];
+                if (size == tableHashes[table].length) {
+                    tableHashes[table] = Arrays.copyOf(tableHashes[table], size * 2);
+                    tableRecords[table] = Arrays.copyOf(tableRecords[table], size * 2);
+                }
+                tableHashes[table][size] = hash(key);
+                tableRecords[table][size] = offset;
+                tableSizes[table] = size + 1;
+            }
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        /**
+         * 写入查找表、回填头部并 fsync
+         */
+        void finish() throws IOException {
+            long tablesOffset = position;
+            for (int table = 0; table < TABLE_KEYS.size(); table++) {
+                int size = tableSizes[table];
+                // 装载因子不超过 0.75
+                int slots = Integer.highestOneBit(Math.max(2, (int) (size * 4L / 3))) << 1;
+                int mask = slots - 1;
+                int[] slotHashes = new int[slots];
+                int[] slotRecords = new int[slots];
+                for (int i = 0; i < size; i++) {
+                    int slot = tableHashes[table][i] & mask;
+                    while (slotRecords[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    slotHashes[slot] = tableHashes[table][i];
+                    slotRecords[slot] = tableRecords[table][i];
+                }
+                out.writeInt(slots);
+                for (int i = 0; i < slots; i++) {
+                    out.writeInt(slotHashes[i]);
+                    out.writeInt(slotRecords[i]);
+                }
+                position += 4 + slots * 8L;
+            }
+            if (position > Integer.MAX_VALUE) {
+                throw new IOException("快照超过 2GB，无法映射");
+            }
+            out.flush();
+
+            file.seek(0);
+            file.writeInt(UserInfoCodec.MAGIC);
+            file.writeShort(VERSION);
+            file.writeShort(0);
+            file.writeInt(count);
+            file.writeInt(TABLE_KEYS.size());
+            file.writeLong(tablesOffset);
+            file.getFD().sync();
+            finished = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!finished) {
+                logger.warn("快照写入未完成即关闭");
+            }
+            file.close();
+        }
+    }
+}
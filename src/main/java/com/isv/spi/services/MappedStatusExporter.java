@@ -0,0 +1,171 @@
+package com.isv.spi.services;
+
+import com.isv.spi.models.UserInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 可选导出：把 计算巢实例ID -> 有效/有效截止时间 维护在内存映射状态表中（isv.status.mappedTable 指定文件路径，默认不启用），
+ * 网关侧通过 MappedStatusReader 直接查询，状态变化无需 nginx 重载。
+ * 通过 StorageService 的变更事件增量更新；启动时在后台按全部记录生成新表，生成期间的变更在完成后补写。
+ */
+@Service
+public class MappedStatusExporter implements UserChangeListener {
+    private static final Logger logger = LoggerFactory.getLogger(MappedStatusExporter.class);
+
+    private static final String TABLE_FILE = System.getProperty("isv.status.mappedTable", "");
+
+    private final StorageService storageService;
+    // 订单 -> 已导出的计算巢实例ID，订单改关联时刷新旧实例
+    private final Map<String, String> exportedByOrder = new ConcurrentHashMap<>();
+
+    // 以下字段由 this 保护
+    private MappedStatusTable table;
+    private Set<String> pendingBeforeSeed = new LinkedHashSet<>();
+
+    @Autowired
+    public MappedStatusExporter(StorageService storageService) {
+        this.storageService = storageService;
+        if (TABLE_FILE.isEmpty()) {
+            return;
+        }
+        storageService.addUserChangeListener(this);
+        Thread seeder = new Thread(() -> seed(Paths.get(TABLE_FILE)), "mapped-status-seed");
+        seeder.setDaemon(true);
+        seeder.start();
+    }
+
+    public boolean isEnabled() {
+        return !TABLE_FILE.isEmpty();
+    }
+
+    /**
+     * 按全部记录生成新表并原子替换旧文件
+     */
+    private void seed(Path file) {
+        long start = System.currentTimeMillis();
+        try {
+            Set<String> instanceIds = new LinkedHashSet<>();
+            storageService.forEachUser(userInfo -> {
+                String computeNestInstanceId = userInfo.getComputeNestInstanceId();
+                if (hasText(computeNestInstanceId)) {
+                    instanceIds.add(computeNestInstanceId);
+                    exportedByOrder.put(userInfo.getOrderBizId(), computeNestInstanceId);
+                }
+            });
+            Map<String, Long> initial = new HashMap<>(instanceIds.size() * 2);
+            for (String computeNestInstanceId : instanceIds) {
+                Long validUntil = currentValidUntil(computeNestInstanceId);
+                if (validUntil != null) {
+                    initial.put(computeNestInstanceId, validUntil);
+                }
+            }
+            MappedStatusTable created = new MappedStatusTable(file, initial);
+            Set<String> pending;
+            synchronized (this) {
+                table = created;
+                pending = pendingBeforeSeed;
+                pendingBeforeSeed = null;
+            }
+            for (String computeNestInstanceId : pending) {
+                export(computeNestInstanceId);
+            }
+            logger.info("内存映射状态表生成完成: {} 个实例，耗时 {} ms，文件 {}",
+                    initial.size(), System.currentTimeMillis() - start, file);
+        } catch (IOException | RuntimeException e) {
+            logger.error("生成内存映射状态表失败: {}", e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void onUserSaved(UserInfo userInfo) {
+        String computeNestInstanceId = userInfo.getComputeNestInstanceId();
+        String previous = hasText(computeNestInstanceId)
+                ? exportedByOrder.put(userInfo.getOrderBizId(), computeNestInstanceId)
+                : exportedByOrder.remove(userInfo.getOrderBizId());
+        if (previous != null && !previous.equals(computeNestInstanceId)) {
+            export(previous);
+        }
+        if (hasText(computeNestInstanceId)) {
+            export(computeNestInstanceId);
+        }
+    }
+
+    @Override
+    public void onUserDeleted(UserInfo userInfo) {
+        String previous = exportedByOrder.remove(userInfo.getOrderBizId());
+        if (previous != null) {
+            export(previous);
+        }
+        String computeNestInstanceId = userInfo.getComputeNestInstanceId();
+        if (hasText(computeNestInstanceId) && !computeNestInstanceId.equals(previous)) {
+            export(computeNestInstanceId);
+        }
+    }
+
+    /**
+     * 按存储中的当前状态写入或删除一个计算巢实例
+     */
+    private synchronized void export(String computeNestInstanceId) {
+        if (table == null) {
+            if (pendingBeforeSeed != null) {
+                pendingBeforeSeed.add(computeNestInstanceId);
+            }
+            return;
+        }
+        try {
+            Long validUntil = currentValidUntil(computeNestInstanceId);
+            if (validUntil == null) {
+                table.remove(computeNestInstanceId);
+            } else {
+                table.put(computeNestInstanceId, validUntil >= 0, validUntil);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            logger.error("更新内存映射状态表失败: {} - {}", computeNestInstanceId, e.getMessage());
+        }
+    }
+
+    /**
+     * 有效订单的截止时间；只有无效订单时为 -1；没有任何关联订单时为 null
+     */
+    private Long currentValidUntil(String computeNestInstanceId) {
+        EffectiveAccess access = storageService.getAccessByComputeNestInstanceId(computeNestInstanceId);
+        if (access != null) {
+            return access.getValidUntil();
+        }
+        return storageService.getUserByComputeNestInstanceId(computeNestInstanceId) != null ? -1L : null;
+    }
+
+    private static boolean hasText(String value) {
+        return value != null && !value.trim().isEmpty();
+    }
+
+    /**
+     * 状态表统计
+     */
+    public synchronized Map<String, Object> getMetrics() {
+        if (table == null) {
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            metrics.put("enabled", isEnabled());
+            metrics.put("ready", false);
+            return metrics;
+        }
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", true);
+        metrics.put("ready", true);
+        metrics.putAll(table.getMetrics());
+        return metrics;
+    }
+}
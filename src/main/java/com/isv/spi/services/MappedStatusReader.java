@@ -0,0 +1,260 @@
+package com.isv.spi.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+
+/**
+ * 内存映射状态表的只读客户端（网关侧使用，不依赖 Spring 或本服务的其他类）。
+ * 文件布局（小端）：64 字节文件头 + capacity 个 64 字节槽位，开放寻址、线性探测；
+ * 起始槽位为键 UTF-8 字节的 FNV-1a 64 位哈希高低 32 位异或后与 capacity-1 按位与。
+ * <pre>
+ * 文件头: 0 int magic "ISS1" | 4 int 格式版本 | 8 int 槽位数(2 的幂) | 12 int 槽位大小 | 16 int 已废弃标记 | 24 long 条目数
+ * 槽位:   0 long 版本号(奇数表示写入中) | 8 long 有效截止时间(毫秒) | 16 byte 状态 | 17 byte 键长度 | 18 键(最多 46 字节)
+ * </pre>
+ * 写入方按 seqlock 协议更新槽位：版本号加一（奇数）→ 写字段 → 版本号加一（偶数）；读取方在版本号为偶数且前后一致时采用读到的值。
+ * 写入方重建表（包括重启后首次打开）时写出新文件并原子替换，再把旧文件标记为已废弃，读取方发现后重新映射。
+ * 版本号持续为奇数（写入方在写槽位时退出）时，读取方有限次等待后检查文件是否已被替换，仍未替换则按 UNKNOWN 返回。
+ * 内存屏障使用 VarHandle 栅栏，需要 Java 9 及以上。
+ */
+public final class MappedStatusReader implements Closeable {
+
+    // 查询结果
+    public static final int UNKNOWN = 0;
+    public static final int VALID = 1;
+    public static final int INVALID = 2;
+
+    static final int MAGIC = 0x31535349; // "ISS1"
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int SLOT_SIZE = 64;
+    static final int MAX_KEY_BYTES = SLOT_SIZE - 18;
+
+    static final int OFF_MAGIC = 0;
+    static final int OFF_VERSION = 4;
+    static final int OFF_CAPACITY = 8;
+    static final int OFF_SLOT_SIZE = 12;
+    static final int OFF_RETIRED = 16;
+    static final int OFF_ENTRIES = 24;
+
+    static final int SLOT_SEQ = 0;
+    static final int SLOT_VALID_UNTIL = 8;
+    static final int SLOT_STATE = 16;
+    static final int SLOT_KEY_LEN = 17;
+    static final int SLOT_KEY = 18;
+
+    static final byte STATE_EMPTY = 0;
+    static final byte STATE_VALID = 1;
+    static final byte STATE_INVALID = 2;
+    static final byte STATE_DELETED = 3;
+
+    // 单个槽位等待写入完成的最大自旋次数，超过后由调用方检查文件是否已被替换
+    private static final int MAX_SPINS = 1000;
+    // 持续遇到写入中的槽位时最多重新检查的次数
+    private static final int MAX_BUSY_ROUNDS = 3;
+    // lookup 内部结果：槽位一直处于写入中
+    private static final long BUSY = Long.MIN_VALUE + 1;
+
+    /**
+     * 一次映射：缓冲区、槽位掩码与映射时的文件标识一起替换
+     */
+    private static final class Mapping {
+        final MappedByteBuffer buf;
+        final int mask;
+        final Object fileKey;
+
+        Mapping(MappedByteBuffer buf, int mask, Object fileKey) {
+            this.buf = buf;
+            this.mask = mask;
+            this.fileKey = fileKey;
+        }
+    }
+
+    private final Path file;
+    private volatile Mapping mapping;
+
+    public MappedStatusReader(Path file) throws IOException {
+        this.file = file;
+        map();
+    }
+
+    private void map() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            if (mapped.getInt(OFF_MAGIC) != MAGIC || mapped.getInt(OFF_VERSION) != FORMAT_VERSION
+                    || mapped.getInt(OFF_SLOT_SIZE) != SLOT_SIZE) {
+                throw new IOException("不是有效的状态表文件: " + file);
+            }
+            int capacity = mapped.getInt(OFF_CAPACITY);
+            if (Integer.bitCount(capacity) != 1 || channel.size() < HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+                throw new IOException("状态表文件长度与槽位数不符: " + file);
+            }
+            mapping = new Mapping(mapped, capacity - 1, fileKey(file));
+        }
+    }
+
+    /**
+     * 查询实例状态：VALID（有效且未超过截止时间）、INVALID 或 UNKNOWN（表中没有该实例）
+     */
+    public int status(String instanceId, long nowMillis) {
+        long validUntil = validUntil(instanceId);
+        if (validUntil == Long.MIN_VALUE) {
+            return UNKNOWN;
+        }
+        return validUntil >= 0 && nowMillis <= validUntil ? VALID : INVALID;
+    }
+
+    /**
+     * 实例的有效截止时间；无效实例返回 -1，表中没有该实例返回 Long.MIN_VALUE
+     */
+    public long validUntil(String instanceId) {
+        byte[] key = instanceId.getBytes(StandardCharsets.UTF_8);
+        if (key.length > MAX_KEY_BYTES) {
+            return Long.MIN_VALUE;
+        }
+        int busyRounds = 0;
+        while (true) {
+            Mapping current = currentMapping();
+            long result = lookup(current.buf, current.mask, key);
+            // 查询期间文件被替换时在新文件上重试
+            if (isRetired(current.buf)) {
+                continue;
+            }
+            if (result != BUSY) {
+                return result;
+            }
+            // 槽位一直处于写入中：文件已被替换（写入方重启前未能标记旧文件）时重新映射，否则有限次重试后返回 UNKNOWN
+            if (!Objects.equals(current.fileKey, fileKey(file))) {
+                remap(current);
+            } else if (++busyRounds >= MAX_BUSY_ROUNDS) {
+                return Long.MIN_VALUE;
+            }
+        }
+    }
+
+    private Mapping currentMapping() {
+        Mapping current = mapping;
+        if (current == null) {
+            throw new IllegalStateException("状态表已关闭: " + file);
+        }
+        if (isRetired(current.buf)) {
+            remap(current);
+            current = mapping;
+        }
+        return current;
+    }
+
+    private synchronized void remap(Mapping current) {
+        if (mapping == current) {
+            try {
+                map();
+            } catch (IOException e) {
+                throw new IllegalStateException("重新映射状态表失败: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * 文件标识（inode 等），不支持时为 null
+     */
+    private static Object fileKey(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean isRetired(MappedByteBuffer buf) {
+        loadFence();
+        return buf.getInt(OFF_RETIRED) != 0;
+    }
+
+    private static long lookup(MappedByteBuffer buf, int mask, byte[] key) {
+        int index = (int) hash(key, key.length) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            int slot = HEADER_SIZE + index * SLOT_SIZE;
+            int spins = 0;
+            while (true) {
+                if (++spins > MAX_SPINS) {
+                    return BUSY;
+                }
+                long seq = buf.getLong(slot + SLOT_SEQ);
+                if ((seq & 1) != 0) {
+                    Thread.yield();
+                    continue;
+                }
+                loadFence();
+                byte state = buf.get(slot + SLOT_STATE);
+                boolean matches = state != STATE_EMPTY && state != STATE_DELETED && keyEquals(buf, slot, key);
+                long validUntil = buf.getLong(slot + SLOT_VALID_UNTIL);
+                loadFence();
+                if (buf.getLong(slot + SLOT_SEQ) != seq) {
+                    continue;
+                }
+                if (state == STATE_EMPTY) {
+                    return Long.MIN_VALUE;
+                }
+                if (matches) {
+                    return state == STATE_VALID ? validUntil : -1;
+                }
+                break;
+            }
+            index = (index + 1) & mask;
+        }
+        return Long.MIN_VALUE;
+    }
+
+    private static boolean keyEquals(MappedByteBuffer buf, int slot, byte[] key) {
+        if ((buf.get(slot + SLOT_KEY_LEN) & 0xff) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buf.get(slot + SLOT_KEY + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * FNV-1a 64 位哈希
+     */
+    static long hash(byte[] key, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            h ^= key[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h ^ (h >>> 32);
+    }
+
+    /**
+     * 之前的读不与之后的读写重排
+     */
+    static void loadFence() {
+        VarHandle.acquireFence();
+    }
+
+    /**
+     * 之前的读写不与之后的写重排
+     */
+    static void storeFence() {
+        VarHandle.releaseFence();
+    }
+
+    @Override
+    public void close() {
+        mapping = null;
+    }
+}
@@ -0,0 +1,221 @@
+package com.isv.spi.services;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.isv.spi.services.MappedStatusReader.*;
+
+/**
+ * 内存映射状态表的写入端（布局与读取协议见 MappedStatusReader），单写多读，写入方法串行执行。
+ * 已有实例原地更新；删除只留下墓碑，墓碑与条目合计超过 70% 时按存活条目数重建到新文件并原子替换。
+ */
+final class MappedStatusTable {
+
+    private static final double MAX_LOAD = 0.7;
+
+    private final Path file;
+    private MappedByteBuffer buf;
+    private int capacity;
+    // 实例ID -> 槽位下标（只记录存活条目）
+    private final Map<String, Integer> slots = new HashMap<>();
+    private int tombstones;
+
+    // 统计
+    private long puts;
+    private long removes;
+    private long rebuilds;
+
+    /**
+     * 创建只包含 initial 中条目（实例ID -> 有效截止时间，-1 为无效）的新表并替换 file；
+     * file 已是有效的状态表时（例如重启前写出的）替换后将其标记为已废弃，仍映射着它的读取方随后重新映射
+     */
+    MappedStatusTable(Path file, Map<String, Long> initial) throws IOException {
+        this.file = file;
+        this.buf = mapExisting(file);
+        rebuild(initial, initial.size());
+    }
+
+    /**
+     * 映射已有的状态表文件，不存在或不是有效的状态表时返回 null
+     */
+    private static MappedByteBuffer mapExisting(Path file) throws IOException {
+        if (!Files.isRegularFile(file) || Files.size(file) < HEADER_SIZE) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer existing = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            existing.order(ByteOrder.LITTLE_ENDIAN);
+            if (existing.getInt(OFF_MAGIC) != MAGIC || existing.getInt(OFF_VERSION) != FORMAT_VERSION) {
+                return null;
+            }
+            return existing;
+        }
+    }
+
+    /**
+     * 写入实例状态：valid 为 false 时 validUntil 忽略
+     */
+    synchronized void put(String instanceId, boolean valid, long validUntil) throws IOException {
+        byte[] key = instanceId.getBytes(StandardCharsets.UTF_8);
+        if (key.length > MAX_KEY_BYTES) {
+            throw new IllegalArgumentException("实例ID过长，无法写入状态表: " + instanceId);
+        }
+        byte state = valid ? STATE_VALID : STATE_INVALID;
+        long until = valid ? validUntil : 0;
+        Integer index = slots.get(instanceId);
+        if (index != null) {
+            int slot = slotOffset(index);
+            if (buf.get(slot + SLOT_STATE) == state && buf.getLong(slot + SLOT_VALID_UNTIL) == until) {
+                return;
+            }
+            writeSlot(slot, state, until, null);
+            puts++;
+            return;
+        }
+        if (slots.size() + tombstones + 1 > capacity * MAX_LOAD) {
+            rebuild(snapshot(), slots.size() + 1);
+            rebuilds++;
+        }
+        int free = findEmpty(key);
+        writeSlot(slotOffset(free), state, until, key);
+        slots.put(instanceId, free);
+        buf.putLong(OFF_ENTRIES, slots.size());
+        puts++;
+    }
+
+    /**
+     * 删除实例（写入墓碑，保留探测链）
+     */
+    synchronized void remove(String instanceId) {
+        Integer index = slots.remove(instanceId);
+        if (index == null) {
+            return;
+        }
+        writeSlot(slotOffset(index), STATE_DELETED, 0, null);
+        tombstones++;
+        buf.putLong(OFF_ENTRIES, slots.size());
+        removes++;
+    }
+
+    /**
+     * seqlock 写入：版本号变为奇数 → 写字段 → 版本号变为偶数
+     */
+    private void writeSlot(int slot, byte state, long validUntil, byte[] key) {
+        long seq = buf.getLong(slot + SLOT_SEQ);
+        buf.putLong(slot + SLOT_SEQ, seq + 1);
+        storeFence();
+        if (key != null) {
+            buf.put(slot + SLOT_KEY_LEN, (byte) key.length);
+            for (int i = 0; i < key.length; i++) {
+                buf.put(slot + SLOT_KEY + i, key[i]);
+            }
+        }
+        buf.putLong(slot + SLOT_VALID_UNTIL, validUntil);
+        buf.put(slot + SLOT_STATE, state);
+        storeFence();
+        buf.putLong(slot + SLOT_SEQ, seq + 2);
+    }
+
+    private int findEmpty(byte[] key) {
+        int mask = capacity - 1;
+        int index = (int) hash(key, key.length) & mask;
+        while (buf.get(slotOffset(index) + SLOT_STATE) != STATE_EMPTY) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private static int slotOffset(int index) {
+        return HEADER_SIZE + index * SLOT_SIZE;
+    }
+
+    /**
+     * 当前存活条目：实例ID -> 有效截止时间，-1 为无效
+     */
+    private Map<String, Long> snapshot() {
+        Map<String, Long> entries = new HashMap<>(slots.size() * 2);
+        for (Map.Entry<String, Integer> entry : slots.entrySet()) {
+            int slot = slotOffset(entry.getValue());
+            entries.put(entry.getKey(), buf.get(slot + SLOT_STATE) == STATE_VALID
+                    ? buf.getLong(slot + SLOT_VALID_UNTIL) : -1L);
+        }
+        return entries;
+    }
+
+    /**
+     * 按条目数重建：写出临时文件 → 原子替换 → 旧文件标记为已废弃（读取方随后重新映射）
+     */
+    private void rebuild(Map<String, Long> entries, int minEntries) throws IOException {
+        int newCapacity = 1024;
+        while (newCapacity * MAX_LOAD < Math.max(minEntries, entries.size()) * 2L) {
+            newCapacity <<= 1;
+        }
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = dir.resolve("." + file.getFileName() + ".tmp");
+        long size = HEADER_SIZE + (long) newCapacity * SLOT_SIZE;
+        MappedByteBuffer newBuf;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            newBuf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        newBuf.order(ByteOrder.LITTLE_ENDIAN);
+        newBuf.putInt(OFF_MAGIC, MAGIC);
+        newBuf.putInt(OFF_VERSION, FORMAT_VERSION);
+        newBuf.putInt(OFF_CAPACITY, newCapacity);
+        newBuf.putInt(OFF_SLOT_SIZE, SLOT_SIZE);
+
+        // 旧映射（含构造时映射的已有文件）在新文件替换后标记为已废弃
+        MappedByteBuffer oldBuf = buf;
+        buf = newBuf;
+        capacity = newCapacity;
+        slots.clear();
+        tombstones = 0;
+        for (Map.Entry<String, Long> entry : entries.entrySet()) {
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            if (key.length > MAX_KEY_BYTES) {
+                continue;
+            }
+            long validUntil = entry.getValue();
+            int index = findEmpty(key);
+            writeSlot(slotOffset(index), validUntil >= 0 ? STATE_VALID : STATE_INVALID, Math.max(0, validUntil), key);
+            slots.put(entry.getKey(), index);
+        }
+        newBuf.putLong(OFF_ENTRIES, slots.size());
+        newBuf.force();
+        Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-r--r--"));
+        try {
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (oldBuf != null) {
+            storeFence();
+            oldBuf.putInt(OFF_RETIRED, 1);
+        }
+    }
+
+    synchronized Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("file", file.toString());
+        metrics.put("entries", slots.size());
+        metrics.put("capacity", capacity);
+        metrics.put("tombstones", tombstones);
+        metrics.put("puts", puts);
+        metrics.put("removes", removes);
+        metrics.put("rebuilds", rebuilds);
+        return metrics;
+    }
+}
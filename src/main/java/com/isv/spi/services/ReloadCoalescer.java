@@ -0,0 +1,235 @@
+package com.isv.spi.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 全局 nginx 重载合并：所有实例的状态变化共用一条重载管道，单个后台线程执行，同一时刻最多一次重载。
+ * 最后一次变化后静默 quietMs 再重载，但距第一个未处理变化不超过 maxDelayMs；两次重载开始间隔至少 minIntervalMs。
+ * 重载执行期间到达的变化累积到下一轮，没有新变化时不再重载。
+ * 重载失败时本轮的变化重新登记，按指数退避（retryBaseMs 起翻倍，最长 retryMaxMs）重试，成功后退避清零；
+ * 关闭时只对剩余变化执行一次重载，不再重试。
+ */
+final class ReloadCoalescer {
+    private static final Logger logger = LoggerFactory.getLogger(ReloadCoalescer.class);
+
+    private static final long QUIET_MS = Long.getLong("isv.reload.quietMs", 1000);
+    private static final long MAX_DELAY_MS = Long.getLong("isv.reload.maxDelayMs", 5000);
+    private static final long MIN_INTERVAL_MS = Long.getLong("isv.reload.minIntervalMs", 2000);
+    // 失败重试的首次退避与退避上限
+    private static final long RETRY_BASE_MS = Long.getLong("isv.reload.retryBaseMs", 1000);
+    private static final long RETRY_MAX_MS = Long.getLong("isv.reload.retryMaxMs", 60000);
+
+    private final BooleanSupplier reloadAction;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Thread worker;
+
+    // 以下字段由 lock 保护
+    private long pendingChanges;
+    private long firstPendingAt;
+    private long lastChangeAt;
+    private long lastReloadStart;
+    // 连续失败次数与下一次重试的最早时间（0 表示没有退避）
+    private int consecutiveFailures;
+    private long retryAt;
+    private boolean running = true;
+    private boolean reloading;
+
+    // 统计（只由工作线程写入）
+    private volatile long reloads;
+    private volatile long failures;
+    private volatile long retries;
+    private volatile long changesCoalesced;
+    private volatile long lastBatchChanges;
+    private volatile long maxBatchChanges;
+    private volatile long lastLatencyMillis;
+    private volatile long maxLatencyMillis;
+    private volatile long totalLatencyMillis;
+
+    ReloadCoalescer(BooleanSupplier reloadAction) {
+        this.reloadAction = reloadAction;
+        worker = new Thread(this::runLoop, "nginx-reload");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * 登记 changes 个状态变化，由后台线程合并后重载
+     */
+    void requestReload(int changes) {
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            if (pendingChanges == 0) {
+                firstPendingAt = now;
+            }
+            pendingChanges += Math.max(1, changes);
+            lastChangeAt = now;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runLoop() {
+        while (true) {
+            long batch;
+            lock.lock();
+            try {
+                while (running) {
+                    if (pendingChanges == 0) {
+                        changed.await();
+                        continue;
+                    }
+                    long waitMillis = dueAt() - System.currentTimeMillis();
+                    if (waitMillis <= 0) {
+                        break;
+                    }
+                    changed.await(waitMillis, TimeUnit.MILLISECONDS);
+                }
+                if (!running) {
+                    return;
+                }
+                batch = pendingChanges;
+                pendingChanges = 0;
+                lastReloadStart = System.currentTimeMillis();
+                reloading = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+            boolean ok = false;
+            try {
+                ok = reload(batch);
+            } finally {
+                lock.lock();
+                try {
+                    reloading = false;
+                    if (ok) {
+                        consecutiveFailures = 0;
+                        retryAt = 0;
+                    } else {
+                        rearm(batch);
+                    }
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * 重载失败：把本轮变化重新登记，按连续失败次数退避（需持有 lock）
+     */
+    private void rearm(long batch) {
+        long now = System.currentTimeMillis();
+        if (pendingChanges == 0) {
+            firstPendingAt = now;
+            lastChangeAt = now;
+        }
+        pendingChanges += batch;
+        consecutiveFailures++;
+        long backoff = RETRY_BASE_MS << Math.min(consecutiveFailures - 1, 20);
+        retryAt = now + Math.min(backoff, RETRY_MAX_MS);
+        retries++;
+        logger.warn("nginx 重载失败，{} 个变化将在 {} ms 后重试（连续失败 {} 次）",
+                batch, retryAt - now, consecutiveFailures);
+    }
+
+    /**
+     * 下一次重载的时间：静默期结束与最大延迟取较早者，且不早于最小间隔和失败退避（需持有 lock）
+     */
+    private long dueAt() {
+        long due = Math.min(lastChangeAt + QUIET_MS, firstPendingAt + MAX_DELAY_MS);
+        return Math.max(Math.max(due, lastReloadStart + MIN_INTERVAL_MS), retryAt);
+    }
+
+    /**
+     * 执行一次重载，返回是否成功
+     */
+    private boolean reload(long batch) {
+        long start = System.currentTimeMillis();
+        boolean ok;
+        try {
+            ok = reloadAction.getAsBoolean();
+        } catch (RuntimeException e) {
+            logger.error("nginx 重载失败: {}", e.getMessage(), e);
+            ok = false;
+        }
+        long latency = System.currentTimeMillis() - start;
+        reloads++;
+        if (!ok) {
+            failures++;
+        }
+        changesCoalesced += batch;
+        lastBatchChanges = batch;
+        maxBatchChanges = Math.max(maxBatchChanges, batch);
+        lastLatencyMillis = latency;
+        maxLatencyMillis = Math.max(maxLatencyMillis, latency);
+        totalLatencyMillis += latency;
+        logger.info("nginx 重载完成: 合并 {} 个变化，耗时 {} ms", batch, latency);
+        return ok;
+    }
+
+    /**
+     * 停止后台线程；仍有未处理变化时在调用线程执行最后一次重载
+     */
+    void shutdown() {
+        long remaining;
+        lock.lock();
+        try {
+            running = false;
+            changed.signalAll();
+            while (reloading) {
+                changed.awaitUninterruptibly();
+            }
+            remaining = pendingChanges;
+            pendingChanges = 0;
+        } finally {
+            lock.unlock();
+        }
+        if (remaining > 0) {
+            reload(remaining);
+        }
+    }
+
+    Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long count = reloads;
+        lock.lock();
+        try {
+            metrics.put("pendingChanges", pendingChanges);
+            metrics.put("reloading", reloading);
+            metrics.put("consecutiveFailures", consecutiveFailures);
+            metrics.put("retryInMillis", retryAt > 0 ? Math.max(0, retryAt - System.currentTimeMillis()) : 0);
+        } finally {
+            lock.unlock();
+        }
+        metrics.put("reloads", count);
+        metrics.put("failures", failures);
+        metrics.put("retries", retries);
+        metrics.put("changesCoalesced", changesCoalesced);
+        metrics.put("avgChangesPerReload", count > 0 ? (double) changesCoalesced / count : 0.0);
+        metrics.put("lastBatchChanges", lastBatchChanges);
+        metrics.put("maxBatchChanges", maxBatchChanges);
+        metrics.put("lastLatencyMillis", lastLatencyMillis);
+        metrics.put("maxLatencyMillis", maxLatencyMillis);
+        metrics.put("avgLatencyMillis", count > 0 ? (double) totalLatencyMillis / count : 0.0);
+        metrics.put("quietMs", QUIET_MS);
+        metrics.put("maxDelayMs", MAX_DELAY_MS);
+        metrics.put("minIntervalMs", MIN_INTERVAL_MS);
+        metrics.put("retryMaxMs", RETRY_MAX_MS);
+        return metrics;
+    }
+}
@@ -0,0 +1,134 @@
+package com.isv.spi.services;
+
+import com.isv.spi.models.UserInfo;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * 用户存储的二级索引：从 UserInfo 提取的键 -> orderBizId
+ * 索引同时记录每个 orderBizId 当前被索引的键，因此调用方原地修改 UserInfo 后再保存，
+ * 旧键也能被正确移除。新增查询键只需注册一个新的 SecondaryIndex。
+ * 索引只覆盖内存中的记录，快照中尚未解码的记录由快照查找表定位。
+ * 每个键对应的 orderBizId 列表不可变，更新时通过 compute 整体替换（写时复制），读取无需加锁；
+ * 同一个 orderBizId 的更新由调用方串行（StorageService 的条带锁）。
+ */
+class SecondaryIndex {
+
+    private final String name;
+    private final Function<UserInfo, String> keyExtractor;
+    // 唯一索引：同一个键按最后写入的记录返回；先写入的仍保留，后写入者改键后可以重新命中
+    private final boolean unique;
+
+    private final Map<String, List<String>> entries = new ConcurrentHashMap<>();
+    private final Map<String, String> keyByOrderBizId = new ConcurrentHashMap<>();
+
+    SecondaryIndex(String name, Function<UserInfo, String> keyExtractor, boolean unique) {
+        this.name = name;
+        this.keyExtractor = keyExtractor;
+        this.unique = unique;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * 记录在本索引中的键
+     */
+    String keyOf(UserInfo userInfo) {
+        return normalize(keyExtractor.apply(userInfo));
+    }
+
+    /**
+     * 记录写入（新增或修改）后更新索引
+     */
+    void update(String orderBizId, UserInfo userInfo) {
+        String newKey = keyOf(userInfo);
+        String oldKey = keyByOrderBizId.get(orderBizId);
+        if (Objects.equals(oldKey, newKey)) {
+            return;
+        }
+        if (oldKey != null) {
+            removeEntry(oldKey, orderBizId);
+            keyByOrderBizId.remove(orderBizId);
+        }
+        if (newKey != null) {
+            entries.compute(newKey, (k, orderList) -> with(orderList, orderBizId));
+            keyByOrderBizId.put(orderBizId, newKey);
+        }
+    }
+
+    /**
+     * 记录删除后更新索引
+     */
+    void remove(String orderBizId) {
+        String oldKey = keyByOrderBizId.remove(orderBizId);
+        if (oldKey != null) {
+            removeEntry(oldKey, orderBizId);
+        }
+    }
+
+    private void removeEntry(String key, String orderBizId) {
+        entries.computeIfPresent(key, (k, orderList) -> without(orderList, orderBizId));
+    }
+
+    private static List<String> with(List<String> orderList, String orderBizId) {
+        if (orderList == null) {
+            return Collections.singletonList(orderBizId);
+        }
+        List<String> copy = new ArrayList<>(orderList.size() + 1);
+        copy.addAll(orderList);
+        copy.add(orderBizId);
+        return Collections.unmodifiableList(copy);
+    }
+
+    /**
+     * 返回 null 时 compute 会移除该键
+     */
+    private static List<String> without(List<String> orderList, String orderBizId) {
+        int position = orderList.indexOf(orderBizId);
+        if (position < 0) {
+            return orderList;
+        }
+        if (orderList.size() == 1) {
+            return null;
+        }
+        List<String> copy = new ArrayList<>(orderList);
+        copy.remove(position);
+        return Collections.unmodifiableList(copy);
+    }
+
+    /**
+     * 唯一索引查询（返回最后写入该键的记录）
+     */
+    String getFirst(String key) {
+        List<String> orderList = entries.get(key);
+        if (orderList == null || orderList.isEmpty()) {
+            return null;
+        }
+        return unique ? orderList.get(orderList.size() - 1) : orderList.get(0);
+    }
+
+    /**
+     * 多值索引查询，返回的列表不可变
+     */
+    List<String> get(String key) {
+        List<String> orderList = entries.get(key);
+        return orderList == null ? Collections.emptyList() : orderList;
+    }
+
+    Set<String> keys() {
+        return entries.keySet();
+    }
+
+    private static String normalize(String key) {
+        return key == null || key.trim().isEmpty() ? null : key;
+    }
+}
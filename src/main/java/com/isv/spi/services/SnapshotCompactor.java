@@ -0,0 +1,179 @@
+package com.isv.spi.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 后台快照压缩：日志条数、日志字节数或距上次快照的时间达到阈值时，
+ * 在后台线程生成新快照并删除已被快照覆盖的日志，写入路径不再同步等待快照。
+ */
+class SnapshotCompactor {
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotCompactor.class);
+
+    // 检查触发条件的间隔
+    private static final long CHECK_INTERVAL_MS = 1000;
+
+    /**
+     * 压缩对象
+     */
+    interface Target {
+        /**
+         * 执行一次压缩，返回回收的字节数；没有需要压缩的内容时返回 -1
+         */
+        long compact() throws IOException;
+
+        int pendingEntries();
+
+        long pendingLogBytes();
+    }
+
+    private final Target target;
+    private final int maxEntries;
+    private final long maxLogBytes;
+    private final long maxAgeMillis;
+
+    private final Object signal = new Object();
+    private boolean requested;
+    private volatile boolean running;
+    private Thread worker;
+    private volatile long lastCompactionAt = System.currentTimeMillis();
+
+    // 统计
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalMillis = new AtomicLong();
+    private final AtomicLong bytesReclaimed = new AtomicLong();
+    private volatile long lastMillis;
+    private volatile long lastBytesReclaimed;
+    private volatile String lastTrigger;
+
+    SnapshotCompactor(Target target, int maxEntries, long maxLogBytes, long maxAgeMillis) {
+        this.target = target;
+        this.maxEntries = maxEntries;
+        this.maxLogBytes = maxLogBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    void start() {
+        running = true;
+        worker = new Thread(this::runLoop, "user-store-compactor");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * 写入路径发现日志超过阈值时调用，只唤醒后台线程，不阻塞调用方
+     */
+    void requestCompaction() {
+        synchronized (signal) {
+            requested = true;
+            signal.notifyAll();
+        }
+    }
+
+    /**
+     * 日志是否已达到条数或字节数阈值
+     */
+    boolean isLogFull() {
+        return target.pendingEntries() >= maxEntries
+                || (maxLogBytes > 0 && target.pendingLogBytes() >= maxLogBytes);
+    }
+
+    private void runLoop() {
+        while (running) {
+            try {
+                synchronized (signal) {
+                    if (!requested) {
+                        signal.wait(CHECK_INTERVAL_MS);
+                    }
+                    requested = false;
+                }
+                if (!running) {
+                    break;
+                }
+                String trigger = trigger();
+                if (trigger != null) {
+                    runOnce(trigger);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException e) {
+                logger.error("快照压缩线程异常: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    private String trigger() {
+        if (target.pendingEntries() >= maxEntries) {
+            return "entries";
+        }
+        if (maxLogBytes > 0 && target.pendingLogBytes() >= maxLogBytes) {
+            return "size";
+        }
+        if (maxAgeMillis > 0 && target.pendingEntries() > 0
+                && System.currentTimeMillis() - lastCompactionAt >= maxAgeMillis) {
+            return "age";
+        }
+        return null;
+    }
+
+    /**
+     * 同步执行一次压缩（启动迁移时或后台线程调用）
+     */
+    synchronized void runOnce(String trigger) {
+        long start = System.nanoTime();
+        try {
+            long reclaimed = target.compact();
+            lastCompactionAt = System.currentTimeMillis();
+            if (reclaimed < 0) {
+                return;
+            }
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            compactions.incrementAndGet();
+            totalMillis.addAndGet(millis);
+            bytesReclaimed.addAndGet(Math.max(0, reclaimed));
+            lastMillis = millis;
+            lastBytesReclaimed = reclaimed;
+            lastTrigger = trigger;
+            logger.info("快照压缩完成（触发: {}），耗时 {} ms，回收 {} 字节", trigger, millis, reclaimed);
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            logger.error("快照压缩失败（触发: {}）: {}", trigger, e.getMessage(), e);
+        }
+    }
+
+    Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long count = compactions.get();
+        metrics.put("compactions", count);
+        metrics.put("failures", failures.get());
+        metrics.put("lastTrigger", lastTrigger);
+        metrics.put("lastMillis", lastMillis);
+        metrics.put("avgMillis", count == 0 ? 0 : totalMillis.get() / count);
+        metrics.put("lastBytesReclaimed", lastBytesReclaimed);
+        metrics.put("totalBytesReclaimed", bytesReclaimed.get());
+        metrics.put("lastCompactionAt", lastCompactionAt);
+        metrics.put("pendingEntries", target.pendingEntries());
+        metrics.put("pendingLogBytes", target.pendingLogBytes());
+        return metrics;
+    }
+
+    void stop() {
+        running = false;
+        requestCompaction();
+        if (worker != null) {
+            try {
+                worker.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
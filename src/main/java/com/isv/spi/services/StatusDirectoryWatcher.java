@@ -0,0 +1,301 @@
+package com.isv.spi.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 监听状态目录，把运维或脚本在运行期间放入、改写、删除的 <实例ID>.conf 增量导入存储，无需重启。
+ * 事件按实例去重，静默 debounceMs 后（持续有事件时最长 maxDelayMs）整批读取并一次写入存储；
+ * 文件内容与本进程写出的状态一致时视为本进程的写入，跳过；事件溢出时按修改时间索引重新扫描目录，只读取有变化的文件。
+ */
+@Service
+public class StatusDirectoryWatcher implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(StatusDirectoryWatcher.class);
+
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("isv.watch.enabled", "true"));
+    private static final long DEBOUNCE_MS = Long.getLong("isv.watch.debounceMs", 500);
+    private static final long MAX_DELAY_MS = Long.getLong("isv.watch.maxDelayMs", 5000);
+
+    private static final String SUFFIX = ".conf";
+
+    private final StorageService storageService;
+    private final InstanceStatusService instanceStatusService;
+    private final Path dir = Paths.get(InstanceStatusService.STATUS_DIR);
+
+    // 以下字段只由监听线程访问
+    // 实例ID -> 上次处理时的文件修改时间（溢出后重新扫描时比较）
+    private final Map<String, Long> mtimes = new HashMap<>();
+    // 待处理的实例ID
+    private final Set<String> dirty = new LinkedHashSet<>();
+    private long firstDirtyAt;
+    private long lastEventAt;
+
+    private volatile boolean running = true;
+    private volatile WatchService watchService;
+    private final Thread worker;
+
+    // 统计
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private final AtomicLong rescanned = new AtomicLong();
+    private final AtomicLong selfSkipped = new AtomicLong();
+    private final AtomicLong ingested = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile int lastBatchSize;
+    private volatile long lastBatchMillis;
+    private volatile int indexSize;
+
+    @Autowired
+    public StatusDirectoryWatcher(StorageService storageService, InstanceStatusService instanceStatusService) {
+        this.storageService = storageService;
+        this.instanceStatusService = instanceStatusService;
+        if (!ENABLED) {
+            worker = null;
+            return;
+        }
+        worker = new Thread(this::runLoop, "status-dir-watcher");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void runLoop() {
+        try (WatchService service = FileSystems.getDefault().newWatchService()) {
+            watchService = service;
+            Files.createDirectories(dir);
+            dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            // 已有文件由启动时的早期用户导入处理，导入完成后只建立修改时间索引；等待期间的事件保留在监听队列中
+            while (running && !storageService.awaitEarlyUsers(1000)) {
+                logger.debug("等待早期用户导入完成");
+            }
+            scanDirectory(false);
+            logger.info("开始监听状态目录: {}，已有 {} 个状态文件", dir, mtimes.size());
+            while (running) {
+                WatchKey key = service.poll(dirty.isEmpty() ? 1000 : DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    boolean overflow = drainEvents(key);
+                    if (!key.reset()) {
+                        logger.error("状态目录已不可访问，停止监听: {}", dir);
+                        break;
+                    }
+                    if (overflow) {
+                        // 事件丢失：按修改时间索引找出有变化的文件
+                        overflows.incrementAndGet();
+                        scanDirectory(true);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (!dirty.isEmpty() && (now - lastEventAt >= DEBOUNCE_MS || now - firstDirtyAt >= MAX_DELAY_MS)) {
+                    processDirty();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            logger.debug("状态目录监听已关闭");
+        } catch (IOException | RuntimeException e) {
+            logger.error("状态目录监听失败: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 取出一个 key 上的全部事件，返回是否发生溢出
+     */
+    private boolean drainEvents(WatchKey key) {
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            events.incrementAndGet();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            String instanceId = instanceIdOf(event.context().toString());
+            if (instanceId != null) {
+                markDirty(instanceId);
+            }
+        }
+        return overflow;
+    }
+
+    /**
+     * 文件名对应的实例ID；临时文件（以 . 开头）、实例ID不合法的文件和其他文件返回 null
+     */
+    private static String instanceIdOf(String fileName) {
+        if (fileName.startsWith(".") || !fileName.endsWith(SUFFIX) || fileName.length() == SUFFIX.length()) {
+            return null;
+        }
+        String instanceId = fileName.substring(0, fileName.length() - SUFFIX.length());
+        return InstanceStatusService.isValidInstanceId(instanceId) ? instanceId : null;
+    }
+
+    private void markDirty(String instanceId) {
+        long now = System.currentTimeMillis();
+        if (dirty.isEmpty()) {
+            firstDirtyAt = now;
+        }
+        dirty.add(instanceId);
+        lastEventAt = now;
+    }
+
+    /**
+     * 列出目录并比较修改时间：ingest 为 true 时把新增、修改时间变化和已消失的文件标记为待处理，否则只建立索引
+     */
+    private void scanDirectory(boolean ingest) {
+        long start = System.currentTimeMillis();
+        Set<String> seen = new HashSet<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                String instanceId = instanceIdOf(file.getFileName().toString());
+                if (instanceId == null) {
+                    continue;
+                }
+                seen.add(instanceId);
+                long mtime;
+                try {
+                    mtime = Files.getLastModifiedTime(file).toMillis();
+                } catch (NoSuchFileException e) {
+                    seen.remove(instanceId);
+                    continue;
+                }
+                Long indexed = mtimes.get(instanceId);
+                if (!ingest) {
+                    mtimes.put(instanceId, mtime);
+                } else if (indexed == null || indexed != mtime) {
+                    markDirty(instanceId);
+                }
+            }
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            logger.error("扫描状态目录失败: {}", e.getMessage(), e);
+            return;
+        }
+        if (ingest) {
+            for (String instanceId : mtimes.keySet()) {
+                if (!seen.contains(instanceId)) {
+                    markDirty(instanceId);
+                }
+            }
+            rescanned.incrementAndGet();
+            logger.info("状态目录事件溢出，按修改时间重新扫描: {} 个文件，{} 个待处理，耗时 {} ms",
+                    seen.size(), dirty.size(), System.currentTimeMillis() - start);
+        }
+        indexSize = mtimes.size();
+    }
+
+    /**
+     * 读取待处理实例的当前文件，跳过本进程的写入，其余一次导入存储
+     */
+    private void processDirty() {
+        long start = System.currentTimeMillis();
+        Map<String, Boolean> changes = new LinkedHashMap<>();
+        String[] idOut = new String[1];
+        for (String instanceId : dirty) {
+            Path file = dir.resolve(instanceId + SUFFIX);
+            Boolean onDisk;
+            try {
+                long mtime = Files.getLastModifiedTime(file).toMillis();
+                List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+                onDisk = lines.isEmpty() ? null : StatusFiles.parseLine(lines.get(0), idOut);
+                if (onDisk == null) {
+                    // 内容不完整（可能仍在写入），等待下一次事件
+                    continue;
+                }
+                mtimes.put(instanceId, mtime);
+            } catch (NoSuchFileException e) {
+                onDisk = null;
+                mtimes.remove(instanceId);
+            } catch (IOException e) {
+                failures.incrementAndGet();
+                logger.warn("读取状态文件失败: {} - {}", file, e.getMessage());
+                continue;
+            }
+            if (instanceStatusService.isOwnStatus(instanceId, onDisk)) {
+                selfSkipped.incrementAndGet();
+                continue;
+            }
+            changes.put(instanceId, onDisk);
+        }
+        dirty.clear();
+        indexSize = mtimes.size();
+        if (changes.isEmpty()) {
+            return;
+        }
+        try {
+            ingested.addAndGet(storageService.ingestStatusChanges(changes));
+        } catch (RuntimeException e) {
+            failures.incrementAndGet();
+            logger.error("导入状态文件改动失败: {}", e.getMessage(), e);
+        }
+        batches.incrementAndGet();
+        lastBatchSize = changes.size();
+        lastBatchMillis = System.currentTimeMillis() - start;
+    }
+
+    /**
+     * 目录监听统计
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", ENABLED);
+        metrics.put("events", events.get());
+        metrics.put("overflows", overflows.get());
+        metrics.put("rescanned", rescanned.get());
+        metrics.put("selfSkipped", selfSkipped.get());
+        metrics.put("ingested", ingested.get());
+        metrics.put("batches", batches.get());
+        metrics.put("failures", failures.get());
+        metrics.put("lastBatchSize", lastBatchSize);
+        metrics.put("lastBatchMillis", lastBatchMillis);
+        metrics.put("indexedFiles", indexSize);
+        metrics.put("debounceMs", DEBOUNCE_MS);
+        return metrics;
+    }
+
+    @Override
+    public void destroy() {
+        running = false;
+        if (worker == null) {
+            return;
+        }
+        WatchService service = watchService;
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                logger.debug("关闭目录监听失败: {}", e.getMessage());
+            }
+        }
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.isv.spi.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * 每实例状态文件的后台写入：写入/删除作为事件进入有界队列，同一实例尚未写出的事件只保留最新一次，
+ * 单个写线程成批取出，每个文件经临时文件 + 原子重命名写出，整批写完后对目录做一次 fsync。
+ * 入队从不做 I/O（可在持有其他锁时调用）；队列超过上限或写线程已停止时，调用方释放锁后调用 drainIfBacklogged
+ * 在调用线程写出，不丢弃状态。
+ */
+final class StatusFileWriter {
+    private static final Logger logger = LoggerFactory.getLogger(StatusFileWriter.class);
+
+    private static final int MAX_PENDING = Integer.getInteger("isv.status.writeQueueSize", 10000);
+
+    private final Path dir;
+    // 写出成功后回调：实例ID -> 文件中的状态（null 表示文件已删除）
+    private final BiConsumer<String, Boolean> onApplied;
+    // 实例ID -> 目标状态（null 表示删除文件），按首次入队顺序
+    private final LinkedHashMap<String, Boolean> pending = new LinkedHashMap<>();
+    // 已取出、尚未写完的实例ID（由 pending 的监视器保护），写完前仍视为有排队中的事件
+    private final Set<String> inFlight = new HashSet<>();
+    // 取批与写出在同一把锁内完成，保证同一实例的写出顺序与入队顺序一致
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile boolean running = true;
+    private final Thread worker;
+
+    // 统计
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong merged = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong callerRuns = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong totalWriteMicros = new AtomicLong();
+    private volatile long maxWriteMicros;
+    private volatile int lastBatchSize;
+    private volatile int maxDepth;
+
+    StatusFileWriter(String dir, BiConsumer<String, Boolean> onApplied) {
+        this.dir = Paths.get(dir);
+        this.onApplied = onApplied;
+        worker = new Thread(this::runLoop, "status-file-writer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * 写入状态文件（只入队）
+     */
+    void write(String instanceId, boolean isValid) {
+        submit(instanceId, isValid);
+    }
+
+    /**
+     * 删除状态文件（只入队）
+     */
+    void delete(String instanceId) {
+        submit(instanceId, null);
+    }
+
+    private void submit(String instanceId, Boolean isValid) {
+        submitted.incrementAndGet();
+        synchronized (pending) {
+            if (pending.containsKey(instanceId)) {
+                merged.incrementAndGet();
+            }
+            pending.put(instanceId, isValid);
+            if (pending.size() > maxDepth) {
+                maxDepth = pending.size();
+            }
+            pending.notify();
+        }
+    }
+
+    /**
+     * 队列超过上限或写线程已停止时，在调用线程写出全部已排队事件；调用方不得持有状态缓存等其他锁
+     */
+    void drainIfBacklogged() {
+        boolean backlogged;
+        synchronized (pending) {
+            backlogged = !pending.isEmpty() && (pending.size() > MAX_PENDING || !running);
+        }
+        if (backlogged) {
+            callerRuns.incrementAndGet();
+            flush();
+        }
+    }
+
+    private void runLoop() {
+        while (running) {
+            try {
+                synchronized (pending) {
+                    while (pending.isEmpty() && running) {
+                        pending.wait();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            flush();
+        }
+    }
+
+    /**
+     * 在调用线程写出全部已排队事件（nginx 重载前调用，确保文件已落盘）
+     */
+    void flush() {
+        writeLock.lock();
+        try {
+            writeBatch(drain());
+        } finally {
+            // 同一时刻只有一批在写（持有 writeLock），整批写完后清除
+            synchronized (pending) {
+                inFlight.clear();
+            }
+            writeLock.unlock();
+        }
+    }
+
+    private List<Map.Entry<String, Boolean>> drain() {
+        synchronized (pending) {
+            List<Map.Entry<String, Boolean>> batch = new ArrayList<>(pending.size());
+            for (Map.Entry<String, Boolean> entry : pending.entrySet()) {
+                batch.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+            }
+            inFlight.addAll(pending.keySet());
+            pending.clear();
+            return batch;
+        }
+    }
+
+    /**
+     * 写出一批事件并对目录做一次 fsync（需持有 writeLock）
+     */
+    private void writeBatch(List<Map.Entry<String, Boolean>> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, Boolean> entry : batch) {
+            apply(entry.getKey(), entry.getValue());
+        }
+        syncDirectory();
+        batches.incrementAndGet();
+        lastBatchSize = batch.size();
+    }
+
+    private void apply(String instanceId, Boolean isValid) {
+        long start = System.nanoTime();
+        Path file = dir.resolve(instanceId + ".conf");
+        try {
+            if (isValid == null) {
+                if (Files.deleteIfExists(file)) {
+                    deleted.incrementAndGet();
+                }
+            } else {
+                writeAtomically(file, StatusFiles.renderLine(instanceId, isValid));
+                written.incrementAndGet();
+            }
+            onApplied.accept(instanceId, isValid);
+        } catch (IOException | RuntimeException e) {
+            failures.incrementAndGet();
+            logger.error("写入状态文件失败: {} - {}", file, e.getMessage(), e);
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        totalWriteMicros.addAndGet(micros);
+        if (micros > maxWriteMicros) {
+            maxWriteMicros = micros;
+        }
+    }
+
+    private void writeAtomically(Path file, byte[] content) throws IOException {
+        Files.createDirectories(dir);
+        Path tmp = dir.resolve("." + file.getFileName() + ".tmp");
+        Files.write(tmp, content);
+        Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-r--r--"));
+        try {
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * 整批重命名后对目录 fsync 一次；不支持时忽略（状态文件可由存储重新生成）
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            logger.debug("目录 fsync 失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 实例是否有尚未写完的事件（排队中或正在写出）
+     */
+    boolean isPending(String instanceId) {
+        synchronized (pending) {
+            return pending.containsKey(instanceId) || inFlight.contains(instanceId);
+        }
+    }
+
+    int getDepth() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long files = written.get() + deleted.get() + failures.get();
+        metrics.put("depth", getDepth());
+        metrics.put("maxDepth", maxDepth);
+        metrics.put("submitted", submitted.get());
+        metrics.put("merged", merged.get());
+        metrics.put("written", written.get());
+        metrics.put("deleted", deleted.get());
+        metrics.put("callerRuns", callerRuns.get());
+        metrics.put("failures", failures.get());
+        metrics.put("batches", batches.get());
+        metrics.put("lastBatchSize", lastBatchSize);
+        metrics.put("avgWriteMicros", files > 0 ? totalWriteMicros.get() / files : 0);
+        metrics.put("maxWriteMicros", maxWriteMicros);
+        return metrics;
+    }
+
+    /**
+     * 停止写线程并写出剩余事件
+     */
+    void shutdown() {
+        synchronized (pending) {
+            running = false;
+            pending.notifyAll();
+        }
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+}
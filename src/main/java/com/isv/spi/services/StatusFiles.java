@@ -0,0 +1,132 @@
+package com.isv.spi.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 状态文件格式与读写：每行 "<实例ID> true|false;"
+ * files 模式下每个实例一个 <实例ID>.conf 文件；map 模式下全部实例按实例ID排序写入一个文件，整体原子替换。
+ */
+final class StatusFiles {
+    private static final Logger logger = LoggerFactory.getLogger(StatusFiles.class);
+
+    // 输出模式：files（每实例一个文件，默认）或 map（单个汇总文件）
+    static final boolean MAP_MODE = "map".equalsIgnoreCase(System.getProperty("isv.status.outputMode", "files"));
+    // 汇总文件路径（不放在状态目录内，避免与 *.conf 一起被 include）
+    static final Path MAP_FILE = Paths.get(System.getProperty("isv.status.mapFile", "/etc/nginx/conf.d/instance_status.map"));
+
+    private StatusFiles() {
+    }
+
+    /**
+     * 渲染一行状态
+     */
+    static byte[] renderLine(String instanceId, boolean isValid) {
+        return (instanceId + " " + (isValid ? "true" : "false") + ";\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 解析一行状态，返回状态并把实例ID放入 idOut[0]；格式不符或实例ID不合法时返回 null
+     */
+    static Boolean parseLine(String line, String[] idOut) {
+        line = line.trim();
+        int space = line.indexOf(' ');
+        if (space <= 0) {
+            return null;
+        }
+        idOut[0] = line.substring(0, space);
+        if (!InstanceStatusService.isValidInstanceId(idOut[0])) {
+            return null;
+        }
+        String status = line.substring(space + 1).replace(";", "").trim();
+        return "true".equalsIgnoreCase(status);
+    }
+
+    /**
+     * 读取当前布局的全部状态：map 模式优先读汇总文件，不存在时读取旧的每实例文件目录
+     */
+    static Map<String, Boolean> readCurrent() throws IOException {
+        if (MAP_MODE && Files.exists(MAP_FILE)) {
+            return readMapFile(MAP_FILE);
+        }
+        return readDirectory(new File(InstanceStatusService.STATUS_DIR));
+    }
+
+    /**
+     * 读取汇总文件
+     */
+    static Map<String, Boolean> readMapFile(Path file) throws IOException {
+        Map<String, Boolean> statuses = new ConcurrentHashMap<>();
+        String[] id = new String[1];
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            Boolean valid = parseLine(line, id);
+            if (valid != null) {
+                statuses.put(id[0], valid);
+            }
+        }
+        return statuses;
+    }
+
+    /**
+     * 并行读取每实例一个文件的目录；文件名（去掉 .conf）为实例ID，实例ID不合法或读取失败的文件跳过
+     */
+    static Map<String, Boolean> readDirectory(File dir) {
+        Map<String, Boolean> statuses = new ConcurrentHashMap<>();
+        File[] files = dir.isDirectory() ? dir.listFiles((d, name) -> name.endsWith(".conf")) : null;
+        if (files == null) {
+            return statuses;
+        }
+        Arrays.stream(files).parallel().forEach(file -> {
+            String name = file.getName();
+            String instanceId = name.substring(0, name.length() - 5);
+            if (!InstanceStatusService.isValidInstanceId(instanceId)) {
+                logger.warn("忽略实例ID不合法的状态文件: {}", file);
+                return;
+            }
+            try {
+                List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+                Boolean valid = lines.isEmpty() ? null : parseLine(lines.get(0), new String[1]);
+                statuses.put(instanceId, valid != null && valid);
+            } catch (IOException e) {
+                logger.warn("读取状态文件失败: {} - {}", file, e.getMessage());
+            }
+        });
+        return statuses;
+    }
+
+    /**
+     * 写入临时文件后原子替换汇总文件，nginx 重载时不会读到写了一半的文件
+     */
+    static void writeMapFile(Path file, Iterable<byte[]> lines) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = dir.resolve("." + file.getFileName() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024)) {
+            for (byte[] line : lines) {
+                out.write(line);
+            }
+        }
+        Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-r--r--"));
+        try {
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
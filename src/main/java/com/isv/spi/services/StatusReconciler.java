@@ -0,0 +1,482 @@
+package com.isv.spi.services;
+
+import com.isv.spi.models.UserInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 存储与状态文件的持续对账：实例按ID哈希分片，每个分片维护两份滚动异或摘要——
+ * 存储侧（变更事件更新）为各计算巢实例应有的状态，落盘侧（状态写出成功后回调更新）为文件中实际的状态。
+ * 每轮只比较摘要，连续两轮不一致的分片才按存储重新判定其中的实例并修复，整轮修复合并为一次 nginx 重载；
+ * 每轮开销与分片数和不一致的实例数成正比，与实例总数无关。
+ * 只对账存储中当前有关联订单的计算巢实例。存储无法判定的实例（订单已删除，或关联已改到其他实例）不再跟踪，
+ * 其状态文件保持原样，从不删除；其他来源的状态文件也不处理。
+ */
+@Service
+public class StatusReconciler implements UserChangeListener, DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(StatusReconciler.class);
+
+    // 对账间隔，0 表示不启用
+    private static final long INTERVAL_MS = Long.getLong("isv.reconcile.intervalMs", 30000);
+    // 分片数（取 2 的幂）
+    private static final int SHARDS = Integer.highestOneBit(Math.max(1, Integer.getInteger("isv.reconcile.shards", 256)));
+    // 重新读取全部状态文件的间隔（发现外部改动），0 表示只在启动时读取
+    private static final long RESCAN_MS = TimeUnit.MINUTES.toMillis(Long.getLong("isv.reconcile.rescanMinutes", 60));
+    // 合并重载使用的 key
+    private static final String RELOAD_KEY = "reconcile";
+
+    private static final byte ABSENT = 0;
+    private static final byte VALID = 1;
+    private static final byte INVALID = 2;
+    // 存储无法判定（没有关联订单），只作为 desiredState 的返回值，不进入摘要
+    private static final byte UNKNOWN = 3;
+
+    /**
+     * 一个分片；字段由分片对象自身的锁保护。
+     * 摘要只覆盖 desired 中的实例：desiredDigest 为各实例应有状态的哈希异或，actualDigest 为同一批实例实际状态的哈希异或
+     */
+    private static final class Shard {
+        // 计算巢实例ID -> 应有状态（VALID / INVALID）
+        final Map<String, Byte> desired = new HashMap<>();
+        // 实例ID -> 文件中的状态（不含已删除的文件）
+        final Map<String, Byte> actual = new HashMap<>();
+        long desiredDigest;
+        long actualDigest;
+        // 上一轮摘要已不一致
+        boolean suspect;
+        // 全量读取期间被回调更新过的实例，读取结果不覆盖
+        Set<String> touchedDuringScan;
+    }
+
+    private final StorageService storageService;
+    private final InstanceStatusService instanceStatusService;
+    private final Shard[] shards = new Shard[SHARDS];
+    // 跟踪中的计算巢实例 -> 关联订单的 aliUid；aliUid 改变时据此找到原 aliUid 下需要重新判定的实例
+    private final Map<String, String> ownerAliUid = new ConcurrentHashMap<>();
+
+    private volatile boolean running = true;
+    private final Thread worker;
+
+    // 统计
+    private final AtomicLong passes = new AtomicLong();
+    private final AtomicLong mismatchedShards = new AtomicLong();
+    private final AtomicLong verified = new AtomicLong();
+    private final AtomicLong repaired = new AtomicLong();
+    private final AtomicLong untracked = new AtomicLong();
+    private final AtomicLong reloadsRequested = new AtomicLong();
+    private volatile boolean seeded;
+    private volatile int lastSuspectShards;
+    private volatile int lastRepairedShards;
+    private volatile long lastPassMicros;
+    private volatile long lastRescanAt;
+    private volatile long lastRescanMillis;
+
+    @Autowired
+    public StatusReconciler(StorageService storageService, InstanceStatusService instanceStatusService) {
+        this.storageService = storageService;
+        this.instanceStatusService = instanceStatusService;
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+        if (INTERVAL_MS <= 0) {
+            worker = null;
+            return;
+        }
+        instanceStatusService.setStatusListener(this::onStatusApplied);
+        storageService.addUserChangeListener(this);
+        worker = new Thread(this::runLoop, "status-reconciler");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public boolean isEnabled() {
+        return INTERVAL_MS > 0;
+    }
+
+    @Override
+    public void onUserSaved(UserInfo userInfo) {
+        refreshFor(userInfo);
+    }
+
+    @Override
+    public void onUserDeleted(UserInfo userInfo) {
+        refreshFor(userInfo);
+    }
+
+    /**
+     * 一条订单变化会改变其 aliUid（以及变更前的 aliUid）下所有实例的应有状态，全部重新判定
+     */
+    private void refreshFor(UserInfo userInfo) {
+        long now = System.currentTimeMillis();
+        Set<String> aliUids = new HashSet<>(2);
+        String computeNestInstanceId = userInfo.getComputeNestInstanceId();
+        if (hasText(computeNestInstanceId)) {
+            String previous = ownerAliUid.get(computeNestInstanceId);
+            if (previous != null) {
+                aliUids.add(previous);
+            }
+            refreshInstance(computeNestInstanceId, now);
+        }
+        if (hasText(userInfo.getAliUid())) {
+            aliUids.add(userInfo.getAliUid());
+        }
+        for (String aliUid : aliUids) {
+            for (String instanceId : storageService.getComputeNestInstanceIdsByAliUid(aliUid)) {
+                refreshInstance(instanceId, now);
+            }
+        }
+    }
+
+    private void refreshInstance(String computeNestInstanceId, long now) {
+        setDesired(computeNestInstanceId, desiredState(computeNestInstanceId, now));
+    }
+
+    /**
+     * 状态写出成功后的回调（null 表示文件已删除）
+     */
+    private void onStatusApplied(String instanceId, Boolean isValid) {
+        setActual(instanceId, isValid == null ? ABSENT : (isValid ? VALID : INVALID), true);
+    }
+
+    /**
+     * 按存储判定计算巢实例应有的状态（StorageService.desiredInstanceStatus，与到期处理同一规则），
+     * 同时记下关联订单的 aliUid；没有关联订单时返回 UNKNOWN
+     */
+    private byte desiredState(String computeNestInstanceId, long now) {
+        Boolean desired = storageService.desiredInstanceStatus(computeNestInstanceId, now);
+        UserInfo owner = desired != null ? storageService.getUserByComputeNestInstanceId(computeNestInstanceId) : null;
+        if (owner != null && hasText(owner.getAliUid())) {
+            ownerAliUid.put(computeNestInstanceId, owner.getAliUid());
+        } else {
+            ownerAliUid.remove(computeNestInstanceId);
+        }
+        if (desired == null) {
+            return UNKNOWN;
+        }
+        return desired ? VALID : INVALID;
+    }
+
+    private Shard shardOf(String instanceId) {
+        byte[] key = key(instanceId);
+        return shards[(int) MappedStatusReader.hash(key, key.length) & (SHARDS - 1)];
+    }
+
+    private void setDesired(String instanceId, byte state) {
+        Shard shard = shardOf(instanceId);
+        synchronized (shard) {
+            Byte old = shard.desired.remove(instanceId);
+            long actualHash = digestOf(instanceId, actualOf(shard, instanceId));
+            if (old != null) {
+                shard.desiredDigest ^= digestOf(instanceId, old);
+                shard.actualDigest ^= actualHash;
+            }
+            if (state == UNKNOWN) {
+                // 存储无法判定：不再跟踪，文件保持原样
+                if (old != null) {
+                    untracked.incrementAndGet();
+                }
+                return;
+            }
+            shard.desired.put(instanceId, state);
+            shard.desiredDigest ^= digestOf(instanceId, state);
+            shard.actualDigest ^= actualHash;
+        }
+    }
+
+    private void setActual(String instanceId, byte state, boolean fromCallback) {
+        Shard shard = shardOf(instanceId);
+        synchronized (shard) {
+            if (fromCallback && shard.touchedDuringScan != null) {
+                shard.touchedDuringScan.add(instanceId);
+            }
+            byte old = actualOf(shard, instanceId);
+            if (old == state) {
+                return;
+            }
+            if (state == ABSENT) {
+                shard.actual.remove(instanceId);
+            } else {
+                shard.actual.put(instanceId, state);
+            }
+            Byte desired = shard.desired.get(instanceId);
+            if (desired == null) {
+                return;
+            }
+            shard.actualDigest ^= digestOf(instanceId, old) ^ digestOf(instanceId, state);
+        }
+    }
+
+    private static byte actualOf(Shard shard, String instanceId) {
+        Byte state = shard.actual.get(instanceId);
+        return state != null ? state : ABSENT;
+    }
+
+    private static byte[] key(String instanceId) {
+        return instanceId.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 实例ID与状态的 64 位哈希（FNV-1a 后混合状态再做 murmur3 终混）
+     */
+    private static long digestOf(String instanceId, byte state) {
+        byte[] key = key(instanceId);
+        long h = MappedStatusReader.hash(key, key.length) * 0x9E3779B97F4A7C15L + state;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    private void runLoop() {
+        // 早期用户导入前，状态文件中的实例在存储里还没有记录，等待导入完成再建立期望状态
+        while (running && !storageService.awaitEarlyUsers(1000)) {
+            logger.debug("等待早期用户导入完成");
+        }
+        if (!running) {
+            return;
+        }
+        seed();
+        while (running) {
+            try {
+                Thread.sleep(INTERVAL_MS);
+                if (RESCAN_MS > 0 && System.currentTimeMillis() - lastRescanAt >= RESCAN_MS) {
+                    rescan();
+                }
+                reconcile();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException e) {
+                logger.error("状态对账线程异常: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * 启动时读取全部状态文件与存储中的全部关联实例
+     */
+    private void seed() {
+        long start = System.currentTimeMillis();
+        rescan();
+        Set<String> instanceIds = new LinkedHashSet<>();
+        try {
+            storageService.forEachUser(userInfo -> {
+                if (hasText(userInfo.getComputeNestInstanceId())) {
+                    instanceIds.add(userInfo.getComputeNestInstanceId());
+                }
+            });
+        } catch (RuntimeException e) {
+            logger.error("加载存储中的计算巢实例失败: {}", e.getMessage(), e);
+        }
+        long now = System.currentTimeMillis();
+        for (String computeNestInstanceId : instanceIds) {
+            setDesired(computeNestInstanceId, desiredState(computeNestInstanceId, now));
+        }
+        seeded = true;
+        logger.info("状态对账已启动: {} 个计算巢实例，{} 个分片，耗时 {} ms",
+                instanceIds.size(), SHARDS, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 重新读取全部状态文件，校正落盘侧（外部删除或改写的文件）；读取期间回调更新过的实例以回调为准
+     */
+    private void rescan() {
+        long start = System.currentTimeMillis();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.touchedDuringScan = new HashSet<>();
+            }
+        }
+        Map<String, Boolean> onDisk;
+        try {
+            onDisk = StatusFiles.readCurrent();
+        } catch (IOException e) {
+            logger.error("读取状态文件失败: {}", e.getMessage(), e);
+            onDisk = null;
+        }
+        // 按分片分组后逐片应用
+        List<List<Map.Entry<String, Boolean>>> byShard = new ArrayList<>(SHARDS);
+        for (int i = 0; i < SHARDS; i++) {
+            byShard.add(new ArrayList<>());
+        }
+        if (onDisk != null) {
+            for (Map.Entry<String, Boolean> entry : onDisk.entrySet()) {
+                byte[] key = key(entry.getKey());
+                byShard.get((int) MappedStatusReader.hash(key, key.length) & (SHARDS - 1)).add(entry);
+            }
+        }
+        for (int i = 0; i < SHARDS; i++) {
+            Shard shard = shards[i];
+            synchronized (shard) {
+                Set<String> touched = shard.touchedDuringScan;
+                shard.touchedDuringScan = null;
+                if (onDisk == null) {
+                    continue;
+                }
+                Set<String> present = new HashSet<>();
+                for (Map.Entry<String, Boolean> entry : byShard.get(i)) {
+                    present.add(entry.getKey());
+                    if (!touched.contains(entry.getKey())) {
+                        setActual(entry.getKey(), entry.getValue() ? VALID : INVALID, false);
+                    }
+                }
+                for (String instanceId : new ArrayList<>(shard.actual.keySet())) {
+                    if (!present.contains(instanceId) && !touched.contains(instanceId)) {
+                        setActual(instanceId, ABSENT, false);
+                    }
+                }
+            }
+        }
+        lastRescanAt = System.currentTimeMillis();
+        lastRescanMillis = lastRescanAt - start;
+        logger.debug("状态文件全量读取完成: {} 个文件，耗时 {} ms", onDisk != null ? onDisk.size() : 0, lastRescanMillis);
+    }
+
+    /**
+     * 一轮对账：比较各分片摘要，连续两轮不一致的分片按存储重新判定并修复，整轮只登记一次重载
+     */
+    void reconcile() {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        int suspects = 0;
+        int repairedShards = 0;
+        int changes = 0;
+        for (Shard shard : shards) {
+            List<String> instanceIds;
+            synchronized (shard) {
+                if (shard.desiredDigest == shard.actualDigest) {
+                    shard.suspect = false;
+                    continue;
+                }
+                if (!shard.suspect) {
+                    // 第一次不一致可能是写入仍在队列中，下一轮再确认
+                    shard.suspect = true;
+                    suspects++;
+                    continue;
+                }
+                shard.suspect = false;
+                instanceIds = new ArrayList<>(shard.desired.keySet());
+            }
+            mismatchedShards.incrementAndGet();
+            int shardChanges = 0;
+            for (String instanceId : instanceIds) {
+                if (repair(shard, instanceId, now)) {
+                    shardChanges++;
+                }
+            }
+            if (shardChanges > 0) {
+                repairedShards++;
+                changes += shardChanges;
+            }
+        }
+        if (changes > 0) {
+            reloadsRequested.incrementAndGet();
+            instanceStatusService.scheduleDelayedReload(RELOAD_KEY, changes);
+            logger.info("状态对账修复 {} 个实例（{} 个分片），合并为一次重载", changes, repairedShards);
+        }
+        passes.incrementAndGet();
+        lastSuspectShards = suspects;
+        lastRepairedShards = repairedShards;
+        lastPassMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+    }
+
+    /**
+     * 按存储重新判定一个实例，与文件不一致时改写文件，返回是否修复；存储无法判定的实例只取消跟踪
+     */
+    private boolean repair(Shard shard, String instanceId, long now) {
+        verified.incrementAndGet();
+        byte want = desiredState(instanceId, now);
+        setDesired(instanceId, want);
+        if (want == UNKNOWN) {
+            return false;
+        }
+        byte have;
+        synchronized (shard) {
+            have = actualOf(shard, instanceId);
+        }
+        if (want == have) {
+            return false;
+        }
+        // 清除状态缓存后写入，缓存与文件不一致时也会重写
+        instanceStatusService.evictCachedStatus(instanceId);
+        instanceStatusService.writeInstanceStatusFile(instanceId, want == VALID);
+        repaired.incrementAndGet();
+        logger.info("状态对账修复: {} 文件状态 {} -> {}", instanceId, stateName(have), stateName(want));
+        return true;
+    }
+
+    private static String stateName(byte state) {
+        return state == VALID ? "true" : state == INVALID ? "false" : "无";
+    }
+
+    private static boolean hasText(String value) {
+        return value != null && !value.trim().isEmpty();
+    }
+
+    /**
+     * 对账统计
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        int tracked = 0;
+        int differing = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                tracked += shard.desired.size();
+                if (shard.desiredDigest != shard.actualDigest) {
+                    differing++;
+                }
+            }
+        }
+        metrics.put("enabled", isEnabled());
+        metrics.put("seeded", seeded);
+        metrics.put("shards", SHARDS);
+        metrics.put("trackedInstances", tracked);
+        metrics.put("differingShards", differing);
+        metrics.put("passes", passes.get());
+        metrics.put("mismatchedShards", mismatchedShards.get());
+        metrics.put("verified", verified.get());
+        metrics.put("repaired", repaired.get());
+        metrics.put("untracked", untracked.get());
+        metrics.put("reloadsRequested", reloadsRequested.get());
+        metrics.put("lastSuspectShards", lastSuspectShards);
+        metrics.put("lastRepairedShards", lastRepairedShards);
+        metrics.put("lastPassMicros", lastPassMicros);
+        metrics.put("lastRescanAt", lastRescanAt);
+        metrics.put("lastRescanMillis", lastRescanMillis);
+        metrics.put("intervalMs", INTERVAL_MS);
+        return metrics;
+    }
+
+    @Override
+    public void destroy() {
+        running = false;
+        if (worker == null) {
+            return;
+        }
+        worker.interrupt();
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
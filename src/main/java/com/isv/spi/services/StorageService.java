@@ -1,36 +1,53 @@
 package com.isv.spi.services;
 
 import com.isv.spi.models.UserInfo;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.stereotype.Service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 @Service
-public class StorageService {
+public class StorageService implements DisposableBean {
     private static final Logger logger = LoggerFactory.getLogger(StorageService.class);
-    // 使用orderBizId作为主键存储
-    private final Map<String, UserInfo> userStore = new ConcurrentHashMap<>();
-    
-    // 按aliUid索引，一个aliUid可能有多个实例
-    private final Map<String, List<String>> aliUidIndex = new ConcurrentHashMap<>();
-    
-    // 新增：按computeNestInstanceId索引（早期用户使用）
-    private final Map<String, String> computeNestIndex = new ConcurrentHashMap<>();
 
     // 早期用户统一配置
-    private static final String VIRTUAL_ALIUID_PREFIX = "VIRTUAL_"; // 虚拟用户前缀
+    static final String VIRTUAL_ALIUID_PREFIX = "VIRTUAL_"; // 虚拟用户前缀
     private static final Date DEFAULT_EXPIRY_DATE; // 默认过期时间
     
-    // 存储文件路径
-    private static final String STORAGE_DIR = "/opt/isv-spi-data/";
-    private static final String STORAGE_FILE = STORAGE_DIR + "users.dat";
+    // 存储文件路径（以 / 结尾）
+    static final String STORAGE_DIR = withTrailingSlash(System.getProperty("isv.storage.dir", "/opt/isv-spi-data/"));
+    // 存储后端：log（内存 + 追加日志 + 映射快照，默认）或 mvstore（嵌入式磁盘 KV）
+    private static final String BACKEND = System.getProperty("isv.storage.backend", "log");
+
+    // 数据目录锁：同一目录只允许一个实例（进程内或跨进程）打开，关闭时释放
+    private static final String LOCK_FILE = ".lock";
+    private final FileChannel lockChannel;
+    private final FileLock dataDirLock;
+
+    private final UserStoreBackend backend;
+    // 有效访问物化视图（/isv/check 使用），每次变更增量刷新
+    private final EffectiveAccessView accessView;
+    // 早期用户导入完成（成功或失败）后打开；检查接口、目录监听和对账在此之前不读写状态文件
+    private final CountDownLatch earlyUsersImported = new CountDownLatch(1);
+    // 记录变更监听器（到期调度等）
+    private final List<UserChangeListener> changeListeners = new CopyOnWriteArrayList<>();
 
     static {
         try {
@@ -43,107 +60,233 @@ public class StorageService {
     }
     
     public StorageService() {
+        long start = System.currentTimeMillis();
         // 创建存储目录
         ensureStorageDirectory();
-        // 加载已保存的用户数据
-        loadFromFile();
-        logger.info("StorageService 初始化完成，加载了 {} 条记录", userStore.size());
+        lockChannel = openLockChannel();
+        dataDirLock = lockDataDirectory(lockChannel);
+        try {
+            backend = openBackend();
+        } catch (RuntimeException e) {
+            releaseDataDirectory();
+            throw e;
+        }
+        accessView = new EffectiveAccessView(backend::get);
+        logger.info("StorageService 初始化完成，存储后端 {}，耗时 {} ms", BACKEND, System.currentTimeMillis() - start);
+
+        // 后台构建有效访问视图，构建完成前检查接口回退到逐条查询
+        Thread accessViewBuilder = new Thread(this::buildAccessView, "access-view-build");
+        accessViewBuilder.setDaemon(true);
+        accessViewBuilder.start();
         
-        // 初始化早期用户（从状态文件读取）
-        initEarlyUsersFromStatusFiles();
+        // 初始化早期用户（从状态文件读取），在后台进行，不阻塞 Spring 容器启动；完成前检查接口等待或返回 503
+        Thread earlyUserLoader = new Thread(this::initEarlyUsersFromStatusFiles, "early-user-import");
+        earlyUserLoader.setDaemon(true);
+        earlyUserLoader.start();
+    }
+
+    private static FileChannel openLockChannel() {
+        try {
+            return FileChannel.open(Paths.get(STORAGE_DIR, LOCK_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new IllegalStateException("无法打开数据目录锁文件: " + STORAGE_DIR + LOCK_FILE, e);
+        }
+    }
+
+    /**
+     * 锁定数据目录：已被其他进程或本进程内另一个 StorageService 持有时直接失败，
+     * 避免两个存储后端同时写日志、互删压缩文件
+     */
+    private static FileLock lockDataDirectory(FileChannel channel) {
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw new IllegalStateException("锁定数据目录失败: " + STORAGE_DIR, e);
+        }
+        if (lock == null) {
+            closeQuietly(channel);
+            throw new IllegalStateException("数据目录已被另一个实例占用: " + STORAGE_DIR);
+        }
+        return lock;
+    }
+
+    private void releaseDataDirectory() {
+        try {
+            dataDirLock.release();
+        } catch (IOException e) {
+            logger.warn("释放数据目录锁失败: {}", e.getMessage());
+        }
+        closeQuietly(lockChannel);
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug("关闭锁文件失败: {}", e.getMessage());
+        }
+    }
+
+    static String withTrailingSlash(String dir) {
+        return dir.endsWith("/") ? dir : dir + "/";
+    }
+
+    private static UserStoreBackend openBackend() {
+        switch (BACKEND.toLowerCase()) {
+            case "log":
+                return new LogStructuredBackend();
+            case "mvstore":
+                return new MVStoreBackend();
+            default:
+                throw new IllegalArgumentException("未知的存储后端: " + BACKEND);
+        }
     }
     
     /**
-     * 从状态文件初始化早期用户
+     * 遍历全部记录构建有效访问视图；与并发变更的刷新交错也安全（刷新总是重新读取最新记录）
+     */
+    private void buildAccessView() {
+        long start = System.currentTimeMillis();
+        try {
+            backend.forEach(userInfo -> accessView.refresh(userInfo.getOrderBizId()));
+            accessView.markReady();
+            logger.info("有效访问视图构建完成: {} 个有效订单，耗时 {} ms",
+                    accessView.size(), System.currentTimeMillis() - start);
+        } catch (RuntimeException e) {
+            logger.error("构建有效访问视图失败，检查接口将使用逐条查询: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 从状态文件初始化早期用户：并行读取状态（每实例文件目录或 map 模式的汇总文件），新增的早期用户一次批量写入
      */
     private void initEarlyUsersFromStatusFiles() {
-        String statusDir = "/etc/nginx/conf.d/instance_status/";
-        File dir = new File(statusDir);
-        
-        logger.info("开始初始化早期用户，状态文件目录: {}", statusDir);
-        logger.info("目录是否存在: {}", dir.exists());
-        logger.info("是否是目录: {}", dir.isDirectory());
-        
-        if (!dir.exists() || !dir.isDirectory()) {
-            logger.info("状态文件目录不存在: {}", statusDir);
-            return;
+        try {
+            importEarlyUsers();
+        } catch (RuntimeException e) {
+            logger.error("初始化早期用户失败: {}", e.getMessage(), e);
+        } finally {
+            earlyUsersImported.countDown();
         }
+    }
+
+    private void importEarlyUsers() {
+        logger.info("开始初始化早期用户，状态文件: {}",
+                StatusFiles.MAP_MODE ? StatusFiles.MAP_FILE : InstanceStatusService.STATUS_DIR);
         
-        File[] statusFiles = dir.listFiles((d, name) -> name.endsWith(".conf"));
-        if (statusFiles == null || statusFiles.length == 0) {
-            logger.info("状态目录为空，没有找到 .conf 文件");
+        // 1. 并行读取全部状态
+        long readStart = System.currentTimeMillis();
+        Map<String, Boolean> statuses;
+        try {
+            statuses = StatusFiles.readCurrent();
+        } catch (IOException e) {
+            logger.error("读取状态文件失败: {}", e.getMessage(), e);
             return;
         }
-        
-        logger.info("找到 {} 个状态文件", statusFiles.length);
-        
-        // 列出所有状态文件（用于调试）
-        for (File file : statusFiles) {
-            logger.debug("状态文件: {}", file.getName());
+        if (statuses.isEmpty()) {
+            logger.info("没有找到状态文件");
+            return;
         }
+        long readMillis = System.currentTimeMillis() - readStart;
+        logger.info("找到 {} 个实例状态", statuses.size());
         
-        int earlyUserCount = 0;
-        int updatedCount = 0;
-        int skippedCount = 0;
+        // 2. 并行筛选：跳过已存在的计算巢实例（查询无锁，可并行）
+        long parseStart = System.currentTimeMillis();
+        AtomicInteger skippedCount = new AtomicInteger();
+        AtomicInteger failedCount = new AtomicInteger();
+        List<UserInfo> earlyUsers = statuses.entrySet().parallelStream()
+                .map(entry -> {
+                    String computeNestInstanceId = entry.getKey();
+                    try {
+                        if (getUserByComputeNestInstanceId(computeNestInstanceId) != null) {
+                            skippedCount.incrementAndGet();
+                            return null;
+                        }
+                        return createEarlyUser(computeNestInstanceId, entry.getValue());
+                    } catch (Exception e) {
+                        failedCount.incrementAndGet();
+                        logger.error("初始化早期用户状态文件失败: {} - {}",
+                            computeNestInstanceId, e.getMessage(), e);
+                        return null;
+                    }
+                })
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        long parseMillis = System.currentTimeMillis() - parseStart;
         
-        for (File statusFile : statusFiles) {
-            String computeNestInstanceId = null;
-            try {
-                String fileName = statusFile.getName();
-                computeNestInstanceId = fileName.substring(0, fileName.length() - 5); // 去掉 .conf
-                
-                logger.debug("处理状态文件: {} -> 实例ID: {}", fileName, computeNestInstanceId);
-                
-                // 1. 检查是否已存在此计算巢实例的用户
-                UserInfo existingUser = getUserByComputeNestInstanceId(computeNestInstanceId);
-                if (existingUser != null) {
-                    logger.debug("用户已存在，跳过创建: {}", computeNestInstanceId);
-                    skippedCount++;
-                    continue;
-                }
-                
-                // 2. 读取状态文件内容
-                boolean isValid = readStatusFromFile(statusFile);
-                
-                // 3. 创建早期用户信息
-                UserInfo earlyUser = createEarlyUser(computeNestInstanceId, isValid);
-                
-                // 4. 保存早期用户
-                saveUser(earlyUser);
-                earlyUserCount++;
-                
-                logger.info("创建早期用户成功: {} (状态: {})", computeNestInstanceId, isValid);
-                
-            } catch (Exception e) {
-                logger.error("初始化早期用户状态文件失败: {} - {}", 
-                    computeNestInstanceId, e.getMessage(), e);
-            }
-        }
+        // 3. 批量写入（一次日志提交）
+        long persistStart = System.currentTimeMillis();
+        saveUsers(earlyUsers);
+        long persistMillis = System.currentTimeMillis() - persistStart;
         
-        logger.info("从状态文件初始化完成: 新增 {} 个早期用户, 跳过 {} 个已存在用户, 总计处理 {} 个状态文件", 
-                earlyUserCount, skippedCount, statusFiles.length);
+        logger.info("从状态文件初始化完成: 新增 {} 个早期用户, 跳过 {} 个已存在用户, 失败 {} 个, 总计处理 {} 个实例状态; " +
+                "耗时: 读取 {} ms, 筛选 {} ms, 写入 {} ms",
+                earlyUsers.size(), skippedCount.get(), failedCount.get(), statuses.size(),
+                readMillis, parseMillis, persistMillis);
     }
+
     /**
-     * 从状态文件读取状态
+     * 等待启动时的早期用户导入完成，最多 timeoutMs 毫秒；返回是否已完成
      */
-    private boolean readStatusFromFile(File statusFile) throws IOException {
-        List<String> lines = Files.readAllLines(statusFile.toPath());
-        if (lines.isEmpty()) {
+    public boolean awaitEarlyUsers(long timeoutMs) {
+        if (earlyUsersImported.getCount() == 0) {
+            return true;
+        }
+        try {
+            return earlyUsersImported.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return false;
         }
-        
-        String line = lines.get(0).trim();
-        // 支持格式: instanceId true; 或 instanceId false;
-        if (line.contains(" ")) {
-            String[] parts = line.split(" ");
-            if (parts.length >= 2) {
-                String statusStr = parts[1].replace(";", "").trim();
-                return "true".equalsIgnoreCase(statusStr);
+    }
+
+    /**
+     * 增量导入外部改动的状态文件（目录监听使用）：实例ID -> 文件中的状态，null 表示文件已删除。
+     * 没有关联记录的实例新增早期用户；只关联虚拟用户的实例按文件更新状态，文件删除时删除虚拟用户；
+     * 关联真实订单的实例以存储为准，不受文件影响。新增与更新一次批量写入，返回变更的记录数
+     */
+    public int ingestStatusChanges(Map<String, Boolean> changes) {
+        List<UserInfo> toSave = new ArrayList<>();
+        List<String> toDelete = new ArrayList<>();
+        for (Map.Entry<String, Boolean> entry : changes.entrySet()) {
+            String computeNestInstanceId = entry.getKey();
+            Boolean isValid = entry.getValue();
+            UserInfo owner = getUserByComputeNestInstanceId(computeNestInstanceId);
+            if (owner == null) {
+                if (isValid != null) {
+                    toSave.add(createEarlyUser(computeNestInstanceId, isValid));
+                }
+            } else if (isVirtualUser(owner)) {
+                if (isValid == null) {
+                    toDelete.add(owner.getOrderBizId());
+                } else {
+                    String status = isValid ? "ACTIVE" : "EXPIRED";
+                    if (!status.equals(owner.getStatus())) {
+                        // 在副本上修改，读者持有的记录不会被原地改动
+                        UserInfo updated = new UserInfo(owner);
+                        updated.setStatus(status);
+                        toSave.add(updated);
+                    }
+                }
+            } else {
+                logger.debug("实例已关联真实订单，忽略状态文件改动: {}", computeNestInstanceId);
             }
         }
-        return false;
+        saveUsers(toSave);
+        for (String orderBizId : toDelete) {
+            deleteUser(orderBizId);
+        }
+        if (!toSave.isEmpty() || !toDelete.isEmpty()) {
+            logger.info("导入状态文件改动: 新增/更新 {} 个早期用户，删除 {} 个", toSave.size(), toDelete.size());
+        }
+        return toSave.size() + toDelete.size();
     }
-    
+
     /**
      * 创建早期用户
      */
@@ -169,135 +312,164 @@ public class StorageService {
         return earlyUser;
     }
     
+    
     /**
-     * 更新现有用户（如果需要）
+     * 保存用户信息；变更未能落盘时抛出 UncheckedIOException
      */
-    private boolean updateExistingUserIfNeeded(UserInfo existingUser, File statusFile) throws IOException {
-        boolean currentStatus = readStatusFromFile(statusFile);
-        boolean shouldBeActive = currentStatus && !existingUser.isExpired();
-        String shouldBeStatus = shouldBeActive ? "ACTIVE" : "EXPIRED";
-        
-        // 如果状态不一致，则更新
-        if (!shouldBeStatus.equals(existingUser.getStatus())) {
-            existingUser.setStatus(shouldBeStatus);
-            saveUser(existingUser); // 会触发持久化
-            logger.info("更新用户状态: {} -> {}", existingUser.getComputeNestInstanceId(), shouldBeStatus);
-            return true;
+    public void saveUser(UserInfo userInfo) {
+        markVirtualUser(userInfo);
+        try {
+            backend.put(userInfo);
+        } catch (UncheckedIOException e) {
+            refreshAfterFailure(userInfo.getOrderBizId(), null);
+            throw e;
         }
-        
-        // 如果是虚拟用户但过期时间不是默认值，更新为默认值
-        if (existingUser.getAliUid().startsWith(VIRTUAL_ALIUID_PREFIX) && 
-            !DEFAULT_EXPIRY_DATE.equals(existingUser.getExpiredOn())) {
-            existingUser.setExpiredOn(DEFAULT_EXPIRY_DATE);
-            saveUser(existingUser);
-            logger.info("更新虚拟用户过期时间: {}", existingUser.getComputeNestInstanceId());
-            return true;
+        accessView.refresh(userInfo.getOrderBizId());
+        logger.debug("用户信息已保存: {}", userInfo.getOrderBizId());
+        fireSaved(userInfo);
+    }
+
+    /**
+     * 批量保存用户信息（早期用户导入等大批量写入），整批只等待一次落盘
+     */
+    public void saveUsers(Collection<UserInfo> users) {
+        if (users == null || users.isEmpty()) {
+            return;
+        }
+        for (UserInfo userInfo : users) {
+            markVirtualUser(userInfo);
+        }
+        try {
+            backend.putAll(users);
+        } catch (UncheckedIOException e) {
+            for (UserInfo userInfo : users) {
+                refreshAfterFailure(userInfo.getOrderBizId(), null);
+            }
+            throw e;
+        }
+        logger.debug("批量保存用户信息: {} 条", users.size());
+        for (UserInfo userInfo : users) {
+            accessView.refresh(userInfo.getOrderBizId());
+            fireSaved(userInfo);
         }
-        
-        return false;
     }
-    
+
     /**
-     * 保存用户信息（覆盖父类方法，确保索引更新）
+     * 条件更新：逐条在记录锁内重新校验最新记录，满足条件时在副本上修改并写入，返回已写入的副本。
+     * 校验与写入之间不会插入同一记录的其他写入（如续费），避免以过时的判断覆盖新状态
      */
-    public synchronized void saveUser(UserInfo userInfo) {
-        String orderBizId = userInfo.getOrderBizId();
-        String aliUid = userInfo.getAliUid();
-        String oldComputeNestId = null;
-        
-        // 如果已存在相同orderBizId的用户，获取旧的computeNestInstanceId
-        UserInfo existingUser = userStore.get(orderBizId);
-        if (existingUser != null) {
-            oldComputeNestId = existingUser.getComputeNestInstanceId();
+    public List<UserInfo> updateUsersIf(Collection<String> orderBizIds, Predicate<UserInfo> condition,
+                                        Consumer<UserInfo> mutation) {
+        if (orderBizIds == null || orderBizIds.isEmpty()) {
+            return Collections.emptyList();
         }
-        
-        // 如果是虚拟用户（aliUid以VIRTUAL_开头），设置虚拟标志
-        if (aliUid != null && aliUid.startsWith(VIRTUAL_ALIUID_PREFIX)) {
-            userInfo.setVirtualUser(true);
-            logger.debug("标记为虚拟用户: {}", aliUid);
+        List<UserInfo> updated;
+        try {
+            updated = backend.updateIf(orderBizIds, condition, userInfo -> {
+                mutation.accept(userInfo);
+                markVirtualUser(userInfo);
+            });
+        } catch (UncheckedIOException e) {
+            for (String orderBizId : orderBizIds) {
+                refreshAfterFailure(orderBizId, null);
+            }
+            throw e;
         }
-        
-        // 保存到主存储
-        userStore.put(orderBizId, userInfo);
-        
-        // 更新aliUid索引
-        List<String> orderList = aliUidIndex.computeIfAbsent(aliUid, k -> new ArrayList<>());
-        if (!orderList.contains(orderBizId)) {
-            orderList.add(orderBizId);
+        for (UserInfo userInfo : updated) {
+            accessView.refresh(userInfo.getOrderBizId());
+            fireSaved(userInfo);
         }
-        
-        // 更新computeNestInstanceId索引
-        String computeNestInstanceId = userInfo.getComputeNestInstanceId();
-        if (computeNestInstanceId != null && !computeNestInstanceId.trim().isEmpty()) {
-            // 移除旧的索引（如果存在）
-            if (oldComputeNestId != null && !oldComputeNestId.isEmpty() && 
-                !oldComputeNestId.equals(computeNestInstanceId)) {
-                computeNestIndex.remove(oldComputeNestId);
+        return updated;
+    }
+
+    /**
+     * 变更已写入内存但未能落盘（后台会写出全量快照）：派生视图和监听器仍按内存中的当前记录刷新，
+     * 与之后的读取保持一致，再由调用方把异常抛给请求方。previous 为删除前的记录
+     */
+    private void refreshAfterFailure(String orderBizId, UserInfo previous) {
+        accessView.refresh(orderBizId);
+        UserInfo current = backend.get(orderBizId);
+        if (current != null) {
+            fireSaved(current);
+        } else if (previous != null) {
+            fireDeleted(previous);
+        }
+    }
+
+    /**
+     * 注册记录变更监听器
+     */
+    public void addUserChangeListener(UserChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    private void fireSaved(UserInfo userInfo) {
+        for (UserChangeListener listener : changeListeners) {
+            try {
+                listener.onUserSaved(userInfo);
+            } catch (RuntimeException e) {
+                logger.error("记录变更回调失败: {} - {}", userInfo.getOrderBizId(), e.getMessage(), e);
             }
-            computeNestIndex.put(computeNestInstanceId, orderBizId);
         }
-        
-        // 持久化到文件
-        saveToFile();
-        
-        logger.debug("用户信息已保存: {}", userInfo.getOrderBizId());
+    }
+
+    private void fireDeleted(UserInfo userInfo) {
+        for (UserChangeListener listener : changeListeners) {
+            try {
+                listener.onUserDeleted(userInfo);
+            } catch (RuntimeException e) {
+                logger.error("记录删除回调失败: {} - {}", userInfo.getOrderBizId(), e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * 如果是虚拟用户（aliUid以VIRTUAL_开头），设置虚拟标志
+     */
+    private void markVirtualUser(UserInfo userInfo) {
+        String aliUid = userInfo.getAliUid();
+        if (aliUid != null && aliUid.startsWith(VIRTUAL_ALIUID_PREFIX)) {
+            userInfo.setVirtualUser(true);
+            logger.debug("标记为虚拟用户: {}", aliUid);
+        }
     }
     
     /**
      * 根据computeNestInstanceId获取用户信息
      */
     public UserInfo getUserByComputeNestInstanceId(String computeNestInstanceId) {
-        String orderBizId = computeNestIndex.get(computeNestInstanceId);
-        if (orderBizId != null) {
-            return userStore.get(orderBizId);
-        }
-        
-        // 如果没有在索引中找到，遍历查找（兼容旧数据）
-        for (UserInfo user : userStore.values()) {
-            if (computeNestInstanceId.equals(user.getComputeNestInstanceId())) {
-                // 更新索引
-                computeNestIndex.put(computeNestInstanceId, user.getOrderBizId());
-                return user;
-            }
-        }
-        return null;
+        return backend.findByComputeNestInstanceId(computeNestInstanceId);
     }
     
     /**
      * 更新用户aliUid（用于虚拟用户更新为真实用户）
      */
-    public synchronized void updateUserAliUid(String orderBizId, String newAliUid) {
-        UserInfo userInfo = userStore.get(orderBizId);
-        if (userInfo != null) {
-            String oldAliUid = userInfo.getAliUid();
-            
-            // 如果aliUid已经相同，不需要更新
-            if (oldAliUid.equals(newAliUid)) {
-                return;
-            }
-            
-            // 更新aliUid索引
-            List<String> oldOrderList = aliUidIndex.get(oldAliUid);
-            if (oldOrderList != null) {
-                oldOrderList.remove(orderBizId);
-                if (oldOrderList.isEmpty()) {
-                    aliUidIndex.remove(oldAliUid);
-                }
-            }
-            
-            // 设置新的aliUid
-            userInfo.setAliUid(newAliUid);
-            
-            // 添加到新的aliUid索引
-            List<String> newOrderList = aliUidIndex.computeIfAbsent(newAliUid, k -> new ArrayList<>());
-            if (!newOrderList.contains(orderBizId)) {
-                newOrderList.add(orderBizId);
-            }
-            
-            saveToFile();
-            logger.info("更新用户aliUid: {} -> {} (实例ID: {})", 
-                       oldAliUid, newAliUid, userInfo.getComputeNestInstanceId());
+    public void updateUserAliUid(String orderBizId, String newAliUid) {
+        UserInfo userInfo = backend.get(orderBizId);
+        if (userInfo == null) {
+            return;
+        }
+        String oldAliUid = userInfo.getAliUid();
+        
+        // 如果aliUid已经相同，不需要更新
+        if (oldAliUid.equals(newAliUid)) {
+            return;
+        }
+        
+        UserInfo updated;
+        try {
+            updated = backend.updateAliUid(orderBizId, newAliUid);
+        } catch (UncheckedIOException e) {
+            refreshAfterFailure(orderBizId, null);
+            throw e;
+        }
+        if (updated == null) {
+            return;
         }
+        accessView.refresh(orderBizId);
+        logger.info("更新用户aliUid: {} -> {} (实例ID: {})", 
+                   oldAliUid, newAliUid, updated.getComputeNestInstanceId());
+        fireSaved(updated);
     }
     
     /**
@@ -314,118 +486,172 @@ public class StorageService {
      */
     public List<UserInfo> getAllVirtualUsers() {
         List<UserInfo> virtualUsers = new ArrayList<>();
-        for (UserInfo user : userStore.values()) {
+        backend.forEach(user -> {
             if (isVirtualUser(user)) {
                 virtualUsers.add(user);
             }
-        }
+        });
         return virtualUsers;
     }  
+    /**
+     * 有效访问视图是否已构建完成（未完成时调用方应回退到逐条查询）
+     */
+    public boolean isAccessViewReady() {
+        return accessView.isReady();
+    }
+
+    /**
+     * 该 aliUid 下有效期最晚的 ACTIVE 订单，没有时返回 null；视图构建完成前按 aliUid 索引逐条计算
+     */
+    public EffectiveAccess getAccessByAliUid(String aliUid) {
+        if (accessView.isReady()) {
+            return accessView.getByAliUid(aliUid);
+        }
+        EffectiveAccess best = null;
+        for (UserInfo userInfo : getUsersByAliUid(aliUid)) {
+            EffectiveAccess access = EffectiveAccessView.toAccess(userInfo);
+            if (access != null && (best == null || access.getValidUntil() > best.getValidUntil())) {
+                best = access;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 关联到该计算巢实例的有效期最晚的 ACTIVE 订单，没有时返回 null；视图构建完成前查询计算巢实例索引
+     */
+    public EffectiveAccess getAccessByComputeNestInstanceId(String computeNestInstanceId) {
+        if (accessView.isReady()) {
+            return accessView.getByComputeNestInstanceId(computeNestInstanceId);
+        }
+        return EffectiveAccessView.toAccess(backend.findByComputeNestInstanceId(computeNestInstanceId));
+    }
+
+    /**
+     * 计算巢实例应有的状态文件状态，/isv/check、状态对账和到期处理共用：
+     * 关联到该实例的订单有效，或关联订单的 aliUid 下有有效订单时为 true；
+     * 没有关联订单时返回 null（存储无法判定，状态文件保持原样）
+     */
+    public Boolean desiredInstanceStatus(String computeNestInstanceId, long now) {
+        EffectiveAccess access = getAccessByComputeNestInstanceId(computeNestInstanceId);
+        if (access != null && access.isValidAt(now)) {
+            return Boolean.TRUE;
+        }
+        UserInfo owner = getUserByComputeNestInstanceId(computeNestInstanceId);
+        if (owner == null) {
+            return null;
+        }
+        String aliUid = owner.getAliUid();
+        EffectiveAccess byAliUid = aliUid != null && !aliUid.trim().isEmpty() ? getAccessByAliUid(aliUid) : null;
+        return byAliUid != null && byAliUid.isValidAt(now);
+    }
+
+    /**
+     * 该 aliUid 下各订单关联的计算巢实例ID（去重）；一个订单的变化会改变同一 aliUid 下所有实例的应有状态
+     */
+    public Set<String> getComputeNestInstanceIdsByAliUid(String aliUid) {
+        Set<String> instanceIds = new LinkedHashSet<>();
+        for (UserInfo userInfo : getUsersByAliUid(aliUid)) {
+            String computeNestInstanceId = userInfo.getComputeNestInstanceId();
+            if (computeNestInstanceId != null && !computeNestInstanceId.trim().isEmpty()) {
+                instanceIds.add(computeNestInstanceId);
+            }
+        }
+        return instanceIds;
+    }
+
     /**
      * 根据orderBizId获取用户信息
      */
     public UserInfo getUserByOrderBizId(String orderBizId) {
-        return userStore.get(orderBizId);
+        return backend.get(orderBizId);
     }
     
     /**
      * 根据aliUid获取所有用户信息
      */
     public List<UserInfo> getUsersByAliUid(String aliUid) {
-        List<String> orderIds = aliUidIndex.get(aliUid);
-        if (orderIds == null || orderIds.isEmpty()) {
+        if (aliUid == null) {
             return new ArrayList<>();
         }
-        
-        List<UserInfo> users = new ArrayList<>();
-        for (String orderId : orderIds) {
-            UserInfo user = userStore.get(orderId);
-            if (user != null) {
-                users.add(user);
-            }
-        }
-        return users;
+        return backend.findByAliUid(aliUid);
     }
     
     /**
      * 根据instanceId获取用户信息
      */
     public UserInfo getUserByInstanceId(String instanceId) {
-        for (UserInfo user : userStore.values()) {
-            if (instanceId.equals(user.getInstanceId())) {
-                return user;
-            }
-        }
-        return null;
+        return backend.findByInstanceId(instanceId);
     }
 
     /**
      * 更新用户的computeNestInstanceId
      */
-    public synchronized void updateComputeNestInstanceId(String orderBizId, String computeNestInstanceId) {
-        UserInfo userInfo = userStore.get(orderBizId);
-        if (userInfo != null) {
-            // 移除旧的索引
-            String oldComputeNestId = userInfo.getComputeNestInstanceId();
-            if (oldComputeNestId != null && !oldComputeNestId.isEmpty()) {
-                computeNestIndex.remove(oldComputeNestId);
-            }
-            
-            // 设置新的计算巢实例ID
-            userInfo.setComputeNestInstanceId(computeNestInstanceId);
-            
-            // 更新索引
-            if (computeNestInstanceId != null && !computeNestInstanceId.trim().isEmpty()) {
-                computeNestIndex.put(computeNestInstanceId, orderBizId);
-            }
-            
-            saveToFile(); // 持久化到文件
+    public void updateComputeNestInstanceId(String orderBizId, String computeNestInstanceId) {
+        UserInfo updated;
+        try {
+            updated = backend.updateComputeNestInstanceId(orderBizId, computeNestInstanceId);
+        } catch (UncheckedIOException e) {
+            refreshAfterFailure(orderBizId, null);
+            throw e;
+        }
+        if (updated != null) {
+            accessView.refresh(orderBizId);
             logger.info("更新用户 {} 的computeNestInstanceId为: {}", orderBizId, computeNestInstanceId);
+            fireSaved(updated);
         }
     }
     
     /**
      * 删除用户信息
      */
-    public synchronized void deleteUser(String orderBizId) {
-        UserInfo userInfo = userStore.get(orderBizId);
-        if (userInfo != null) {
-            // 从主存储删除
-            userStore.remove(orderBizId);
-            
-            // 从aliUid索引删除
-            String aliUid = userInfo.getAliUid();
-            List<String> orderList = aliUidIndex.get(aliUid);
-            if (orderList != null) {
-                orderList.remove(orderBizId);
-                if (orderList.isEmpty()) {
-                    aliUidIndex.remove(aliUid);
-                }
-            }
-            
-            // 从computeNest索引删除
-            String computeNestInstanceId = userInfo.getComputeNestInstanceId();
-            if (computeNestInstanceId != null && !computeNestInstanceId.isEmpty()) {
-                computeNestIndex.remove(computeNestInstanceId);
-            }
-            
-            saveToFile();
+    public void deleteUser(String orderBizId) {
+        // 删除未能落盘时需要用删除前的记录通知监听器
+        UserInfo previous = backend.get(orderBizId);
+        UserInfo removed;
+        try {
+            removed = backend.delete(orderBizId);
+        } catch (UncheckedIOException e) {
+            refreshAfterFailure(orderBizId, previous);
+            throw e;
+        }
+        if (removed != null) {
+            accessView.refresh(orderBizId);
             logger.info("用户信息已删除: {}", orderBizId);
+            fireDeleted(removed);
         }
     }
     
     /**
-     * 获取所有用户
+     * 获取所有用户（日志后端会遍历并解码整个快照，仅用于管理接口等低频场景）
      */
     public List<UserInfo> getAllUsers() {
-        return new ArrayList<>(userStore.values());
+        List<UserInfo> users = new ArrayList<>();
+        backend.forEach(users::add);
+        return users;
+    }
+    
+    /**
+     * 遍历所有用户（不保证顺序，不构建列表）
+     */
+    public void forEachUser(Consumer<UserInfo> consumer) {
+        backend.forEach(consumer);
     }
     
     /**
      * 获取所有aliUid
      */
     public Set<String> getAllAliUids() {
-        return new HashSet<>(aliUidIndex.keySet());
+        Set<String> aliUids = new HashSet<>();
+        backend.forEach(user -> aliUids.add(user.getAliUid()));
+        return aliUids;
+    }
+
+    /**
+     * 按 orderBizId 升序遍历 [from, to) 范围内的用户，from/to 为 null 表示不限
+     */
+    public void scanUsers(String fromOrderBizId, String toOrderBizId, Consumer<UserInfo> consumer) {
+        backend.scan(fromOrderBizId, toOrderBizId, consumer);
     }
     
     /**
@@ -441,64 +667,23 @@ public class StorageService {
     }
     
     /**
-     * 保存到文件
-     */
-    private synchronized void saveToFile() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(
-                new FileOutputStream(STORAGE_FILE))) {
-            // 保存所有数据到文件
-            Map<String, Object> storageData = new HashMap<>();
-            storageData.put("userStore", new HashMap<>(userStore));
-            storageData.put("aliUidIndex", new HashMap<>(aliUidIndex));
-            storageData.put("computeNestIndex", new HashMap<>(computeNestIndex));
-            
-            oos.writeObject(storageData);
-            logger.debug("用户数据已持久化到文件: {}", STORAGE_FILE);
-        } catch (IOException e) {
-            logger.error("保存用户数据失败: {}", e.getMessage(), e);
-        }
+     * 持久化统计（由存储后端提供）
+     */
+    public Map<String, Object> getPersistenceMetrics() {
+        return backend.getMetrics();
     }
-    
+
     /**
-     * 从文件加载
+     * 关闭时刷出尚未落盘的数据
      */
-    @SuppressWarnings("unchecked")
-    private synchronized void loadFromFile() {
-        File file = new File(STORAGE_FILE);
-        if (!file.exists()) {
-            logger.info("用户数据文件不存在，将创建新文件");
-            return;
-        }
-        
-        try (ObjectInputStream ois = new ObjectInputStream(
-                new FileInputStream(file))) {
-            Map<String, Object> storageData = (Map<String, Object>) ois.readObject();
-            
-            userStore.clear();
-            aliUidIndex.clear();
-            computeNestIndex.clear();
-            
-            Map<String, UserInfo> loadedStore = (Map<String, UserInfo>) storageData.get("userStore");
-            Map<String, List<String>> loadedIndex = (Map<String, List<String>>) storageData.get("aliUidIndex");
-            Map<String, String> loadedComputeNestIndex = (Map<String, String>) storageData.get("computeNestIndex");
-            
-            if (loadedStore != null) {
-                userStore.putAll(loadedStore);
-            }
-            if (loadedIndex != null) {
-                aliUidIndex.putAll(loadedIndex);
-            }
-            if (loadedComputeNestIndex != null) {
-                computeNestIndex.putAll(loadedComputeNestIndex);
-            }
-            
-            logger.info("从文件加载了 {} 条用户记录", userStore.size());
-        } catch (IOException | ClassNotFoundException e) {
-            logger.error("加载用户数据失败: {}", e.getMessage(), e);
-            // 如果加载失败，清空存储
-            userStore.clear();
-            aliUidIndex.clear();
-            computeNestIndex.clear();
+    @Override
+    public void destroy() {
+        try {
+            backend.close();
+        } catch (IOException e) {
+            logger.error("关闭存储后端失败: {}", e.getMessage(), e);
+        } finally {
+            releaseDataDirectory();
         }
     }
-}
\ No newline at end of file
+}
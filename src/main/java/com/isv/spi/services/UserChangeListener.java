@@ -0,0 +1,19 @@
+package com.isv.spi.services;
+
+import com.isv.spi.models.UserInfo;
+
+/**
+ * 用户记录变更监听器，由 StorageService 在写入落盘后同步回调（在调用写入的线程上执行，实现应尽量轻量）
+ */
+public interface UserChangeListener {
+
+    /**
+     * 记录新增或更新后调用，参数为更新后的记录
+     */
+    void onUserSaved(UserInfo userInfo);
+
+    /**
+     * 记录删除后调用，参数为被删除的记录
+     */
+    void onUserDeleted(UserInfo userInfo);
+}
@@ -0,0 +1,225 @@
+package com.isv.spi.services;
+
+import com.isv.spi.models.UserInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.zip.CRC32;
+
+/**
+ * UserInfo 的紧凑二进制编码（替代 Java 序列化）
+ * 记录格式: [int 长度][int CRC32][字段...]
+ * 版本1文件: [int 魔数][short 版本][short 保留] 记录* [int 0][int 记录数]，由 Reader 读取；
+ * 当前快照格式见 MappedSnapshot。
+ * 字段按固定顺序写入，解码时读到记录末尾为止，后续版本在末尾追加的字段对旧数据取默认值。
+ */
+final class UserInfoCodec {
+    private static final Logger logger = LoggerFactory.getLogger(UserInfoCodec.class);
+
+    static final int MAGIC = 0x49535655; // "ISVU"
+    static final short SCHEMA_VERSION = 1;
+
+    // 单条记录上限，超过则视为损坏
+    static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    private static final long NULL_TIME = Long.MIN_VALUE;
+    private static final int FLAG_TRIAL = 1;
+    private static final int FLAG_VIRTUAL = 1 << 1;
+
+    private UserInfoCodec() {
+    }
+
+    /**
+     * 编码单条记录（不含长度和CRC）
+     */
+    static byte[] encode(UserInfo userInfo) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        encodeTo(userInfo, bytes);
+        return bytes.toByteArray();
+    }
+
+    static void encodeTo(UserInfo userInfo, ByteArrayOutputStream out) {
+        writeString(out, userInfo.getOrderBizId());
+        writeString(out, userInfo.getAliUid());
+        writeString(out, userInfo.getProductCode());
+        writeString(out, userInfo.getPackageVersion());
+        writeString(out, userInfo.getOrderId());
+        writeString(out, userInfo.getInstanceId());
+        writeString(out, userInfo.getStatus());
+        writeString(out, userInfo.getComputeNestInstanceId());
+        writeTime(out, userInfo.getCreateTime());
+        writeTime(out, userInfo.getExpiredOn());
+        int flags = (userInfo.isTrial() ? FLAG_TRIAL : 0) | (userInfo.isVirtualUser() ? FLAG_VIRTUAL : 0);
+        out.write(flags);
+    }
+
+    /**
+     * 解码单条记录，读取 buffer 从 position 到 limit 的内容
+     */
+    static UserInfo decode(ByteBuffer buffer) {
+        UserInfo userInfo = new UserInfo();
+        userInfo.setOrderBizId(readString(buffer));
+        userInfo.setAliUid(readString(buffer));
+        userInfo.setProductCode(readString(buffer));
+        userInfo.setPackageVersion(readString(buffer));
+        userInfo.setOrderId(readString(buffer));
+        userInfo.setInstanceId(readString(buffer));
+        userInfo.setStatus(readString(buffer));
+        userInfo.setComputeNestInstanceId(readString(buffer));
+        userInfo.setCreateTime(readTime(buffer));
+        userInfo.setExpiredOn(readTime(buffer));
+        if (buffer.hasRemaining()) {
+            int flags = buffer.get();
+            userInfo.setTrial((flags & FLAG_TRIAL) != 0);
+            userInfo.setVirtualUser((flags & FLAG_VIRTUAL) != 0);
+        }
+        return userInfo;
+    }
+
+    static int crc(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = readVarInt(buffer) - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (buffer.hasArray()) {
+            int offset = buffer.arrayOffset() + buffer.position();
+            buffer.position(buffer.position() + length);
+            return new String(buffer.array(), offset, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeTime(ByteArrayOutputStream out, Date date) {
+        long value = date == null ? NULL_TIME : date.getTime();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    private static Date readTime(ByteBuffer buffer) {
+        long value = buffer.getLong();
+        return value == NULL_TIME ? null : new Date(value);
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("varint 格式错误");
+    }
+
+    /**
+     * 流式读取器，CRC 校验失败的记录会被跳过并计数
+     */
+    static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private final short version;
+        private byte[] buffer = new byte[256];
+        private int count;
+        private int corrupt;
+        private boolean complete;
+
+        Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+            int magic = this.in.readInt();
+            if (magic != MAGIC) {
+                throw new IOException("不是有效的用户数据文件（魔数不匹配）");
+            }
+            this.version = this.in.readShort();
+            this.in.readShort();
+            if (version > SCHEMA_VERSION) {
+                throw new IOException("不支持的数据版本: " + version);
+            }
+        }
+
+        /**
+         * 读取下一条记录，到达结尾时返回 null
+         */
+        UserInfo next() throws IOException {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    logger.warn("用户数据文件缺少结束标记，可能不完整，已读取 {} 条记录", count);
+                    return null;
+                }
+                if (length == 0) {
+                    int expected = in.readInt();
+                    complete = true;
+                    if (expected != count + corrupt) {
+                        logger.warn("用户数据记录数不一致: 期望 {}，实际 {}", expected, count + corrupt);
+                    }
+                    return null;
+                }
+                if (length < 0 || length > MAX_RECORD_SIZE) {
+                    throw new IOException("记录长度非法: " + length);
+                }
+                int expectedCrc = in.readInt();
+                if (buffer.length < length) {
+                    buffer = new byte[Math.max(length, buffer.length * 2)];
+                }
+                in.readFully(buffer, 0, length);
+                if (crc(buffer, 0, length) != expectedCrc) {
+                    corrupt++;
+                    logger.warn("跳过校验失败的用户记录（第 {} 条）", count + corrupt);
+                    continue;
+                }
+                count++;
+                return decode(ByteBuffer.wrap(buffer, 0, length));
+            }
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        int getCorrupt() {
+            return corrupt;
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
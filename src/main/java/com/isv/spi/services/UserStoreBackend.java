@@ -0,0 +1,80 @@
+package com.isv.spi.services;
+
+import com.isv.spi.models.UserInfo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * 用户存储后端 SPI
+ * StorageService 负责业务规则（虚拟用户、早期用户导入），后端只负责记录的存取、二级查询和扫描。
+ * 通过 isv.storage.backend 选择实现：log（默认，内存 + 追加日志 + 映射快照）、mvstore（嵌入式磁盘 KV）。
+ * 实现需保证并发安全，写入方法返回时记录已按配置的持久化级别落盘。
+ */
+public interface UserStoreBackend extends Closeable {
+
+    /**
+     * 按主键 orderBizId 查询，不存在时返回 null
+     */
+    UserInfo get(String orderBizId);
+
+    /**
+     * 新增或覆盖一条记录
+     */
+    void put(UserInfo userInfo);
+
+    /**
+     * 批量写入，整批只等待一次落盘
+     */
+    void putAll(Collection<UserInfo> users);
+
+    /**
+     * 更新 aliUid，返回更新后的记录，记录不存在时返回 null
+     */
+    UserInfo updateAliUid(String orderBizId, String aliUid);
+
+    /**
+     * 更新 computeNestInstanceId，返回更新后的记录，记录不存在时返回 null
+     */
+    UserInfo updateComputeNestInstanceId(String orderBizId, String computeNestInstanceId);
+
+    /**
+     * 条件更新：对每个 orderBizId 在其记录锁内读取最新记录，满足 condition 时在副本上执行 mutation 并写入，
+     * 整批只等待一次落盘；返回已写入的副本
+     */
+    List<UserInfo> updateIf(Collection<String> orderBizIds, Predicate<UserInfo> condition, Consumer<UserInfo> mutation);
+
+    /**
+     * 删除记录，返回被删除的记录，不存在时返回 null
+     */
+    UserInfo delete(String orderBizId);
+
+    List<UserInfo> findByAliUid(String aliUid);
+
+    UserInfo findByInstanceId(String instanceId);
+
+    UserInfo findByComputeNestInstanceId(String computeNestInstanceId);
+
+    /**
+     * 按 orderBizId 升序遍历 [from, to) 范围内的记录，from/to 为 null 表示不限
+     */
+    void scan(String fromOrderBizId, String toOrderBizId, Consumer<UserInfo> consumer);
+
+    /**
+     * 遍历全部记录（不保证顺序）
+     */
+    void forEach(Consumer<UserInfo> consumer);
+
+    /**
+     * 持久化统计
+     */
+    Map<String, Object> getMetrics();
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,328 @@
+package com.isv.spi.services;
+
+import com.isv.spi.models.UserInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * 用户存储的追加写日志（WAL）
+ * 每次变更只追加一条小记录，两次快照之间的变更在启动时通过重放恢复。
+ * 记录格式: [int 长度][int CRC32][byte 操作类型][操作数据]
+ * 压缩开始时当前文件轮转为 users.log.N（N 递增），新快照替换完成后删除；
+ * 重放时按 N 从小到大重放轮转文件，再重放当前文件。
+ */
+class UserStoreLog implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(UserStoreLog.class);
+
+    // 旧版本写入的 Java 序列化记录，只在重放时读取
+    static final byte OP_PUT_LEGACY = 1;
+    static final byte OP_DELETE = 2;
+    static final byte OP_SET_ALIUID = 3;
+    static final byte OP_SET_COMPUTE_NEST = 4;
+    // UserInfoCodec 二进制记录
+    static final byte OP_PUT = 5;
+
+    // 单条记录上限，超过则视为损坏
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * 重放回调
+     */
+    interface Replayer {
+        void put(UserInfo userInfo);
+        void delete(String orderBizId);
+        void setAliUid(String orderBizId, String aliUid);
+        void setComputeNestInstanceId(String orderBizId, String computeNestInstanceId);
+    }
+
+    private final Path file;
+    private final GroupCommitWriter writer;
+    private final AtomicInteger entryCount = new AtomicInteger();
+    private boolean opened;
+    // 下一个轮转文件的编号
+    private long nextSegment = 1;
+
+    UserStoreLog(Path file, GroupCommitWriter.Durability durability, long maxDelayMillis, int maxBatch) {
+        this.file = file;
+        this.writer = new GroupCommitWriter(file, durability, maxDelayMillis, maxBatch);
+    }
+
+    /**
+     * 重放日志，返回成功重放的记录数。
+     * 遇到不完整或校验失败的尾部记录（写入过程中宕机）时，截断到最后一条完整记录。
+     */
+    int replay(Replayer replayer) throws IOException {
+        int rotated = 0;
+        for (long segment : listSegments()) {
+            rotated += replayFile(segmentPath(segment), replayer);
+            nextSegment = Math.max(nextSegment, segment + 1);
+        }
+        int count = replayFile(file, replayer);
+        entryCount.set(rotated + count);
+        return rotated + count;
+    }
+
+    private int replayFile(Path path, Replayer replayer) throws IOException {
+        File logFile = path.toFile();
+        if (!logFile.exists()) {
+            return 0;
+        }
+
+        int count = 0;
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(logFile)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    logger.warn("日志记录长度非法: {}，丢弃后续内容", length);
+                    break;
+                }
+                byte[] payload = new byte[length];
+                int expectedCrc;
+                try {
+                    expectedCrc = in.readInt();
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    logger.warn("日志尾部记录不完整，丢弃: offset={}", validLength);
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payload, 0, payload.length);
+                if ((int) crc.getValue() != expectedCrc) {
+                    logger.warn("日志记录校验失败，丢弃后续内容: offset={}", validLength);
+                    break;
+                }
+                apply(payload, replayer);
+                validLength += 8 + length;
+                count++;
+            }
+        }
+
+        if (validLength < logFile.length()) {
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                ch.truncate(validLength);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 已存在的轮转文件编号（升序）
+     */
+    private List<Long> listSegments() {
+        List<Long> segments = new ArrayList<>();
+        String prefix = file.getFileName().toString() + ".";
+        File[] files = file.toAbsolutePath().getParent().toFile().listFiles(
+                (dir, name) -> name.startsWith(prefix));
+        if (files == null) {
+            return segments;
+        }
+        for (File segmentFile : files) {
+            try {
+                segments.add(Long.parseLong(segmentFile.getName().substring(prefix.length())));
+            } catch (NumberFormatException e) {
+                // 不是轮转文件
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private Path segmentPath(long segment) {
+        return file.resolveSibling(file.getFileName() + "." + segment);
+    }
+
+    private void apply(byte[] payload, Replayer replayer) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte op = in.readByte();
+        switch (op) {
+            case OP_PUT:
+                replayer.put(UserInfoCodec.decode(ByteBuffer.wrap(payload, 1, payload.length - 1)));
+                break;
+            case OP_PUT_LEGACY:
+                try (ObjectInputStream ois = new ObjectInputStream(in)) {
+                    replayer.put((UserInfo) ois.readObject());
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("无法解析日志中的用户记录", e);
+                }
+                break;
+            case OP_DELETE:
+                replayer.delete(in.readUTF());
+                break;
+            case OP_SET_ALIUID:
+                replayer.setAliUid(in.readUTF(), in.readUTF());
+                break;
+            case OP_SET_COMPUTE_NEST: {
+                String orderBizId = in.readUTF();
+                String value = in.readBoolean() ? in.readUTF() : null;
+                replayer.setComputeNestInstanceId(orderBizId, value);
+                break;
+            }
+            default:
+                throw new IOException("未知的日志操作类型: " + op);
+        }
+    }
+
+    /**
+     * 打开日志用于追加
+     */
+    void open() throws IOException {
+        writer.open();
+        opened = true;
+    }
+
+    GroupCommitWriter.Durability getDurability() {
+        return writer.getDurability();
+    }
+
+    Map<String, Object> getMetrics() {
+        return writer.getMetrics();
+    }
+
+    CompletableFuture<Void> appendPut(UserInfo userInfo) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        bytes.write(OP_PUT);
+        UserInfoCodec.encodeTo(userInfo, bytes);
+        return append(bytes.toByteArray());
+    }
+
+    /**
+     * 批量写入：每条记录仍是独立的一帧（重放格式不变），整批作为一次写入 + 一次 fsync 提交
+     */
+    CompletableFuture<Void> appendPuts(Collection<UserInfo> users) throws IOException {
+        if (!opened) {
+            throw new IOException("变更日志未打开");
+        }
+        ByteArrayOutputStream frames = new ByteArrayOutputStream(users.size() * 160);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(frames);
+        for (UserInfo userInfo : users) {
+            payload.reset();
+            payload.write(OP_PUT);
+            UserInfoCodec.encodeTo(userInfo, payload);
+            byte[] bytes = payload.toByteArray();
+            out.writeInt(bytes.length);
+            out.writeInt(UserInfoCodec.crc(bytes, 0, bytes.length));
+            out.write(bytes);
+        }
+        entryCount.addAndGet(users.size());
+        return writer.submit(ByteBuffer.wrap(frames.toByteArray()));
+    }
+
+    CompletableFuture<Void> appendDelete(String orderBizId) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(OP_DELETE);
+        out.writeUTF(orderBizId);
+        return append(bytes.toByteArray());
+    }
+
+    CompletableFuture<Void> appendSetAliUid(String orderBizId, String aliUid) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(OP_SET_ALIUID);
+        out.writeUTF(orderBizId);
+        out.writeUTF(aliUid);
+        return append(bytes.toByteArray());
+    }
+
+    CompletableFuture<Void> appendSetComputeNestInstanceId(String orderBizId, String computeNestInstanceId) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(OP_SET_COMPUTE_NEST);
+        out.writeUTF(orderBizId);
+        out.writeBoolean(computeNestInstanceId != null);
+        if (computeNestInstanceId != null) {
+            out.writeUTF(computeNestInstanceId);
+        }
+        return append(bytes.toByteArray());
+    }
+
+    /**
+     * 编码为一帧并交给组提交写入器，返回的 future 在落盘后完成
+     */
+    private CompletableFuture<Void> append(byte[] payload) throws IOException {
+        if (!opened) {
+            throw new IOException("变更日志未打开");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+        buffer.flip();
+        entryCount.incrementAndGet();
+        return writer.submit(buffer);
+    }
+
+    /**
+     * 轮转当前日志（需与追加互斥，由调用方持有存储写锁），返回轮转文件编号。
+     * 之后追加的记录进入新文件，轮转文件中的变更全部包含在调用时的内存状态中。
+     */
+    long rotate() throws IOException {
+        if (!opened) {
+            throw new IOException("变更日志未打开");
+        }
+        long segment = nextSegment++;
+        writer.rotate(segmentPath(segment));
+        entryCount.set(0);
+        return segment;
+    }
+
+    /**
+     * 新快照生效后删除编号不大于 segment 的轮转文件，返回删除的字节数
+     */
+    long deleteSegmentsThrough(long segment) {
+        long bytes = 0;
+        for (long existing : listSegments()) {
+            if (existing > segment) {
+                break;
+            }
+            File segmentFile = segmentPath(existing).toFile();
+            long length = segmentFile.length();
+            if (segmentFile.delete()) {
+                bytes += length;
+            } else {
+                logger.warn("删除轮转日志失败: {}", segmentFile);
+            }
+        }
+        return bytes;
+    }
+
+    int getEntryCount() {
+        return entryCount.get();
+    }
+
+    /**
+     * 当前日志文件的字节数
+     */
+    long getSizeBytes() {
+        return writer.getCurrentFileBytes();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
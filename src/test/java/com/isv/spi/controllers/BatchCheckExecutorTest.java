@@ -0,0 +1,55 @@
+package com.isv.spi.controllers;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 批量检查线程池：结果按下标对应，单项异常只影响该项（按 false 返回），计算不落在公共 ForkJoinPool 上
+ */
+class BatchCheckExecutorTest {
+
+    @Test
+    void failingItemAnswersFalseAndOthersComplete() {
+        BatchCheckExecutor executor = new BatchCheckExecutor(4, 8);
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        try {
+            int from = 512;
+            int to = 1024;
+            boolean[] results = new boolean[to - from];
+            executor.evaluate(from, to, i -> {
+                threads.add(Thread.currentThread().getName());
+                if (i == 1000) {
+                    throw new IllegalStateException("boom");
+                }
+                return i % 2 == 0;
+            }, results);
+
+            for (int i = from; i < to; i++) {
+                assertEquals(i != 1000 && i % 2 == 0, results[i - from], "第 " + i + " 项");
+            }
+            assertEquals(1L, executor.getMetrics().get("failures"));
+            assertEquals((long) (to - from), executor.getMetrics().get("items"));
+            assertTrue(threads.stream().anyMatch(name -> name.startsWith("check-batch-")), threads::toString);
+            assertFalse(threads.stream().anyMatch(name -> name.contains("ForkJoinPool")), threads::toString);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void runsOnCallerAfterShutdown() {
+        BatchCheckExecutor executor = new BatchCheckExecutor(2, 1);
+        executor.shutdown();
+        boolean[] results = new boolean[10];
+        executor.evaluate(0, 10, i -> true, results);
+        for (boolean result : results) {
+            assertTrue(result);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.isv.spi.controllers;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * /isv/check 请求线程上准入控制与请求体解析的分配基准（bytes/op，按线程分配字节数计算）：
+ * 准入控制不分配；解析只分配 aliuid、instanceid 两个结果字符串
+ */
+class CheckPathAllocationTest {
+
+    private static final int OPS = 1_000_000;
+    private static final byte[] BODY = "{\"aliuid\":\"1234567890\",\"instanceid\":\"i-abcdef\",\"apikey\":\"k\"}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void admissionIsAllocationFree() {
+        CheckAdmission admission = new CheckAdmission();
+        Runnable loop = () -> {
+            for (int i = 0; i < OPS; i++) {
+                if (admission.enter() != null || admission.admitTenant("1234567890", 1) != null) {
+                    throw new AssertionError("请求被拒绝");
+                }
+                admission.release();
+            }
+        };
+        // 预热一轮，使 JIT 完成编译
+        loop.run();
+        double bytesPerOp = bytesPerOp(loop);
+        System.out.printf("准入控制: %.3f bytes/op%n", bytesPerOp);
+        assertTrue(bytesPerOp < 0.1, "准入控制有分配: " + bytesPerOp + " bytes/op");
+    }
+
+    @Test
+    void parserAllocatesOnlyResultStrings() {
+        CheckRequestParser parser = CheckRequestParser.get();
+        ByteArrayInputStream in = new ByteArrayInputStream(BODY);
+        Runnable loop = () -> {
+            for (int i = 0; i < OPS; i++) {
+                in.reset();
+                try {
+                    parser.read(in);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (!parser.parse()) {
+                    throw new AssertionError("解析失败");
+                }
+            }
+        };
+        // 预热一轮，使 JIT 完成编译
+        loop.run();
+        double bytesPerOp = bytesPerOp(loop);
+        System.out.printf("请求体解析: %.3f bytes/op%n", bytesPerOp);
+        assertEquals("1234567890", parser.aliUid);
+        assertEquals("i-abcdef", parser.instanceId);
+        // 两个 String（对象头 + byte[]），不随请求体长度增长
+        assertTrue(bytesPerOp <= 128, "请求体解析分配过多: " + bytesPerOp + " bytes/op");
+    }
+
+    private static double bytesPerOp(Runnable loop) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        loop.run();
+        return (double) (threads.getThreadAllocatedBytes(thread) - before) / OPS;
+    }
+}
@@ -0,0 +1,65 @@
+package com.isv.spi.controllers;
+
+import com.alibaba.fastjson.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 快速解析只接受严格 JSON 子集：格式不合法或超出子集的请求体返回 false 交给 fastjson，
+ * 快速路径给出的结果与 fastjson 一致
+ */
+class CheckRequestParserTest {
+
+    @Test
+    void wellFormedBodiesMatchFastjson() throws IOException {
+        String[] bodies = {
+            "{\"aliuid\":\"123\",\"instanceid\":\"i-1\"}",
+            " { \"aliuid\" : 123 , \"instanceid\" : \"i-1\" , \"apikey\" : \"k\" } \n",
+            "{\"aliuid\":-42,\"instanceid\":null,\"flag\":true}",
+            "{\"instanceid\":\"i-1\",\"aliuid\":\"a\",\"aliuid\":\"b\"}",
+            "{}",
+        };
+        for (String body : bodies) {
+            CheckRequestParser parser = parse(body);
+            assertTrue(parser.parse(), body);
+            JSONObject json = JSONObject.parseObject(body);
+            assertEquals(json.getString("aliuid"), parser.aliUid, body);
+            assertEquals(json.getString("instanceid"), parser.instanceId, body);
+        }
+    }
+
+    @Test
+    void malformedBodiesAreLeftToFastjson() throws IOException {
+        String[] bodies = {
+            "{\"aliuid\":\"123\" \"instanceid\":\"i-1\"}",
+            "{\"aliuid\":\"123\",,\"instanceid\":\"i-1\"}",
+            "{,\"aliuid\":\"123\"}",
+            "{\"aliuid\":\"123\",}",
+            "{\"aliuid\":\"123\"}x",
+            "{\"aliuid\":\"123\"",
+            "{\"aliuid\":12a}",
+            "{\"aliuid\":012}",
+            "{\"aliuid\":1.50}",
+            "{\"aliuid\":truex}",
+            "{\"aliuid\":\"1\\u0032\"}",
+            "{\"aliuid\":\"123\",\"ext\":{\"a\":1}}",
+            "{aliuid:\"123\"}",
+        };
+        for (String body : bodies) {
+            assertFalse(parse(body).parse(), body);
+        }
+    }
+
+    private static CheckRequestParser parse(String body) throws IOException {
+        CheckRequestParser parser = CheckRequestParser.get();
+        parser.read(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+        return parser;
+    }
+}
@@ -0,0 +1,53 @@
+package com.isv.spi.services;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * /isv/check 缓存命中路径的分配基准：按线程分配字节数（com.sun.management.ThreadMXBean）计算 bytes/op，
+ * 命中路径使用线程本地探测键，应为 0（允许测量本身的少量噪声）
+ */
+class CheckResultCacheAllocationTest {
+
+    private static final int WARMUP = 200_000;
+    private static final int OPS = 1_000_000;
+
+    @Test
+    void cacheHitIsAllocationFree() {
+        try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext("com.isv.spi.services")) {
+            CheckResultCache cache = context.getBean(CheckResultCache.class);
+            String aliUid = "uid-alloc";
+            String instanceId = "i-alloc";
+            EffectiveAccess access = new EffectiveAccess("order-alloc", aliUid, instanceId, false,
+                    System.currentTimeMillis() + 3_600_000L);
+            cache.put(cache.beginLoad(), new CheckKey(aliUid, instanceId), access);
+
+            for (int i = 0; i < WARMUP; i++) {
+                cache.get(aliUid, instanceId);
+            }
+            double bytesPerOp = bytesPerOp(() -> {
+                for (int i = 0; i < OPS; i++) {
+                    if (cache.get(aliUid, instanceId) != Boolean.TRUE) {
+                        throw new AssertionError("缓存未命中");
+                    }
+                }
+            });
+            System.out.printf("缓存命中: %.3f bytes/op%n", bytesPerOp);
+            assertTrue(bytesPerOp < 0.1, "缓存命中路径有分配: " + bytesPerOp + " bytes/op");
+            assertEquals(Boolean.TRUE, cache.get(aliUid, instanceId));
+        }
+    }
+
+    private static double bytesPerOp(Runnable loop) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        loop.run();
+        return (double) (threads.getThreadAllocatedBytes(thread) - before) / OPS;
+    }
+}
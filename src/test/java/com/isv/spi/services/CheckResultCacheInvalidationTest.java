@@ -0,0 +1,54 @@
+package com.isv.spi.services;
+
+import com.isv.spi.models.UserInfo;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * 记录变更只失效相关条目：加载期间无关记录的变更不影响写入缓存，相关记录的变更使加载结果被丢弃
+ */
+class CheckResultCacheInvalidationTest {
+
+    @Test
+    void onlyOverlappingLoadsAreDropped() {
+        try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext("com.isv.spi.services")) {
+            CheckResultCache cache = context.getBean(CheckResultCache.class);
+            long expiresAt = System.currentTimeMillis() + 3_600_000L;
+
+            long unrelatedToken = cache.beginLoad();
+            long overlappingToken = cache.beginLoad();
+            long orderToken = cache.beginLoad();
+            // 加载期间其他租户的记录发生变更
+            cache.onUserSaved(user("order-other", "uid-other", "i-other"));
+            // 加载期间同 aliUid 的记录发生变更
+            cache.onUserSaved(user("order-new", "uid-b", "i-new"));
+            // 加载期间判定所依据的订单被改到其他 aliUid
+            cache.onUserSaved(user("order-c", "uid-moved", "i-moved"));
+
+            cache.put(unrelatedToken, new CheckKey("uid-a", "i-a"),
+                    new EffectiveAccess("order-a", "uid-a", "i-a", false, expiresAt));
+            cache.put(overlappingToken, new CheckKey("uid-b", "i-b"), null);
+            cache.put(orderToken, new CheckKey("uid-c", "i-c"),
+                    new EffectiveAccess("order-c", "uid-c", "i-c", false, expiresAt));
+
+            assertEquals(Boolean.TRUE, cache.get("uid-a", "i-a"));
+            assertNull(cache.get("uid-b", "i-b"));
+            assertNull(cache.get("uid-c", "i-c"));
+
+            // 已缓存的条目按实例 ID 失效
+            cache.onUserDeleted(user("order-x", "uid-x", "i-a"));
+            assertNull(cache.get("uid-a", "i-a"));
+        }
+    }
+
+    private static UserInfo user(String orderBizId, String aliUid, String computeNestInstanceId) {
+        UserInfo user = new UserInfo();
+        user.setOrderBizId(orderBizId);
+        user.setAliUid(aliUid);
+        user.setComputeNestInstanceId(computeNestInstanceId);
+        return user;
+    }
+}
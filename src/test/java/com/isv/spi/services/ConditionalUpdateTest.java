@@ -0,0 +1,68 @@
+package com.isv.spi.services;
+
+import com.isv.spi.models.UserInfo;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 到期标记在记录锁内校验并在副本上修改：校验期间到达的续费排在标记之后写入，不会被 EXPIRED 覆盖，
+ * 读者持有的旧记录也不会被原地改动
+ */
+class ConditionalUpdateTest {
+
+    @Test
+    void renewalDuringExpiryCheckIsNotOverwritten() throws Exception {
+        String suffix = UUID.randomUUID().toString().replace("-", "").substring(0, 12);
+        String orderBizId = "order-" + suffix;
+        long renewedUntil = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(30);
+
+        try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext("com.isv.spi.services")) {
+            StorageService storageService = context.getBean(StorageService.class);
+            UserInfo user = new UserInfo();
+            user.setOrderBizId(orderBizId);
+            user.setAliUid("uid-" + suffix);
+            user.setInstanceId("inst-" + suffix);
+            user.setStatus("ACTIVE");
+            // 到期时间在未来，避免容器中的到期调度抢先标记；条件由测试自己给出
+            user.setExpiredOn(new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)));
+            storageService.saveUser(user);
+            UserInfo held = storageService.getUserByOrderBizId(orderBizId);
+
+            Thread[] renewal = new Thread[1];
+            List<UserInfo> expired = storageService.updateUsersIf(Collections.singletonList(orderBizId),
+                    current -> {
+                        // 校验通过之后、写入之前到达的续费
+                        UserInfo renewed = new UserInfo(current);
+                        renewed.setExpiredOn(new Date(renewedUntil));
+                        renewed.setStatus("ACTIVE");
+                        renewal[0] = new Thread(() -> storageService.saveUser(renewed));
+                        renewal[0].start();
+                        try {
+                            renewal[0].join(200);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        assertTrue(renewal[0].isAlive(), "续费应等待记录锁");
+                        return "ACTIVE".equals(current.getStatus());
+                    },
+                    current -> current.setStatus("EXPIRED"));
+            renewal[0].join(TimeUnit.SECONDS.toMillis(5));
+
+            assertEquals(1, expired.size());
+            assertEquals("EXPIRED", expired.get(0).getStatus());
+            assertEquals("ACTIVE", held.getStatus(), "读者持有的记录不应被原地修改");
+            UserInfo latest = storageService.getUserByOrderBizId(orderBizId);
+            assertEquals("ACTIVE", latest.getStatus());
+            assertEquals(renewedUntil, latest.getExpiredOn().getTime());
+        }
+    }
+}
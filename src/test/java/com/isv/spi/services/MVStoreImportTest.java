@@ -0,0 +1,65 @@
+package com.isv.spi.services;
+
+import com.isv.spi.models.UserInfo;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * 从日志存储后端导入到 MVStore 中途中断时（存储文件已存在但导入标记未清除），下次打开重新导入，不丢失记录
+ */
+class MVStoreImportTest {
+
+    @Test
+    void interruptedImportIsResumed() throws Exception {
+        String suffix = UUID.randomUUID().toString().replace("-", "").substring(0, 12);
+        String orderBizId = "order-" + suffix;
+        try (LogStructuredBackend source = new LogStructuredBackend()) {
+            UserInfo user = new UserInfo();
+            user.setOrderBizId(orderBizId);
+            user.setAliUid("uid-" + suffix);
+            user.setInstanceId("inst-" + suffix);
+            user.setStatus("ACTIVE");
+            user.setExpiredOn(new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(30)));
+            source.put(user);
+        }
+
+        // 模拟导入中途退出：文件已创建、标记已提交，记录尚未写入
+        Path storeFile = Paths.get(StorageService.STORAGE_DIR, "users.mv.db");
+        Files.deleteIfExists(storeFile);
+        MVStore partial = new MVStore.Builder().fileName(storeFile.toString()).open();
+        MVMap<String, Long> meta = partial.openMap("meta");
+        meta.put("importPending", 1L);
+        partial.commit();
+        partial.close();
+
+        MVStoreBackend backend = new MVStoreBackend();
+        try {
+            UserInfo imported = backend.get(orderBizId);
+            assertNotNull(imported, "中断的导入应在下次打开时重新执行");
+            assertEquals("uid-" + suffix, imported.getAliUid());
+            assertEquals(orderBizId, backend.findByInstanceId("inst-" + suffix).getOrderBizId());
+        } finally {
+            backend.close();
+        }
+
+        // 导入完成后标记已清除，再次打开不会重新导入
+        MVStore reopened = new MVStore.Builder().fileName(storeFile.toString()).readOnly().open();
+        try {
+            assertEquals(null, reopened.<String, Long>openMap("meta").get("importPending"));
+        } finally {
+            reopened.close();
+        }
+        Files.deleteIfExists(storeFile);
+    }
+}
@@ -0,0 +1,138 @@
+package com.isv.spi.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 内存映射状态表读写一致性：读取方不会读到撕裂的槽位，写入方重建或重启后读取方切换到新文件
+ */
+class MappedStatusTableTest {
+
+    private static final int HOT_KEYS = 64;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readersNeverObserveTornSlots() throws Exception {
+        Path file = dir.resolve("status.table");
+        Map<String, Long> initial = new HashMap<>();
+        for (int i = 0; i < HOT_KEYS; i++) {
+            initial.put("hot-" + i, 1L);
+        }
+        MappedStatusTable table = new MappedStatusTable(file, initial);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        // 写入方：有效截止时间总是奇数且按实例递增，无效状态的截止时间写为 0；不断新增实例触发重建
+        Thread writer = new Thread(() -> {
+            long[] counters = new long[HOT_KEYS];
+            int added = 0;
+            try {
+                while (running.get()) {
+                    int i = ThreadLocalRandom.current().nextInt(HOT_KEYS);
+                    long c = ++counters[i];
+                    if (c % 3 == 0) {
+                        table.put("hot-" + i, false, 0);
+                    } else {
+                        table.put("hot-" + i, true, 2 * c + 1);
+                    }
+                    if (c % 8 == 0 && added < 20000) {
+                        table.put("cold-" + added++, true, 1);
+                    }
+                }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        }, "table-writer");
+
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < 3; r++) {
+            readers.add(new Thread(() -> {
+                long[] lastValid = new long[HOT_KEYS];
+                try (MappedStatusReader reader = new MappedStatusReader(file)) {
+                    while (running.get()) {
+                        int i = ThreadLocalRandom.current().nextInt(HOT_KEYS);
+                        long result = reader.validUntil("hot-" + i);
+                        if (result == -1) {
+                            continue;
+                        }
+                        if (result == Long.MIN_VALUE || (result & 1) == 0) {
+                            throw new AssertionError("hot-" + i + " 读到不一致的截止时间: " + result);
+                        }
+                        if (result < lastValid[i]) {
+                            throw new AssertionError("hot-" + i + " 截止时间回退: " + lastValid[i] + " -> " + result);
+                        }
+                        lastValid[i] = result;
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "table-reader-" + r));
+        }
+
+        writer.start();
+        readers.forEach(Thread::start);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(2));
+        running.set(false);
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get(), () -> String.valueOf(failure.get()));
+        assertTrue(((Number) table.getMetrics().get("rebuilds")).longValue() > 0, "测试期间应发生重建");
+    }
+
+    @Test
+    void readerSwitchesToTableWrittenAfterRestart() throws Exception {
+        Path file = dir.resolve("status.table");
+        new MappedStatusTable(file, Collections.singletonMap("i-a", 101L));
+        try (MappedStatusReader reader = new MappedStatusReader(file)) {
+            assertEquals(101L, reader.validUntil("i-a"));
+            // 写入方重启：按新数据生成新表，旧文件被标记为已废弃
+            new MappedStatusTable(file, Collections.singletonMap("i-a", 203L));
+            assertEquals(203L, reader.validUntil("i-a"));
+        }
+    }
+
+    @Test
+    void slotStuckInWriteIsReportedUnknown() throws Exception {
+        Path file = dir.resolve("status.table");
+        new MappedStatusTable(file, Collections.singletonMap("i-a", 101L));
+        // 模拟写入方在写槽位时退出：版本号停留在奇数
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            byte[] key = "i-a".getBytes(StandardCharsets.UTF_8);
+            int index = (int) MappedStatusReader.hash(key, key.length) & (buf.getInt(MappedStatusReader.OFF_CAPACITY) - 1);
+            int slot = MappedStatusReader.HEADER_SIZE + index * MappedStatusReader.SLOT_SIZE;
+            buf.putLong(slot + MappedStatusReader.SLOT_SEQ, buf.getLong(slot + MappedStatusReader.SLOT_SEQ) + 1);
+        }
+        try (MappedStatusReader reader = new MappedStatusReader(file)) {
+            assertEquals(MappedStatusReader.UNKNOWN,
+                    assertTimeoutPreemptively(Duration.ofSeconds(5), () -> reader.status("i-a", 0)));
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.isv.spi.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 重载失败时本轮变化重新登记并退避重试，直到成功；关闭时只执行一次，不再重试
+ */
+class ReloadCoalescerTest {
+
+    @Test
+    void failedReloadIsRetriedWithItsChanges() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        ReloadCoalescer coalescer = new ReloadCoalescer(() -> attempts.incrementAndGet() > 2);
+        try {
+            coalescer.requestReload(3);
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+            while (attempts.get() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            Thread.sleep(100);
+            Map<String, Object> metrics = coalescer.getMetrics();
+            assertEquals(3, attempts.get());
+            assertEquals(2L, metrics.get("failures"));
+            assertEquals(2L, metrics.get("retries"));
+            // 两次失败的变化都随最后一次成功的重载生效
+            assertEquals(3L, metrics.get("lastBatchChanges"));
+            assertEquals(0L, metrics.get("pendingChanges"));
+            assertEquals(0, metrics.get("consecutiveFailures"));
+        } finally {
+            coalescer.shutdown();
+        }
+    }
+
+    @Test
+    void shutdownDoesNotRetry() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        ReloadCoalescer coalescer = new ReloadCoalescer(() -> {
+            attempts.incrementAndGet();
+            return false;
+        });
+        coalescer.requestReload(1);
+        coalescer.shutdown();
+        int afterShutdown = attempts.get();
+        assertTrue(afterShutdown >= 1, "关闭时应对剩余变化执行重载");
+        Thread.sleep(500);
+        assertEquals(afterShutdown, attempts.get(), "关闭后不应再重试");
+        assertEquals(0L, coalescer.getMetrics().get("pendingChanges"));
+    }
+}
@@ -0,0 +1,119 @@
+package com.isv.spi.services;
+
+import com.isv.spi.models.UserInfo;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.BeanCreationException;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 容器关闭时各服务的关闭回调必须执行：后台线程退出、排队的状态文件写出、存储后端关闭后可重新打开；
+ * 同一数据目录同时只能被一个容器打开
+ */
+class ServiceLifecycleTest {
+
+    private static final List<String> WORKER_THREADS = Arrays.asList(
+            "check-side-effects", "expiry-scheduler", "status-dir-watcher", "status-file-writer",
+            "status-reconciler", "user-log-group-commit", "user-store-compactor");
+
+    @Test
+    void closingContextRunsShutdownHooks() throws Exception {
+        String suffix = UUID.randomUUID().toString().replace("-", "").substring(0, 12);
+        String orderBizId = "order-" + suffix;
+        String instanceId = "i-" + suffix;
+
+        try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext("com.isv.spi.services")) {
+            UserInfo user = new UserInfo();
+            user.setOrderBizId(orderBizId);
+            user.setAliUid("uid-" + suffix);
+            user.setInstanceId(instanceId);
+            user.setComputeNestInstanceId(instanceId);
+            user.setStatus("ACTIVE");
+            user.setExpiredOn(new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(30)));
+            context.getBean(StorageService.class).saveUser(user);
+            context.getBean(InstanceStatusService.class).writeInstanceStatusFile(instanceId, true);
+        }
+
+        assertFalse(aliveWorkers().iterator().hasNext(), "关闭后仍有后台线程: " + aliveWorkers());
+        Path statusFile = Paths.get(InstanceStatusService.STATUS_DIR, instanceId + ".conf");
+        assertEquals(instanceId + " true;\n",
+                new String(Files.readAllBytes(statusFile), StandardCharsets.UTF_8));
+
+        // 第二个容器打开同一数据目录：上一个后端必须已关闭并落盘
+        try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext("com.isv.spi.services")) {
+            UserInfo reloaded = context.getBean(StorageService.class).getUserByOrderBizId(orderBizId);
+            assertNotNull(reloaded);
+            assertEquals(instanceId, reloaded.getInstanceId());
+        }
+    }
+
+    @Test
+    void secondContextOnSameDataDirectoryFailsFast() {
+        try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext("com.isv.spi.services")) {
+            BeanCreationException e = assertThrows(BeanCreationException.class,
+                    () -> new AnnotationConfigApplicationContext("com.isv.spi.services"));
+            assertTrue(rootCause(e) instanceof IllegalStateException, String.valueOf(rootCause(e)));
+            assertNotNull(context.getBean(StorageService.class).getPersistenceMetrics());
+        }
+        // 锁已随关闭释放
+        new AnnotationConfigApplicationContext("com.isv.spi.services").close();
+    }
+
+    @Test
+    void earlyUsersAreImportedBeforeImportGateOpens() throws Exception {
+        String instanceId = "i-" + UUID.randomUUID().toString().replace("-", "").substring(0, 12);
+        Path statusFile = Paths.get(InstanceStatusService.STATUS_DIR, instanceId + ".conf");
+        Files.createDirectories(statusFile.getParent());
+        Files.write(statusFile, (instanceId + " true;").getBytes(StandardCharsets.UTF_8));
+
+        try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext("com.isv.spi.services")) {
+            StorageService storageService = context.getBean(StorageService.class);
+            assertTrue(storageService.awaitEarlyUsers(TimeUnit.SECONDS.toMillis(10)));
+            UserInfo earlyUser = storageService.getUserByComputeNestInstanceId(instanceId);
+            assertNotNull(earlyUser);
+            assertTrue(storageService.isVirtualUser(earlyUser));
+        }
+    }
+
+    private static Throwable rootCause(Throwable e) {
+        while (e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    private static Set<String> aliveWorkers() throws InterruptedException {
+        Set<String> alive = new HashSet<>();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        do {
+            alive.clear();
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.isAlive() && WORKER_THREADS.contains(thread.getName())) {
+                    alive.add(thread.getName());
+                }
+            }
+            if (alive.isEmpty()) {
+                break;
+            }
+            Thread.sleep(50);
+        } while (System.currentTimeMillis() < deadline);
+        return alive;
+    }
+}
@@ -0,0 +1,47 @@
+package com.isv.spi.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 状态文件写入：事件从取出到写完之前都视为排队中，目录监听不会把本进程写到一半的状态当作外部改动
+ */
+class StatusFileWriterTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void eventStaysPendingUntilWritten() throws Exception {
+        AtomicReference<StatusFileWriter> writerRef = new AtomicReference<>();
+        AtomicBoolean pendingDuringApply = new AtomicBoolean();
+        CountDownLatch applied = new CountDownLatch(1);
+        StatusFileWriter writer = new StatusFileWriter(dir.toString(), (instanceId, isValid) -> {
+            pendingDuringApply.set(writerRef.get().isPending(instanceId));
+            applied.countDown();
+        });
+        writerRef.set(writer);
+        try {
+            writer.write("i-abc", true);
+            assertTrue(applied.await(5, TimeUnit.SECONDS));
+            assertTrue(pendingDuringApply.get(), "写出回调执行时事件应仍视为排队中");
+            writer.flush();
+            assertFalse(writer.isPending("i-abc"));
+            assertEquals("i-abc true;\n", new String(Files.readAllBytes(dir.resolve("i-abc.conf")), StandardCharsets.UTF_8));
+        } finally {
+            writer.shutdown();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.isv.spi.services;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 实例ID校验：只接受 [A-Za-z0-9_-]，防止写入 nginx 配置注入或跳出状态目录
+ */
+class StatusFilesTest {
+
+    @Test
+    void acceptsPlainInstanceIds() {
+        assertTrue(InstanceStatusService.isValidInstanceId("i-bp1abc_DEF-09"));
+    }
+
+    @Test
+    void rejectsInjectionAndTraversal() {
+        for (String id : new String[] {null, "", "a;b", "a\nb", "a b", "../etc/passwd", "a/b", "a.conf", "实例"}) {
+            assertFalse(InstanceStatusService.isValidInstanceId(id), String.valueOf(id));
+        }
+        StringBuilder tooLong = new StringBuilder();
+        for (int i = 0; i < 129; i++) {
+            tooLong.append('a');
+        }
+        assertFalse(InstanceStatusService.isValidInstanceId(tooLong.toString()));
+    }
+
+    @Test
+    void parseLineSkipsInvalidIds() {
+        String[] id = new String[1];
+        assertEquals(Boolean.TRUE, StatusFiles.parseLine("i-abc true;", id));
+        assertEquals("i-abc", id[0]);
+        assertNull(StatusFiles.parseLine("../x true;", id));
+        assertNull(StatusFiles.parseLine("a;b true;", id));
+    }
+}
@@ -0,0 +1,136 @@
+package com.isv.spi.services;
+
+import com.isv.spi.models.UserInfo;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 对账不删除存储无法判定的实例的状态文件；一条订单变化后同一 aliUid 下其他实例的偏差也能被发现并修复
+ */
+class StatusReconcilerTest {
+
+    @Test
+    void reassociatedInstanceFileIsNotDeleted() throws Exception {
+        String suffix = UUID.randomUUID().toString().replace("-", "").substring(0, 12);
+        String orderBizId = "order-" + suffix;
+        String oldInstance = "i-old" + suffix;
+        String newInstance = "i-new" + suffix;
+
+        try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext("com.isv.spi.services")) {
+            StorageService storageService = context.getBean(StorageService.class);
+            InstanceStatusService statusService = context.getBean(InstanceStatusService.class);
+            StatusReconciler reconciler = context.getBean(StatusReconciler.class);
+            assertTrue(storageService.awaitEarlyUsers(TimeUnit.SECONDS.toMillis(10)));
+
+            UserInfo user = new UserInfo();
+            user.setOrderBizId(orderBizId);
+            user.setAliUid("uid-" + suffix);
+            user.setInstanceId("inst-" + suffix);
+            user.setComputeNestInstanceId(oldInstance);
+            user.setStatus("ACTIVE");
+            user.setExpiredOn(new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(30)));
+            storageService.saveUser(user);
+            statusService.writeInstanceStatusFile(oldInstance, true);
+            awaitContent(oldInstance, "true");
+
+            // 检查接口把订单改关联到新实例；旧实例随后的写入使该分片摘要不一致
+            storageService.updateComputeNestInstanceId(orderBizId, newInstance);
+            statusService.writeInstanceStatusFile(oldInstance, false);
+            awaitContent(oldInstance, "false");
+
+            // 文件改名后写线程才回调落盘状态，反复对账直到旧实例因无法判定而取消跟踪
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+            while (untracked(reconciler) < 1 && System.currentTimeMillis() < deadline) {
+                reconciler.reconcile();
+                Thread.sleep(20);
+            }
+            reconciler.reconcile();
+            Thread.sleep(200);
+
+            awaitContent(oldInstance, "false");
+            assertTrue(untracked(reconciler) >= 1);
+        }
+    }
+
+    @Test
+    void siblingInstanceIsRejudgedWhenAliUidLosesItsValidOrder() throws Exception {
+        String suffix = UUID.randomUUID().toString().replace("-", "").substring(0, 12);
+        String aliUid = "uid-" + suffix;
+        String validInstance = "i-valid" + suffix;
+        String siblingInstance = "i-sib" + suffix;
+
+        try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext("com.isv.spi.services")) {
+            StorageService storageService = context.getBean(StorageService.class);
+            InstanceStatusService statusService = context.getBean(InstanceStatusService.class);
+            StatusReconciler reconciler = context.getBean(StatusReconciler.class);
+            assertTrue(storageService.awaitEarlyUsers(TimeUnit.SECONDS.toMillis(10)));
+
+            // 兄弟实例自身的订单早已过期，只因同一 aliUid 下另一订单有效而有效
+            UserInfo sibling = user("order-sib" + suffix, aliUid, siblingInstance, "EXPIRED", -TimeUnit.DAYS.toMillis(1));
+            UserInfo valid = user("order-valid" + suffix, aliUid, validInstance, "ACTIVE", TimeUnit.DAYS.toMillis(30));
+            storageService.saveUser(valid);
+            storageService.saveUser(sibling);
+            assertEquals(Boolean.TRUE, storageService.desiredInstanceStatus(siblingInstance, System.currentTimeMillis()));
+            statusService.writeInstanceStatusFile(siblingInstance, true);
+            awaitContent(siblingInstance, "true");
+
+            // 有效订单被删除：兄弟实例应变为 false，变更事件必须连带重新判定它
+            storageService.deleteUser(valid.getOrderBizId());
+            assertEquals(Boolean.FALSE, storageService.desiredInstanceStatus(siblingInstance, System.currentTimeMillis()));
+
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+            while (!hasContent(siblingInstance, "false") && System.currentTimeMillis() < deadline) {
+                reconciler.reconcile();
+                Thread.sleep(20);
+            }
+            awaitContent(siblingInstance, "false");
+        }
+    }
+
+    private static UserInfo user(String orderBizId, String aliUid, String computeNestInstanceId,
+                                 String status, long expiresInMillis) {
+        UserInfo user = new UserInfo();
+        user.setOrderBizId(orderBizId);
+        user.setAliUid(aliUid);
+        user.setInstanceId("inst-" + orderBizId);
+        user.setComputeNestInstanceId(computeNestInstanceId);
+        user.setStatus(status);
+        user.setExpiredOn(new Date(System.currentTimeMillis() + expiresInMillis));
+        return user;
+    }
+
+    private static boolean hasContent(String instanceId, String state) throws IOException {
+        Path file = Paths.get(InstanceStatusService.STATUS_DIR, instanceId + ".conf");
+        return Files.exists(file)
+                && (instanceId + " " + state + ";\n").equals(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+
+    private static long untracked(StatusReconciler reconciler) {
+        return ((Number) reconciler.getMetrics().get("untracked")).longValue();
+    }
+
+    private static void awaitContent(String instanceId, String state) throws IOException, InterruptedException {
+        Path file = Paths.get(InstanceStatusService.STATUS_DIR, instanceId + ".conf");
+        String expected = instanceId + " " + state + ";\n";
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (System.currentTimeMillis() < deadline) {
+            if (Files.exists(file) && expected.equals(new String(Files.readAllBytes(file), StandardCharsets.UTF_8))) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+        assertEquals(expected, Files.exists(file) ? new String(Files.readAllBytes(file), StandardCharsets.UTF_8) : null);
+    }
+}
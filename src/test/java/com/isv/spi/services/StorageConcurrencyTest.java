@@ -0,0 +1,171 @@
+package com.isv.spi.services;
+
+import com.isv.spi.models.UserInfo;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * 存储并发压力：不同租户的写入在多线程下并行执行，同时有读线程无锁查询 aliUid 索引；
+ * 读到的记录必须属于所查租户且不重复，结束后与重新打开后的索引都与各线程记下的最终状态一致，
+ * 并输出 1 到 N 个写线程下的写入吞吐（每次写入按默认持久化级别等待落盘）。
+ * 每个线程的操作数可用 isv.bench.opsPerThread 调整
+ */
+class StorageConcurrencyTest {
+
+    private static final int OPS_PER_THREAD = Integer.getInteger("isv.bench.opsPerThread", 400);
+    // 每个租户的订单数，写线程在自己的两个租户之间来回迁移订单
+    private static final int ORDERS_PER_TENANT = 20;
+
+    @Test
+    void parallelTenantWritesStayConsistent() throws Exception {
+        String run = UUID.randomUUID().toString().replace("-", "").substring(0, 8);
+        int maxThreads = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+        Map<String, String> expectedOwner = new ConcurrentHashMap<>();
+        List<String> report = new ArrayList<>();
+
+        try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext("com.isv.spi.services")) {
+            StorageService storageService = context.getBean(StorageService.class);
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                String phase = run + "-" + threads;
+                long[] result = runPhase(storageService, phase, threads, expectedOwner);
+                report.add(String.format("%2d 写线程 %6d 次写入 %6d ms %8.0f 次/秒  读取 %d 次",
+                        threads, result[0], result[1], result[0] * 1000.0 / result[1], result[2]));
+            }
+            assertIndexesMatch(storageService, expectedOwner);
+        }
+
+        // 重新打开后从快照和日志恢复的索引与内存中的一致
+        try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext("com.isv.spi.services")) {
+            assertIndexesMatch(context.getBean(StorageService.class), expectedOwner);
+        }
+        System.out.println("存储并发写入吞吐:");
+        report.forEach(System.out::println);
+    }
+
+    /**
+     * 返回 {写入次数, 耗时毫秒, 读取次数}
+     */
+    private static long[] runPhase(StorageService storageService, String phase, int threads,
+                                   Map<String, String> expectedOwner) throws Exception {
+        AtomicLong writes = new AtomicLong();
+        AtomicLong reads = new AtomicLong();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch writersDone = new CountDownLatch(threads);
+        List<Thread> workers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            String tenantA = "uid-" + phase + "-" + t + "-a";
+            String tenantB = "uid-" + phase + "-" + t + "-b";
+            String orderPrefix = "order-" + phase + "-" + t + "-";
+            workers.add(new Thread(() -> {
+                try {
+                    go.await();
+                    for (int i = 0; i < OPS_PER_THREAD; i++) {
+                        String orderBizId = orderPrefix + (i % ORDERS_PER_TENANT);
+                        if (i < ORDERS_PER_TENANT) {
+                            storageService.saveUser(user(orderBizId, tenantA));
+                            expectedOwner.put(orderBizId, tenantA);
+                        } else {
+                            String target = tenantA.equals(expectedOwner.get(orderBizId)) ? tenantB : tenantA;
+                            storageService.updateUserAliUid(orderBizId, target);
+                            expectedOwner.put(orderBizId, target);
+                        }
+                        writes.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    writersDone.countDown();
+                }
+            }, "stress-writer-" + t));
+            // 每个写线程配一个读线程，查询它的两个租户
+            workers.add(new Thread(() -> {
+                try {
+                    go.await();
+                    while (writersDone.getCount() > 0) {
+                        checkTenant(storageService, tenantA);
+                        checkTenant(storageService, tenantB);
+                        reads.addAndGet(2);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "stress-reader-" + t));
+        }
+        workers.forEach(Thread::start);
+        long start = System.nanoTime();
+        go.countDown();
+        writersDone.await(2, TimeUnit.MINUTES);
+        long elapsed = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        for (Thread worker : workers) {
+            worker.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        assertNull(failure.get(), () -> "并发操作失败: " + failure.get());
+        return new long[]{writes.get(), elapsed, reads.get()};
+    }
+
+    /**
+     * 读到的记录必须属于所查租户，且同一订单只出现一次
+     */
+    private static void checkTenant(StorageService storageService, String aliUid) {
+        Set<String> seen = new HashSet<>();
+        for (UserInfo userInfo : storageService.getUsersByAliUid(aliUid)) {
+            assertEquals(aliUid, userInfo.getAliUid(), "aliUid 索引返回了其他租户的记录");
+            if (!seen.add(userInfo.getOrderBizId())) {
+                throw new AssertionError("aliUid 索引返回了重复记录: " + userInfo.getOrderBizId());
+            }
+        }
+    }
+
+    private static void assertIndexesMatch(StorageService storageService, Map<String, String> expectedOwner) {
+        Map<String, Set<String>> byTenant = new HashMap<>();
+        for (Map.Entry<String, String> entry : expectedOwner.entrySet()) {
+            UserInfo userInfo = storageService.getUserByOrderBizId(entry.getKey());
+            assertNotNull(userInfo, entry.getKey());
+            assertEquals(entry.getValue(), userInfo.getAliUid(), entry.getKey());
+            byTenant.computeIfAbsent(entry.getValue(), k -> new HashSet<>()).add(entry.getKey());
+            byTenant.computeIfAbsent(otherTenant(entry.getValue()), k -> new HashSet<>());
+        }
+        for (Map.Entry<String, Set<String>> tenant : byTenant.entrySet()) {
+            Set<String> indexed = new HashSet<>();
+            for (UserInfo userInfo : storageService.getUsersByAliUid(tenant.getKey())) {
+                indexed.add(userInfo.getOrderBizId());
+            }
+            assertEquals(tenant.getValue(), indexed, "aliUid 索引与记录不一致: " + tenant.getKey());
+        }
+    }
+
+    private static String otherTenant(String aliUid) {
+        return aliUid.endsWith("-a") ? aliUid.substring(0, aliUid.length() - 2) + "-b"
+                : aliUid.substring(0, aliUid.length() - 2) + "-a";
+    }
+
+    private static UserInfo user(String orderBizId, String aliUid) {
+        UserInfo user = new UserInfo();
+        user.setOrderBizId(orderBizId);
+        user.setAliUid(aliUid);
+        user.setInstanceId("inst-" + orderBizId);
+        user.setStatus("ACTIVE");
+        user.setExpiredOn(new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(30)));
+        return user;
+    }
+}
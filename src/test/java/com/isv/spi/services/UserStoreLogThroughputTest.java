@@ -0,0 +1,144 @@
+package com.isv.spi.services;
+
+import com.isv.spi.models.UserInfo;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 三种持久化级别下的回调吞吐：多个线程模拟并发回调，每次写入一条记录并按级别等待落盘（与 LogStructuredBackend.put 一致），
+ * 输出每秒回调数、平均批大小和平均 fsync 耗时；所有写入必须完成且重放后一条不少。
+ * 结果取决于 fsync 代价：fsync 很便宜的文件系统（tmpfs、带写缓存的虚拟盘）上 SYNC 可能快于 GROUP，
+ * GROUP 的收益在 fsync 为毫秒级的真实磁盘上体现。
+ * 运行时长和线程数可用 isv.bench.millis、isv.bench.threads 调整，例如：
+ * mvn test -Dtest=UserStoreLogThroughputTest -Disv.bench.millis=5000 -Disv.bench.threads=32
+ */
+class UserStoreLogThroughputTest {
+
+    private static final long RUN_MILLIS = Long.getLong("isv.bench.millis", 500);
+    private static final int THREADS = Integer.getInteger("isv.bench.threads", 8);
+
+    @Test
+    void callbacksPerSecondByDurability() throws Exception {
+        Path dir = Files.createDirectories(Paths.get(StorageService.STORAGE_DIR, "bench"));
+        List<String> report = new ArrayList<>();
+        for (GroupCommitWriter.Durability durability : GroupCommitWriter.Durability.values()) {
+            Path file = dir.resolve("throughput-" + durability.name().toLowerCase() + ".log");
+            Files.deleteIfExists(file);
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            long[] result = run(file, durability, metrics);
+            double perSecond = result[0] * 1000.0 / result[1];
+            report.add(String.format("%-6s %8d 次回调 %6d ms %10.0f 次/秒  平均批大小 %.1f  平均 fsync %s us",
+                    durability, result[0], result[1], perSecond,
+                    ((Number) metrics.get("avgBatchSize")).doubleValue(), metrics.get("avgFsyncMicros")));
+            assertTrue(result[0] > 0, durability + " 没有完成任何写入");
+            assertEquals(result[0], replayCount(file), durability + " 重放条数与写入条数不一致");
+            Files.deleteIfExists(file);
+        }
+        System.out.println("持久化级别吞吐（" + THREADS + " 线程）:");
+        report.forEach(System.out::println);
+    }
+
+    /**
+     * 返回 {写入条数, 耗时毫秒}
+     */
+    private static long[] run(Path file, GroupCommitWriter.Durability durability,
+                              Map<String, Object> metrics) throws Exception {
+        UserStoreLog log = new UserStoreLog(file, durability, 2L, 512);
+        log.open();
+        AtomicInteger count = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch ready = new CountDownLatch(THREADS);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        long[] deadline = new long[1];
+        for (int t = 0; t < THREADS; t++) {
+            int threadIndex = t;
+            Thread thread = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                    CompletableFuture<Void> last = null;
+                    for (int i = 0; System.nanoTime() < deadline[0]; i++) {
+                        CompletableFuture<Void> ack = log.appendPut(user(threadIndex, i));
+                        if (durability != GroupCommitWriter.Durability.ASYNC) {
+                            ack.get();
+                        }
+                        last = ack;
+                        count.incrementAndGet();
+                    }
+                    if (last != null) {
+                        last.get(10, TimeUnit.SECONDS);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "bench-" + durability + "-" + t);
+            threads.add(thread);
+            thread.start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        deadline[0] = start + TimeUnit.MILLISECONDS.toNanos(RUN_MILLIS);
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.close();
+        metrics.putAll(log.getMetrics());
+        assertNull(failure.get(), () -> durability + " 写入失败: " + failure.get());
+        return new long[]{count.get(), Math.max(1, elapsed)};
+    }
+
+    private static UserInfo user(int thread, int i) {
+        UserInfo user = new UserInfo();
+        user.setOrderBizId("order-" + thread + "-" + i);
+        user.setAliUid("uid-" + thread);
+        user.setInstanceId("inst-" + thread + "-" + i);
+        user.setExpiredOn(new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(30)));
+        return user;
+    }
+
+    private static int replayCount(Path file) throws IOException {
+        UserStoreLog log = new UserStoreLog(file, GroupCommitWriter.Durability.ASYNC, 0L, 1);
+        int[] puts = new int[1];
+        log.replay(new UserStoreLog.Replayer() {
+            @Override
+            public void put(UserInfo userInfo) {
+                puts[0]++;
+            }
+
+            @Override
+            public void delete(String orderBizId) {
+            }
+
+            @Override
+            public void setAliUid(String orderBizId, String aliUid) {
+            }
+
+            @Override
+            public void setComputeNestInstanceId(String orderBizId, String computeNestInstanceId) {
+            }
+        });
+        log.close();
+        return puts[0];
+    }
+}